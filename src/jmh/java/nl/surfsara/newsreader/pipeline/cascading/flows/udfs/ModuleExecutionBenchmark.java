@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.surfsara.newsreader.bench.StubComponents;
+import nl.surfsara.newsreader.pipeline.modules.GenericNewsreaderModule;
+import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cascading.flow.FlowProcess;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Measures the cost of running documents through the module execution path
+ * (RunModuleFunction, StepRunner, GenericNewsreaderModule and the subprocess
+ * I/O) against stub components, so the overhead of the framework can be
+ * separated from the cost of the NLP components.
+ * 
+ * Run with: ./gradlew jmh (or ./gradlew jmh -PjmhArgs="-p docSize=1024")
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModuleExecutionBenchmark {
+	private static final Fields FIELDS = DocumentTuples.getFields(false);
+
+	@Param({ "1024", "65536", "1048576" })
+	public int docSize;
+
+	@Param({ "1", "5" })
+	public int steps;
+
+	// Only the last step is a large-output stub; chaining them would grow the
+	// document 4^steps times
+	@Param({ "cat", "sleep", "noisy-stderr", "large-output" })
+	public String stub;
+
+	private StubComponents components;
+	private List<RunModuleFunction> functions;
+	private TupleEntry document;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		components = StubComponents.createTemp();
+		components.add("cat", StubComponents.Stub.cat());
+		components.add("sleep", StubComponents.Stub.cat().setLatencyMillis(10));
+		components.add("noisy-stderr", StubComponents.Stub.cat().setStderrLines(1000));
+		components.add("large-output", StubComponents.Stub.cat().setOutputGrowth(4));
+
+		functions = new ArrayList<RunModuleFunction>();
+		for (int i = 0; i < steps; i++) {
+			String component = "large-output".equals(stub) && i < steps - 1 ? "cat" : stub;
+			PipelineStep ps = new PipelineStep(component, GenericNewsreaderModule.class, 60000, Integer.MAX_VALUE);
+			ps.setComponentsRoot(components.getRoot().getAbsolutePath());
+			RunModuleFunction function = new RunModuleFunction(ps);
+			function.prepare(FlowProcess.NULL, null);
+			functions.add(function);
+		}
+		document = toEntry("benchmark-doc", createDocument(docSize));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		for (RunModuleFunction function : functions) {
+			function.cleanup(FlowProcess.NULL, null);
+		}
+		components.delete();
+	}
+
+	/**
+	 * The full path of a document through all steps.
+	 */
+	@Benchmark
+	public Tuple runSteps() {
+		TupleEntry entry = document;
+		Tuple result = null;
+		for (RunModuleFunction function : functions) {
+			result = function.operate(entry);
+			entry = new TupleEntry(FIELDS, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Only the conversions between tuples and documents of all steps, without
+	 * running the components.
+	 */
+	@Benchmark
+	public Tuple convertOnly() {
+		TupleEntry entry = document;
+		Tuple result = null;
+		for (int i = 0; i < steps; i++) {
+			result = DocumentTuples.toTuple(DocumentTuples.toDocument(entry));
+			entry = new TupleEntry(FIELDS, result);
+		}
+		return result;
+	}
+
+	private static TupleEntry toEntry(String name, String content) {
+		return new TupleEntry(FIELDS, DocumentTuples.newTuple(new Text(name), new Text(content), null, false));
+	}
+
+	static String createDocument(int size) {
+		StringBuilder sb = new StringBuilder(size + 128);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<NAF xml:lang=\"en\" version=\"v3\">\n<raw><![CDATA[");
+		String sentence = "The quick brown fox jumps over the lazy dog near the riverbank. ";
+		while (sb.length() < size - 32) {
+			sb.append(sentence);
+		}
+		sb.append("]]></raw>\n</NAF>\n");
+		return sb.toString();
+	}
+}
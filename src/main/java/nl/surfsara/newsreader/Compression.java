@@ -0,0 +1,230 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.zlib.ZlibFactory;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * The compression of a sequence file: a codec and a compression type. Settings
+ * are given as codec[:type], for example "snappy:block" or "gzip". Codecs that
+ * need a native library that is not available on this machine fall back to
+ * deflate (the pure Java zlib implementation of Hadoop's DefaultCodec).
+ * 
+ * The fallback is decided on the machine that creates the codec. For the output
+ * of jobs this is the submitting machine (see getOutputProperties): the task
+ * nodes get the codec that was chosen there and cannot fall back themselves.
+ */
+public class Compression {
+	private static final Logger logger = Logger.getLogger(Compression.class);
+	private static final String OUTPUT_COMPRESS = "mapreduce.output.fileoutputformat.compress";
+	private static final String OUTPUT_CODEC = "mapreduce.output.fileoutputformat.compress.codec";
+	private static final String OUTPUT_TYPE = "mapreduce.output.fileoutputformat.compress.type";
+
+	public enum Codec {
+		NONE("none", null), DEFLATE("deflate", "org.apache.hadoop.io.compress.DefaultCodec"), GZIP("gzip", "org.apache.hadoop.io.compress.GzipCodec"), SNAPPY("snappy",
+				"org.apache.hadoop.io.compress.SnappyCodec"), LZ4("lz4", "org.apache.hadoop.io.compress.Lz4Codec"), ZSTD("zstd", "org.apache.hadoop.io.compress.ZStandardCodec"), BZIP2(
+				"bzip2", "org.apache.hadoop.io.compress.BZip2Codec");
+
+		private final String name;
+		private final String className;
+
+		private Codec(String name, String className) {
+			this.name = name;
+			this.className = className;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public static Codec fromName(String name) {
+			for (Codec c : values()) {
+				if (c.name.equalsIgnoreCase(name)) {
+					return c;
+				}
+			}
+			throw new IllegalArgumentException("Unknown codec: " + name);
+		}
+	}
+
+	private final Codec codec;
+	private final CompressionType type;
+
+	public Compression(Codec codec, CompressionType type) {
+		this.codec = codec;
+		this.type = codec == Codec.NONE ? CompressionType.NONE : type;
+	}
+
+	/**
+	 * Parses a compression setting.
+	 * 
+	 * @param setting
+	 *            codec[:type] where the type is record or block (default
+	 *            block)
+	 * @return the compression
+	 */
+	public static Compression parse(String setting) {
+		String[] parts = setting.split(":", 2);
+		CompressionType type = CompressionType.BLOCK;
+		if (parts.length > 1) {
+			try {
+				type = CompressionType.valueOf(parts[1].toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown compression type: " + parts[1]);
+			}
+		}
+		return new Compression(Codec.fromName(parts[0]), type);
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	public CompressionType getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the codec to use on this machine. When the codec is not available
+	 * the deflate codec is returned instead.
+	 * 
+	 * @param conf
+	 *            the configuration used to create the codec
+	 * @return the codec or null when compression is off
+	 */
+	public CompressionCodec getCompressionCodec(Configuration conf) {
+		if (codec == Codec.NONE) {
+			return null;
+		}
+		CompressionCodec cc = createCodec(codec, conf);
+		if (cc == null) {
+			logger.warn("Codec " + codec.getName() + " is not available on this machine; using " + Codec.DEFLATE.getName() + " instead.");
+			cc = createCodec(Codec.DEFLATE, conf);
+		}
+		return cc;
+	}
+
+	/**
+	 * Gets the compression that is used on this machine.
+	 * 
+	 * @param conf
+	 *            the configuration used to create the codec
+	 * @return this compression or deflate with the same type when the codec
+	 *         is not available
+	 */
+	public Compression resolve(Configuration conf) {
+		if (codec == Codec.NONE || createCodec(codec, conf) != null) {
+			return this;
+		}
+		logger.warn("Codec " + codec.getName() + " is not available on this machine; using " + Codec.DEFLATE.getName() + " instead.");
+		return new Compression(Codec.DEFLATE, type);
+	}
+
+	/**
+	 * Gets the job properties that make a sequence file sink use this
+	 * compression. The availability of the codec is only checked on this
+	 * (the submitting) machine; the tasks use the codec in the properties and
+	 * fail to write their output when a node lacks its native library. Tasks
+	 * can call checkOutputCodec to report this early.
+	 * 
+	 * @param conf
+	 *            the configuration used to check the availability of the codec
+	 * @return the output format properties
+	 */
+	public Map<String, String> getOutputProperties(Configuration conf) {
+		Map<String, String> properties = new LinkedHashMap<String, String>();
+		CompressionCodec cc = getCompressionCodec(conf);
+		properties.put(OUTPUT_COMPRESS, String.valueOf(cc != null));
+		if (cc != null) {
+			properties.put(OUTPUT_CODEC, cc.getClass().getName());
+			properties.put(OUTPUT_TYPE, type.name());
+		}
+		return properties;
+	}
+
+	/**
+	 * Checks in a task whether the output codec of the job, chosen on the
+	 * submitting machine, can be used on this node. Logs an error when it
+	 * cannot: writing the output of the task will then fail.
+	 * 
+	 * @param conf
+	 *            the configuration of the task
+	 * @return false when the output is compressed with one of the codecs
+	 *         above and it is not available on this node
+	 */
+	public static boolean checkOutputCodec(Configuration conf) {
+		if (!conf.getBoolean(OUTPUT_COMPRESS, false)) {
+			return true;
+		}
+		String className = conf.get(OUTPUT_CODEC);
+		for (Codec c : Codec.values()) {
+			if (c.getClassName() != null && c.getClassName().equals(className) && createCodec(c, conf) == null) {
+				logger.error("Output codec " + c.getName() + " was chosen on the submitting machine but is not available on this node; writing the output will fail. Install the native Hadoop libraries on all nodes or choose another output codec.");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a codec and checks that it can compress on this machine.
+	 * 
+	 * @return the codec or null when it is not available
+	 */
+	public static CompressionCodec createCodec(Codec codec, Configuration conf) {
+		if (codec.getClassName() == null) {
+			return null;
+		}
+		// Sequence files only support gzip with the native zlib library
+		if (codec == Codec.GZIP && !ZlibFactory.isNativeZlibLoaded(conf)) {
+			return null;
+		}
+		try {
+			CompressionCodec cc = (CompressionCodec) ReflectionUtils.newInstance(Class.forName(codec.getClassName()), conf);
+			OutputStream out = cc.createOutputStream(new ByteArrayOutputStream());
+			out.write(new byte[] { '<', 'N', 'A', 'F', '>' });
+			out.close();
+			return cc;
+		} catch (ClassNotFoundException e) {
+			logger.debug("Codec " + codec.getName() + " is not on the class path: " + e);
+		} catch (Exception e) {
+			logger.debug("Codec " + codec.getName() + " is not usable: " + e);
+		} catch (LinkageError e) {
+			// The native library is missing
+			logger.debug("Codec " + codec.getName() + " is not usable: " + e);
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return codec.getName() + (codec == Codec.NONE ? "" : ":" + type.name().toLowerCase());
+	}
+}
@@ -18,6 +18,7 @@ package nl.surfsara.newsreader;
 import java.util.Arrays;
 import java.util.StringTokenizer;
 
+import nl.surfsara.newsreader.bench.Bench;
 import nl.surfsara.newsreader.loader.Loader;
 import nl.surfsara.newsreader.pipeline.Pipeline;
 
@@ -28,7 +29,8 @@ import nl.surfsara.newsreader.pipeline.Pipeline;
  */
 public class Main {
 	public enum Tools {
-		LOADER("loader", "Import/Export tool for NAF files on Hadoop."), PIPELINE("pipeline", "Run the newsreader pipeline on Hadoop.");
+		LOADER("loader", "Import/Export tool for NAF files on Hadoop."), PIPELINE("pipeline", "Run the newsreader pipeline on Hadoop."), BENCH("bench",
+				"Benchmark the loader and the pipeline locally on a synthetic corpus.");
 
 		private final String name;
 		private final String description;
@@ -86,6 +88,9 @@ public class Main {
 			} else if (Tools.PIPELINE.getName().equals(tool)) {
 				Pipeline p = new Pipeline(toolArgs);
 				p.run();
+			} else if (Tools.BENCH.getName().equals(tool)) {
+				Bench b = new Bench(toolArgs);
+				b.run();
 			} else {
 				showUsage = true;
 			}
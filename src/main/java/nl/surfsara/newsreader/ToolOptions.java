@@ -0,0 +1,96 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the arguments of a tool in positional arguments and options. Options
+ * start with two dashes and are either flags (--name) or have a value
+ * (--name=value). Options can be given anywhere between the positional
+ * arguments.
+ */
+public class ToolOptions {
+	private List<String> positional = new ArrayList<String>();
+	private Map<String, String> options = new HashMap<String, String>();
+
+	public ToolOptions(String[] args) {
+		for (String arg : args) {
+			if (arg.startsWith("--") && arg.length() > 2) {
+				int eq = arg.indexOf('=');
+				if (eq > 0) {
+					options.put(arg.substring(2, eq), arg.substring(eq + 1));
+				} else {
+					options.put(arg.substring(2), null);
+				}
+			} else {
+				positional.add(arg);
+			}
+		}
+	}
+
+	public String[] getPositional() {
+		return positional.toArray(new String[positional.size()]);
+	}
+
+	public boolean has(String name) {
+		return options.containsKey(name);
+	}
+
+	public String get(String name, String defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	public int getInt(String name, int defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number but got: " + value);
+		}
+	}
+
+	public long getLong(String name, long defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number but got: " + value);
+		}
+	}
+
+	public double getDouble(String name, double defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option --" + name + " expects a number but got: " + value);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+
+import nl.surfsara.newsreader.Compression;
+import nl.surfsara.newsreader.ToolOptions;
+import nl.surfsara.newsreader.loader.ParallelWriteNewsreaderDocs;
+import nl.surfsara.newsreader.loader.WriteNewsreaderDocs;
+import nl.surfsara.newsreader.pipeline.LocalPipeline;
+import nl.surfsara.newsreader.pipeline.PipelineLayout;
+import nl.surfsara.newsreader.pipeline.modules.GenericNewsreaderModule;
+import nl.surfsara.newsreader.pipeline.modules.StepMetrics;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Runnable class that benchmarks the loader and the pipeline end to end
+ * without a cluster or network: it generates a synthetic NAF corpus, loads it
+ * into sequence files on the local file system with the loader and runs it
+ * through a local pipeline of stub components (see the StubComponents class).
+ * The throughput of both phases and the overhead of the pipeline per step are
+ * printed and appended to bench.csv in the work directory, so runs with
+ * different settings can be compared.
+ */
+public class Bench implements Runnable {
+	private static final Logger logger = Logger.getLogger(Bench.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String CSV_HEADER = "docs,distribution,mean_size,docs_per_file,codec,writers,steps,latency_ms,failure_rate,output_growth,concurrency,execution,"
+			+ "corpus_bytes,load_s,load_mb_s,pipeline_s,docs_s,mb_s,failed,overhead_ms_per_step\n";
+	private String[] args;
+
+	public Bench(String[] args) {
+		this.args = args;
+	}
+
+	@Override
+	public void run() {
+		PropertyConfigurator.configure("log4jconfig.properties");
+		ToolOptions options = new ToolOptions(args);
+		String[] positional = options.getPositional();
+		if (positional.length < 1) {
+			showUsage();
+			return;
+		}
+		File workDir = new File(positional[0]).getAbsoluteFile();
+		int docs = options.getInt("docs", 1000);
+		int docsPerFile = options.getInt("docs-per-file", 100);
+		int writers = options.has("parallel") ? options.getInt("writers", 4) : 0;
+		Compression compression = Compression.parse(options.get("codec", WriteNewsreaderDocs.DEFAULT_COMPRESSION.toString())).resolve(getLocalConfiguration());
+		int steps = options.getInt("steps", 3);
+		long latency = options.getLong("latency", 0);
+		double failureRate = options.getDouble("failure-rate", 0);
+		double outputGrowth = options.getDouble("output-growth", 1.0);
+		int stderrLines = options.getInt("stderr-lines", 0);
+		int concurrency = options.getInt("concurrency", 1);
+		PipelineLayout.Execution execution = PipelineLayout.Execution.fromName(options.get("execution", PipelineLayout.Execution.CHAINED.getName()));
+		CorpusGenerator generator = new CorpusGenerator(options.getLong("seed", 1));
+		CorpusGenerator.SizeDistribution distribution = CorpusGenerator.SizeDistribution.fromName(options.get("distribution", CorpusGenerator.SizeDistribution.LOGNORMAL.getName()));
+		int meanSize = options.getInt("mean-size", 16 * 1024);
+		generator.setDistribution(distribution);
+		generator.setMeanSize(meanSize);
+		generator.setSizeRange(options.getInt("min-size", 1024), options.getInt("max-size", 4 * 1024 * 1024));
+
+		File corpusDir = new File(workDir, "corpus");
+		File sequenceDir = new File(workDir, "sequencefiles");
+		File outputDir = new File(workDir, "output");
+		File errorDir = new File(workDir, "error");
+		StubComponents stubs = new StubComponents(new File(workDir, "components"));
+		try {
+			for (File dir : new File[] { corpusDir, sequenceDir, outputDir, errorDir, stubs.getRoot() }) {
+				FileUtils.deleteDirectory(dir);
+			}
+			stubs.getRoot().mkdirs();
+
+			// Generate the corpus
+			System.out.println("Generating " + docs + " documents with a " + distribution.getName() + " size distribution (mean " + meanSize + " bytes)...");
+			long corpusBytes = generator.generate(corpusDir, docs);
+
+			// Load it into sequence files with the loader
+			System.out.println("Loading the documents into sequence files with " + docsPerFile + " documents per file compressed with " + compression + "...");
+			sequenceDir.mkdirs();
+			long tload = System.currentTimeMillis();
+			String sequenceFiles = new File(sequenceDir, "docs").getPath();
+			long loaded;
+			if (writers > 0) {
+				loaded = new ParallelWriteNewsreaderDocs(getLocalConfiguration(), corpusDir.getPath(), sequenceFiles, docsPerFile, compression, options.getInt("readers", 4), writers,
+						options.getInt("sync-mb", 64)).run();
+			} else {
+				loaded = new WriteNewsreaderDocs(getLocalConfiguration(), corpusDir.getPath(), sequenceFiles, docsPerFile, compression).run();
+			}
+			double loadSeconds = Math.max(1, System.currentTimeMillis() - tload) / 1000.0;
+			if (loaded != docs) {
+				throw new IOException("The loader wrote " + loaded + " of " + docs + " documents.");
+			}
+
+			// Run the pipeline on stub components
+			StubComponents.Stub stub = StubComponents.Stub.cat().setLatencyMillis(latency).setFailureRate(failureRate).setOutputGrowth(outputGrowth).setStderrLines(stderrLines);
+			File layoutFile = new File(workDir, "layout.json");
+			JSONArray layout = new JSONArray();
+			for (int i = 0; i < steps; i++) {
+				String name = "stub-" + i;
+				stubs.add(name, stub);
+				JSONObject step = new JSONObject();
+				step.put("name", name);
+				step.put("class", GenericNewsreaderModule.class.getName());
+				step.put("timeout", Math.max(60000, 100 * latency));
+				step.put("numErrorLines", stderrLines);
+				step.put("failurePolicy", "both");
+				layout.put(step);
+			}
+			JSONObject jo = new JSONObject();
+			jo.put("id", "bench");
+			jo.put("description", "Benchmark pipeline of stub components");
+			jo.put("version", "1.0");
+			jo.put("layout", layout);
+			FileUtils.writeStringToFile(layoutFile, jo.toString(2), UTF8);
+			PipelineLayout pl = new PipelineLayout(layoutFile.getPath());
+			pl.setComponentsRoot(stubs.getRoot().getPath());
+			pl.setConcurrency(concurrency);
+			pl.setExecution(execution);
+			System.out.println("Running " + steps + " stub steps (" + latency + " ms each) with " + concurrency + " documents in flight, " + execution.getName() + "...");
+			LocalPipeline lp = new LocalPipeline(pl);
+			lp.setWorkDir(new File(workDir, "run").getPath());
+			lp.setScratchDir(options.get("scratch-dir", null));
+			lp.run(sequenceDir.getPath(), outputDir.getPath(), errorDir.getPath());
+
+			// Report
+			double pipelineSeconds = Math.max(1, lp.getElapsedMillis()) / 1000.0;
+			double loadMbs = corpusBytes / (1024.0 * 1024.0) / loadSeconds;
+			double docsPerSecond = lp.getDocuments() / pipelineSeconds;
+			double mbs = lp.getInputBytes() / (1024.0 * 1024.0) / pipelineSeconds;
+			System.out.println();
+			System.out.println(String.format(Locale.ROOT, "Corpus:   %d documents, %.1f MB", docs, corpusBytes / (1024.0 * 1024.0)));
+			System.out.println(String.format(Locale.ROOT, "Load:     %.1f s, %.2f MB/s (%d documents per file, %s)", loadSeconds, loadMbs, docsPerFile, compression));
+			System.out.println(String.format(Locale.ROOT, "Pipeline: %.1f s, %.2f documents/s, %.2f MB/s, %d failed", pipelineSeconds, docsPerSecond, mbs, lp.getFailed()));
+			double totalOverhead = 0;
+			for (StepRunner runner : lp.getStepRunners()) {
+				Map<String, Long> counters = runner.getMetrics().getCounters();
+				long processed = counters.get(StepMetrics.PROCESSED);
+				double mean = processed == 0 ? 0 : counters.get(StepMetrics.MILLIS) / (double) processed;
+				double overhead = Math.max(0, mean - latency);
+				totalOverhead += overhead;
+				System.out.println(String.format(Locale.ROOT, "  %s: %d documents, %.1f ms per document, %.1f ms overhead", runner.getPipelineStep().getName(), processed, mean, overhead));
+			}
+			double overheadPerStep = steps == 0 ? 0 : totalOverhead / steps;
+			System.out.println(String.format(Locale.ROOT, "Overhead: %.1f ms per document per step", overheadPerStep));
+
+			File csv = new File(workDir, "bench.csv");
+			String line = String.format(Locale.ROOT, "%d,%s,%d,%d,%s,%d,%d,%d,%.4f,%.2f,%d,%s,%d,%.2f,%.2f,%.2f,%.2f,%.2f,%d,%.2f\n", docs, distribution.getName(), meanSize, docsPerFile, compression, writers, steps,
+					latency, failureRate, outputGrowth, concurrency, execution.getName(), corpusBytes, loadSeconds, loadMbs, pipelineSeconds, docsPerSecond, mbs, lp.getFailed(),
+					overheadPerStep);
+			FileUtils.writeStringToFile(csv, (csv.exists() ? "" : CSV_HEADER) + line, UTF8, true);
+			System.out.println("Results appended to: " + csv);
+		} catch (Exception e) {
+			logger.error(e);
+			System.out.println("Benchmark failed: " + e.getMessage());
+		} finally {
+			if (!options.has("keep")) {
+				for (File dir : new File[] { corpusDir, sequenceDir, outputDir, errorDir }) {
+					FileUtils.deleteQuietly(dir);
+				}
+				stubs.delete();
+			}
+		}
+	}
+
+	/**
+	 * The loader and the local pipeline only use the local file system, also
+	 * when a Hadoop configuration is on the class path.
+	 */
+	private static Configuration getLocalConfiguration() {
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		return conf;
+	}
+
+	private void showUsage() {
+		System.out.println("Usage: ");
+		System.out.println();
+		System.out.println("The bench program measures the throughput of the loader and the pipeline without a cluster or network.");
+		System.out.println("It generates a synthetic NAF corpus, loads it into local sequence files and runs it through a local pipeline");
+		System.out.println("of stub components that copy their input after an optional delay.");
+		System.out.println();
+		System.out.println("The bench program expects the following argument: ");
+		System.out.println(" 1.) a work directory: a local directory for the corpus, sequence files, output and the results (bench.csv).");
+		System.out.println();
+		System.out.println("The following options can be given in addition to the argument:");
+		System.out.println(" --docs=N: the number of documents to generate (default 1000).");
+		System.out.println(" --distribution=fixed|uniform|lognormal: the distribution of the document sizes (default lognormal).");
+		System.out.println(" --mean-size=BYTES, --min-size=BYTES, --max-size=BYTES: the mean and range of the document sizes (default 16384, 1024, 4194304).");
+		System.out.println(" --seed=N: the seed for the corpus; the same seed generates the same corpus (default 1).");
+		System.out.println(" --docs-per-file=N: the number of documents per sequence file of the loader (default 100).");
+		System.out.println(" --parallel, --readers=N, --writers=N, --sync-mb=N: use the parallel loader with these settings (see the loader).");
+		System.out.println(" --codec=CODEC[:TYPE]: the compression of the sequence files of the loader (default deflate:block).");
+		System.out.println(" --steps=N: the number of stub steps (default 3).");
+		System.out.println(" --latency=MS: the time each stub takes per document (default 0).");
+		System.out.println(" --failure-rate=R: the fraction of documents each stub fails on (default 0).");
+		System.out.println(" --output-growth=G: the size of the output of each stub relative to its input (default 1.0).");
+		System.out.println(" --stderr-lines=N: the number of lines each stub writes to stderr per document (default 0).");
+		System.out.println(" --concurrency=N, --execution=chained|pipelined, --scratch-dir=PATH: as for the pipeline tool.");
+		System.out.println(" --keep: keep the corpus, sequence files, output and stub components after the run.");
+		System.out.println();
+		System.out.println("An example:");
+		System.out.println("Compare execution modes: hadoop jar newsreader-hadoop.jar bench /tmp/bench --docs=500 --steps=5 --latency=50 --concurrency=4 --execution=pipelined");
+		System.out.println();
+	}
+}
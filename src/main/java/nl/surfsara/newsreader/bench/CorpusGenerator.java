@@ -0,0 +1,208 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates a corpus of synthetic NAF documents. The documents have a NAF
+ * header, a raw text and a text layer with word forms made of random words, so
+ * they look like the input of the first pipeline step. The sizes of the
+ * documents follow a configurable distribution; with the same seed the same
+ * corpus is generated.
+ */
+public class CorpusGenerator {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] WORDS = { "the", "minister", "announced", "a", "new", "agreement", "with", "company", "on", "Monday", "shares", "rose", "after",
+			"report", "of", "in", "market", "said", "government", "bank", "year", "percent", "talks", "and", "to", "economy", "president", "by", "investors", "growth" };
+
+	/**
+	 * The distribution of the document sizes.
+	 */
+	public enum SizeDistribution {
+		// All documents have the mean size
+		FIXED("fixed"),
+		// Sizes are uniformly distributed between the minimum and maximum size
+		UNIFORM("uniform"),
+		// Sizes are log-normally distributed around the mean size: many small
+		// documents and a long tail of large ones, as in news corpora
+		LOGNORMAL("lognormal");
+
+		private final String name;
+
+		private SizeDistribution(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public static SizeDistribution fromName(String name) {
+			for (SizeDistribution d : values()) {
+				if (d.name.equalsIgnoreCase(name)) {
+					return d;
+				}
+			}
+			throw new IllegalArgumentException("Unknown size distribution: " + name);
+		}
+	}
+
+	private SizeDistribution distribution = SizeDistribution.LOGNORMAL;
+	private int meanSize = 16 * 1024;
+	private int minSize = 1024;
+	private int maxSize = 4 * 1024 * 1024;
+	private double sigma = 1.0;
+	private Random random;
+
+	/**
+	 * @param seed
+	 *            the seed of the random generator
+	 */
+	public CorpusGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	public void setDistribution(SizeDistribution distribution) {
+		this.distribution = distribution;
+	}
+
+	/**
+	 * @param meanSize
+	 *            the mean document size in bytes
+	 */
+	public void setMeanSize(int meanSize) {
+		this.meanSize = meanSize;
+	}
+
+	/**
+	 * @param minSize
+	 *            the smallest document size in bytes
+	 * @param maxSize
+	 *            the largest document size in bytes
+	 */
+	public void setSizeRange(int minSize, int maxSize) {
+		this.minSize = minSize;
+		this.maxSize = Math.max(minSize, maxSize);
+	}
+
+	/**
+	 * @param sigma
+	 *            the standard deviation of the logarithm of the sizes in the
+	 *            log-normal distribution
+	 */
+	public void setSigma(double sigma) {
+		this.sigma = sigma;
+	}
+
+	/**
+	 * Writes documents named doc_00000000.naf, doc_00000001.naf, ... to a
+	 * directory.
+	 * 
+	 * @param dir
+	 *            the directory to write to
+	 * @param count
+	 *            the number of documents
+	 * @return the total size of the documents in bytes
+	 * @throws IOException
+	 *             When a document could not be written
+	 */
+	public long generate(File dir, int count) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory: " + dir);
+		}
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			String name = String.format("doc_%08d.naf", i);
+			String doc = createDocument(name, nextSize());
+			Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, name)), UTF8));
+			try {
+				w.write(doc);
+			} finally {
+				w.close();
+			}
+			total += doc.length();
+		}
+		return total;
+	}
+
+	/**
+	 * @return the size of the next document in bytes
+	 */
+	public int nextSize() {
+		double size;
+		switch (distribution) {
+		case FIXED:
+			size = meanSize;
+			break;
+		case UNIFORM:
+			size = minSize + random.nextDouble() * (maxSize - minSize);
+			break;
+		default:
+			// The mean of a log-normal distribution is exp(mu + sigma^2 / 2)
+			double mu = Math.log(meanSize) - sigma * sigma / 2;
+			size = Math.exp(mu + sigma * random.nextGaussian());
+			break;
+		}
+		return (int) Math.max(minSize, Math.min(maxSize, size));
+	}
+
+	/**
+	 * Creates a NAF document of about the given size (in ASCII characters).
+	 */
+	public String createDocument(String name, int size) {
+		StringBuilder raw = new StringBuilder();
+		StringBuilder text = new StringBuilder();
+		int words = 0;
+		int sentence = 1;
+		// Leave room for the header and footer of the document
+		while (raw.length() + text.length() + 300 < size) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (raw.length() > 0) {
+				raw.append(' ');
+			}
+			int offset = raw.length();
+			raw.append(word);
+			words++;
+			text.append("    <wf id=\"w").append(words).append("\" sent=\"").append(sentence).append("\" offset=\"").append(offset).append("\" length=\"")
+					.append(word.length()).append("\">").append(word).append("</wf>\n");
+			if (random.nextInt(20) == 0) {
+				raw.append('.');
+				sentence++;
+			}
+		}
+		StringBuilder sb = new StringBuilder(size + 300);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<NAF xml:lang=\"en\" version=\"v3\">\n");
+		sb.append("  <nafHeader>\n");
+		sb.append("    <fileDesc title=\"").append(name).append("\"/>\n");
+		sb.append("    <public publicId=\"").append(name).append("\"/>\n");
+		sb.append("  </nafHeader>\n");
+		sb.append("  <raw><![CDATA[").append(raw).append("]]></raw>\n");
+		sb.append("  <text>\n");
+		sb.append(text);
+		sb.append("  </text>\n");
+		sb.append("</NAF>\n");
+		return sb.toString();
+	}
+}
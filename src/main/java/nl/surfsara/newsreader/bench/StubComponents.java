@@ -0,0 +1,182 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+import nl.surfsara.newsreader.pipeline.modules.ModuleConstants;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Creates a tree of stub components that behave like Newsreader components
+ * without doing any NLP: each stub reads the document from standard in and
+ * writes it (possibly enlarged) to standard out, after an optional delay and
+ * with optional lines on standard error and random failures. Used to measure
+ * the overhead of the pipeline itself.
+ */
+public class StubComponents {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final File root;
+
+	/**
+	 * @param root
+	 *            the directory to create the component directories in
+	 */
+	public StubComponents(File root) {
+		this.root = root;
+		root.mkdirs();
+	}
+
+	/**
+	 * Creates stub components in a new temporary directory.
+	 * 
+	 * @return the stub components
+	 * @throws IOException
+	 *             When the directory could not be created
+	 */
+	public static StubComponents createTemp() throws IOException {
+		File tmp = File.createTempFile("newsreader-stubs", "");
+		tmp.delete();
+		return new StubComponents(new File(tmp, ModuleConstants.ARCHIVEROOT));
+	}
+
+	/**
+	 * @return the directory holding the component directories (see
+	 *         PipelineStep.setComponentsRoot)
+	 */
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Writes the run.sh.hadoop script of a stub component.
+	 * 
+	 * @param name
+	 *            the name of the component
+	 * @param stub
+	 *            the behaviour of the component
+	 * @throws IOException
+	 *             When the script could not be written
+	 */
+	public void add(String name, Stub stub) throws IOException {
+		File dir = new File(root, name);
+		dir.mkdirs();
+		File script = new File(dir, ModuleConstants.RUNSCRIPT);
+		FileUtils.writeStringToFile(script, stub.toScript(), UTF8);
+		script.setExecutable(true);
+	}
+
+	/**
+	 * Removes the stub components (including the parent of the root when it
+	 * was created by createTemp).
+	 */
+	public void delete() {
+		File parent = root.getParentFile();
+		if (parent != null && parent.getName().startsWith("newsreader-stubs")) {
+			FileUtils.deleteQuietly(parent);
+		} else {
+			FileUtils.deleteQuietly(root);
+		}
+	}
+
+	/**
+	 * The behaviour of a stub component.
+	 */
+	public static class Stub {
+		private long latencyMillis;
+		private double failureRate;
+		private double outputGrowth = 1.0;
+		private int stderrLines;
+
+		/**
+		 * @return a stub that copies standard in to standard out
+		 */
+		public static Stub cat() {
+			return new Stub();
+		}
+
+		/**
+		 * @param millis
+		 *            the time the stub takes per document
+		 */
+		public Stub setLatencyMillis(long millis) {
+			this.latencyMillis = millis;
+			return this;
+		}
+
+		/**
+		 * @param rate
+		 *            the fraction of documents (0 - 1) for which the stub exits
+		 *            with exit code 1 and writes an error to stderr
+		 */
+		public Stub setFailureRate(double rate) {
+			this.failureRate = rate;
+			return this;
+		}
+
+		/**
+		 * @param growth
+		 *            the size of the output relative to the input (1 or more)
+		 */
+		public Stub setOutputGrowth(double growth) {
+			this.outputGrowth = Math.max(1.0, growth);
+			return this;
+		}
+
+		/**
+		 * @param lines
+		 *            the number of lines the stub writes to stderr per document
+		 */
+		public Stub setStderrLines(int lines) {
+			this.stderrLines = lines;
+			return this;
+		}
+
+		String toScript() {
+			int copies = (int) outputGrowth;
+			int permille = (int) Math.round((outputGrowth - copies) * 1000);
+			StringBuilder sb = new StringBuilder();
+			sb.append("#!/bin/bash\n");
+			sb.append("# Stub component generated by newsreader-hadoop\n");
+			sb.append("# Arguments: component dir, scratch dir, [input file]\n");
+			sb.append("in=\"$2/stub.$$\"\n");
+			sb.append("cat > \"$in\"\n");
+			if (latencyMillis > 0) {
+				sb.append(String.format(Locale.ROOT, "sleep %.3f\n", latencyMillis / 1000.0));
+			}
+			if (stderrLines > 0) {
+				sb.append("for ((i = 0; i < ").append(stderrLines).append("; i++)); do echo \"stub warning $i\" >&2; done\n");
+			}
+			if (failureRate > 0) {
+				sb.append("if [ $((RANDOM % 10000)) -lt ").append(Math.round(failureRate * 10000)).append(" ]; then\n");
+				sb.append("  echo \"stub failure\" >&2\n");
+				sb.append("  rm -f \"$in\"\n");
+				sb.append("  exit 1\n");
+				sb.append("fi\n");
+			}
+			sb.append("for ((i = 0; i < ").append(copies).append("; i++)); do cat \"$in\"; done\n");
+			if (permille > 0) {
+				sb.append("head -c $(( $(stat -c %s \"$in\") * ").append(permille).append(" / 1000 )) \"$in\"\n");
+			}
+			sb.append("rm -f \"$in\"\n");
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads the documents in an archive one by one without unpacking it: tar
+ * files (optionally compressed with gzip or bzip2), zip files and single
+ * gzipped documents. The name of a document is its path in the archive (or,
+ * for a gzipped document, the file name without .gz).
+ */
+public class ArchiveReader implements Closeable {
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final String[] TAR_SUFFIXES = { ".tar", ".tar.gz", ".tgz", ".tar.bz2", ".tbz2" };
+
+	private InputStream in;
+	private ArchiveInputStream archive;
+	private String singleName;
+	private String name;
+
+	/**
+	 * @param f
+	 *            an archive (see isArchive)
+	 * @throws IOException
+	 *             When the archive cannot be opened
+	 */
+	public ArchiveReader(File f) throws IOException {
+		String fileName = f.getName().toLowerCase();
+		in = new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE);
+		try {
+			if (fileName.endsWith(".zip")) {
+				archive = new ZipArchiveInputStream(in);
+			} else if (fileName.endsWith(".tar")) {
+				archive = new TarArchiveInputStream(in);
+			} else if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+				archive = new TarArchiveInputStream(new GZIPInputStream(in, BUFFER_SIZE));
+			} else if (fileName.endsWith(".tar.bz2") || fileName.endsWith(".tbz2")) {
+				archive = new TarArchiveInputStream(new BZip2CompressorInputStream(in));
+			} else if (fileName.endsWith(".gz")) {
+				in = new GZIPInputStream(in, BUFFER_SIZE);
+				singleName = f.getName().substring(0, f.getName().length() - ".gz".length());
+			} else {
+				throw new IOException("Not an archive: " + f);
+			}
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks by its name whether a file is an archive that can be read.
+	 */
+	public static boolean isArchive(File f) {
+		String fileName = f.getName().toLowerCase();
+		for (String suffix : TAR_SUFFIXES) {
+			if (fileName.endsWith(suffix)) {
+				return true;
+			}
+		}
+		return fileName.endsWith(".zip") || fileName.endsWith(".gz");
+	}
+
+	/**
+	 * Moves to the next document; directories are skipped.
+	 * 
+	 * @return false at the end of the archive
+	 */
+	public boolean next() throws IOException {
+		if (archive == null) {
+			name = singleName;
+			singleName = null;
+			return name != null;
+		}
+		ArchiveEntry entry;
+		while ((entry = archive.getNextEntry()) != null) {
+			if (!entry.isDirectory() && archive.canReadEntryData(entry)) {
+				name = entry.getName();
+				return true;
+			}
+		}
+		name = null;
+		return false;
+	}
+
+	/**
+	 * @return the name of the current document
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Reads the content of the current document.
+	 */
+	public byte[] getContent() throws IOException {
+		return IOUtils.toByteArray(archive == null ? in : archive);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (archive != null) {
+			archive.close();
+		} else {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+
+/**
+ * Writes documents into an archive, the counterpart of the ArchiveReader
+ * class: a tar file (optionally compressed with gzip) or a zip file, depending
+ * on the name of the file. Long document names are stored as POSIX extended
+ * headers in tar files.
+ */
+public class ArchiveWriter implements Closeable {
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private ArchiveOutputStream archive;
+	private boolean zip;
+	private long entries;
+
+	/**
+	 * @param f
+	 *            the archive to create: a .tar, .tar.gz, .tgz or .zip file
+	 * @throws IOException
+	 *             When the archive cannot be created
+	 */
+	public ArchiveWriter(File f) throws IOException {
+		String fileName = f.getName().toLowerCase();
+		if (fileName.endsWith(".zip")) {
+			archive = new ZipArchiveOutputStream(f);
+			zip = true;
+			return;
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f), BUFFER_SIZE);
+		try {
+			if (fileName.endsWith(".tar.gz") || fileName.endsWith(".tgz")) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			} else if (!fileName.endsWith(".tar")) {
+				throw new IOException("Cannot write archives of this type: " + f);
+			}
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+		tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+		archive = tar;
+	}
+
+	/**
+	 * Adds a document to the archive.
+	 * 
+	 * @param name
+	 *            the path of the document in the archive
+	 * @param content
+	 *            a buffer with the content of the document
+	 * @param length
+	 *            the number of bytes of the buffer that are content
+	 */
+	public void write(String name, byte[] content, int length) throws IOException {
+		if (zip) {
+			ZipArchiveEntry entry = new ZipArchiveEntry(name);
+			entry.setSize(length);
+			archive.putArchiveEntry(entry);
+		} else {
+			TarArchiveEntry entry = new TarArchiveEntry(name);
+			entry.setSize(length);
+			entry.setModTime(new Date());
+			archive.putArchiveEntry(entry);
+		}
+		archive.write(content, 0, length);
+		archive.closeArchiveEntry();
+		entries++;
+	}
+
+	/**
+	 * @return the number of documents written so far
+	 */
+	public long getEntries() {
+		return entries;
+	}
+
+	@Override
+	public void close() throws IOException {
+		archive.close();
+	}
+}
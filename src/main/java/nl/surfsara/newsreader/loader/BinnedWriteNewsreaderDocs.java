@@ -0,0 +1,214 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.surfsara.newsreader.Compression;
+import nl.surfsara.newsreader.loader.DocumentBinPacker.Bin;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.SequenceFile.Writer.Option;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.log4j.Logger;
+
+/**
+ * A PrivilegedAction that writes bins of NAF documents (see the
+ * DocumentBinPacker class) to sequence files: bin N is written to
+ * destination_N. Several bins are written at the same time; documents are
+ * read as raw bytes and the files are only flushed every syncMegabytes MB and
+ * when they are closed.
+ */
+public class BinnedWriteNewsreaderDocs implements PrivilegedAction<Long> {
+	private static final Logger logger = Logger.getLogger(BinnedWriteNewsreaderDocs.class);
+	private static final long REPORT_INTERVAL = 10000;
+
+	private Configuration conf;
+	private List<Bin> bins;
+	private String destination;
+	private Compression compression;
+	private CompressionCodec codec;
+	private int writers;
+	private long syncBytes;
+	private long totalDocs;
+
+	private AtomicInteger nextBin = new AtomicInteger();
+	private AtomicLong docsWritten = new AtomicLong();
+	private AtomicLong bytesWritten = new AtomicLong();
+	private AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param conf
+	 *            the configuration of the destination file system
+	 * @param bins
+	 *            the bins of documents
+	 * @param destination
+	 *            the path prefix of the sequence files
+	 * @param compression
+	 *            the compression of the sequence files
+	 * @param writers
+	 *            the number of sequence files written at the same time
+	 * @param syncMegabytes
+	 *            the number of MB written to a file between flushes
+	 */
+	public BinnedWriteNewsreaderDocs(Configuration conf, List<Bin> bins, String destination, Compression compression, int writers, int syncMegabytes) {
+		this.conf = conf;
+		this.bins = bins;
+		this.destination = destination;
+		this.compression = compression;
+		this.codec = compression.getCompressionCodec(conf);
+		this.writers = Math.max(1, writers);
+		this.syncBytes = Math.max(1, syncMegabytes) * 1024L * 1024L;
+		for (Bin bin : bins) {
+			totalDocs += bin.getFiles().size();
+		}
+	}
+
+	@Override
+	public Long run() {
+		long tstart = System.currentTimeMillis();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < writers; i++) {
+			Thread t = new Thread(new Writer(), "loader-writer-" + i);
+			t.start();
+			threads.add(t);
+		}
+		try {
+			for (Thread t : threads) {
+				t.join(REPORT_INTERVAL);
+				while (t.isAlive()) {
+					printProgress(tstart);
+					t.join(REPORT_INTERVAL);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Thread t : threads) {
+				t.interrupt();
+			}
+			logger.error("Interrupted while loading documents");
+		}
+		printProgress(tstart);
+		if (errors.get() > 0) {
+			System.out.println(errors.get() + " documents could not be loaded; see the log for details.");
+		}
+		return docsWritten.get();
+	}
+
+	private void printProgress(long tstart) {
+		double seconds = Math.max(1, System.currentTimeMillis() - tstart) / 1000.0;
+		double mb = bytesWritten.get() / (1024.0 * 1024.0);
+		System.out.println(String.format(Locale.ROOT, "Loaded %d of %d documents (%.1f MB) in %.0f s: %.1f documents/s, %.2f MB/s", docsWritten.get(), totalDocs, mb, seconds,
+				docsWritten.get() / seconds, mb / seconds));
+	}
+
+	/**
+	 * Writes the documents of a bin to its own sequence file. When the file
+	 * cannot be written, it is removed and every document of the bin is
+	 * counted once as an error: the unreadable ones when they are read, the
+	 * others (including the ones already appended) when writing fails.
+	 */
+	private void write(int binIndex, Bin bin) throws IOException {
+		Path path = new Path(destination + "_" + binIndex);
+		Option optPath = SequenceFile.Writer.file(path);
+		Option optKey = SequenceFile.Writer.keyClass(Text.class);
+		Option optVal = SequenceFile.Writer.valueClass(Text.class);
+		Option optCom = codec == null ? SequenceFile.Writer.compression(CompressionType.NONE) : SequenceFile.Writer.compression(compression.getType(), codec);
+		SequenceFile.Writer writer = null;
+		int appended = 0;
+		long appendedBytes = 0;
+		int unreadable = 0;
+		try {
+			writer = SequenceFile.createWriter(conf, optPath, optKey, optVal, optCom);
+			Text key = new Text();
+			Text value = new Text();
+			long unsynced = 0;
+			for (File f : bin.getFiles()) {
+				byte[] content;
+				try {
+					content = Files.readAllBytes(f.toPath());
+				} catch (IOException e) {
+					unreadable++;
+					errors.incrementAndGet();
+					logger.error("Could not read document: " + f + ": " + e);
+					continue;
+				}
+				key.set(f.getName());
+				value.set(content);
+				writer.append(key, value);
+				appended++;
+				appendedBytes += content.length;
+				docsWritten.incrementAndGet();
+				bytesWritten.addAndGet(content.length);
+				unsynced += content.length;
+				if (unsynced >= syncBytes) {
+					writer.hflush();
+					unsynced = 0;
+				}
+			}
+			writer.hsync();
+			writer.close();
+		} catch (IOException e) {
+			// The documents already appended are lost with the file
+			docsWritten.addAndGet(-appended);
+			bytesWritten.addAndGet(-appendedBytes);
+			errors.addAndGet(bin.getFiles().size() - unreadable);
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ce) {
+					logger.debug(ce);
+				}
+			}
+			try {
+				path.getFileSystem(conf).delete(path, false);
+			} catch (IOException de) {
+				logger.error("Could not remove sequence file: " + path + ": " + de);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes bins in turn with the other writers.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			int i;
+			while ((i = nextBin.getAndIncrement()) < bins.size() && !Thread.currentThread().isInterrupted()) {
+				try {
+					write(i, bins.get(i));
+				} catch (IOException e) {
+					// The documents of the bin are counted as errors by write
+					logger.error("Could not write bin " + i + " to " + destination + "_" + i + ": " + e);
+				}
+			}
+		}
+	}
+}
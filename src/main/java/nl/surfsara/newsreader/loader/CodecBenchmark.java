@@ -0,0 +1,151 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import nl.surfsara.newsreader.Compression;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.CompressionCodec;
+
+/**
+ * Measures the compression ratio and the compression and decompression
+ * throughput of the available codecs on a sample of local NAF documents. The
+ * documents are compressed as one stream, as in a block compressed sequence
+ * file; each codec is run a few times and the fastest round is reported.
+ */
+public class CodecBenchmark {
+	private static final int ROUNDS = 3;
+	private Configuration conf;
+	private byte[][] sample;
+	private long sampleBytes;
+
+	/**
+	 * @param conf
+	 *            the configuration used to create the codecs
+	 * @param source
+	 *            a local directory with NAF documents
+	 * @param sampleSize
+	 *            the maximum number of documents to read
+	 * @throws IOException
+	 *             When the documents cannot be read
+	 */
+	public CodecBenchmark(Configuration conf, String source, int sampleSize) throws IOException {
+		this.conf = conf;
+		File dir = new File(source);
+		if (!dir.isDirectory()) {
+			throw new IOException("Not a directory: " + source);
+		}
+		List<byte[]> docs = new ArrayList<byte[]>();
+		collect(dir, docs, sampleSize);
+		sample = docs.toArray(new byte[docs.size()][]);
+		for (byte[] doc : sample) {
+			sampleBytes += doc.length;
+		}
+	}
+
+	private void collect(File dir, List<byte[]> docs, int sampleSize) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files);
+		for (File f : files) {
+			if (docs.size() >= sampleSize) {
+				return;
+			}
+			if (f.isDirectory()) {
+				collect(f, docs, sampleSize);
+			} else {
+				docs.add(FileUtils.readFileToByteArray(f));
+			}
+		}
+	}
+
+	/**
+	 * Runs all codecs and returns a table with the results.
+	 */
+	public String run() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT, "Sample: %d documents, %.1f MB%n", sample.length, sampleBytes / (1024.0 * 1024.0)));
+		sb.append(String.format(Locale.ROOT, "%-8s %10s %12s %12s%n", "codec", "ratio", "encode MB/s", "decode MB/s"));
+		for (Compression.Codec codec : Compression.Codec.values()) {
+			if (codec == Compression.Codec.NONE) {
+				continue;
+			}
+			CompressionCodec cc = Compression.createCodec(codec, conf);
+			if (cc == null) {
+				sb.append(String.format(Locale.ROOT, "%-8s not available on this machine%n", codec.getName()));
+				continue;
+			}
+			long encodeNanos = Long.MAX_VALUE;
+			long decodeNanos = Long.MAX_VALUE;
+			byte[] compressed = null;
+			for (int i = 0; i < ROUNDS; i++) {
+				long t0 = System.nanoTime();
+				compressed = compress(cc);
+				long t1 = System.nanoTime();
+				long decompressed = decompress(cc, compressed);
+				long t2 = System.nanoTime();
+				if (decompressed != sampleBytes) {
+					throw new IOException(codec.getName() + " decompressed " + decompressed + " of " + sampleBytes + " bytes.");
+				}
+				encodeNanos = Math.min(encodeNanos, t1 - t0);
+				decodeNanos = Math.min(decodeNanos, t2 - t1);
+			}
+			double mb = sampleBytes / (1024.0 * 1024.0);
+			sb.append(String.format(Locale.ROOT, "%-8s %10.2f %12.1f %12.1f%n", codec.getName(), sampleBytes / (double) Math.max(1, compressed.length), mb / (Math.max(1, encodeNanos) / 1e9),
+					mb / (Math.max(1, decodeNanos) / 1e9)));
+		}
+		return sb.toString();
+	}
+
+	private byte[] compress(CompressionCodec cc) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE, sampleBytes / 4));
+		OutputStream out = cc.createOutputStream(bos);
+		for (byte[] doc : sample) {
+			out.write(doc);
+		}
+		out.close();
+		return bos.toByteArray();
+	}
+
+	private long decompress(CompressionCodec cc, byte[] compressed) throws IOException {
+		InputStream in = cc.createInputStream(new ByteArrayInputStream(compressed));
+		byte[] buffer = new byte[64 * 1024];
+		long total = 0;
+		try {
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				total += n;
+			}
+		} finally {
+			in.close();
+		}
+		return total;
+	}
+}
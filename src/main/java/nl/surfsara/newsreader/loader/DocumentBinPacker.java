@@ -0,0 +1,204 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Divides documents over a number of bins (sequence files, and so map tasks)
+ * with roughly equal expected processing time. The cost of a document is
+ * estimated from its size as overhead + size^exponent (in bytes); an exponent
+ * above 1 models components that slow down on large documents. The documents
+ * are packed with the longest processing time first heuristic: from the most
+ * to the least expensive, every document goes to the bin with the lowest cost
+ * so far.
+ * 
+ * Documents at or above the isolation size get a bin of their own, so a few
+ * very large documents do not hold up a batch of small ones.
+ */
+public class DocumentBinPacker {
+	private double costExponent = 1.0;
+	private long docOverheadBytes = 4096;
+	private long isolateBytes = Long.MAX_VALUE;
+
+	/**
+	 * @param costExponent
+	 *            the exponent of the document size in the cost estimate
+	 */
+	public void setCostExponent(double costExponent) {
+		this.costExponent = costExponent;
+	}
+
+	/**
+	 * @param docOverheadBytes
+	 *            the fixed cost per document, expressed in bytes
+	 */
+	public void setDocOverheadBytes(long docOverheadBytes) {
+		this.docOverheadBytes = docOverheadBytes;
+	}
+
+	/**
+	 * @param isolateBytes
+	 *            the size from which documents get a bin of their own
+	 */
+	public void setIsolateBytes(long isolateBytes) {
+		this.isolateBytes = isolateBytes;
+	}
+
+	/**
+	 * @return the estimated cost of a document of the given size
+	 */
+	public double getCost(long size) {
+		return docOverheadBytes + Math.pow(size, costExponent);
+	}
+
+	/**
+	 * Gets the number of bins needed so that each bin takes about the given
+	 * time.
+	 * 
+	 * @param files
+	 *            the documents
+	 * @param minutesPerBin
+	 *            the target processing time of a bin
+	 * @param bytesPerMinute
+	 *            the expected throughput of a map task in (cost) bytes per
+	 *            minute
+	 * @return the number of bins
+	 */
+	public int getBinCount(List<File> files, double minutesPerBin, double bytesPerMinute) {
+		double total = 0;
+		for (File f : files) {
+			total += getCost(f.length());
+		}
+		return (int) Math.max(1, Math.ceil(total / (minutesPerBin * bytesPerMinute)));
+	}
+
+	/**
+	 * Packs documents into bins.
+	 * 
+	 * @param files
+	 *            the documents
+	 * @param binCount
+	 *            the target number of bins; the bins of isolated documents
+	 *            take the place of bins of the same total cost
+	 * @return the bins from the highest to the lowest cost
+	 */
+	public List<Bin> pack(List<File> files, int binCount) {
+		// Read the sizes once; the files are sorted from large to small
+		List<Document> docs = new ArrayList<Document>(files.size());
+		for (File f : files) {
+			docs.add(new Document(f, f.length()));
+		}
+		Collections.sort(docs);
+
+		List<Bin> bins = new ArrayList<Bin>();
+		int first = 0;
+		while (first < docs.size() && docs.get(first).size >= isolateBytes) {
+			Bin bin = new Bin(true);
+			bin.add(docs.get(first));
+			bins.add(bin);
+			first++;
+		}
+
+		// The other documents fill bins of the average cost of all bins
+		double total = 0;
+		double rest = 0;
+		for (int i = 0; i < docs.size(); i++) {
+			total += docs.get(i).cost;
+			if (i >= first) {
+				rest += docs.get(i).cost;
+			}
+		}
+		int packed = (int) Math.min(Math.max(1, Math.ceil(binCount * rest / Math.max(1, total) - 1e-9)), docs.size() - first);
+		PriorityQueue<Bin> lowest = new PriorityQueue<Bin>();
+		for (int i = 0; i < packed; i++) {
+			lowest.add(new Bin(false));
+		}
+		for (int i = first; i < docs.size(); i++) {
+			Bin bin = lowest.poll();
+			bin.add(docs.get(i));
+			lowest.add(bin);
+		}
+		bins.addAll(lowest);
+		Collections.sort(bins, Collections.reverseOrder());
+		return bins;
+	}
+
+	private class Document implements Comparable<Document> {
+		private final File file;
+		private final long size;
+		private final double cost;
+
+		private Document(File file, long size) {
+			this.file = file;
+			this.size = size;
+			this.cost = getCost(size);
+		}
+
+		@Override
+		public int compareTo(Document other) {
+			return Long.compare(other.size, size);
+		}
+	}
+
+	/**
+	 * A group of documents that is written to one sequence file.
+	 */
+	public static class Bin implements Comparable<Bin> {
+		private final List<File> files = new ArrayList<File>();
+		private final boolean isolated;
+		private double cost;
+		private long bytes;
+
+		private Bin(boolean isolated) {
+			this.isolated = isolated;
+		}
+
+		private void add(Document doc) {
+			files.add(doc.file);
+			bytes += doc.size;
+			cost += doc.cost;
+		}
+
+		public List<File> getFiles() {
+			return files;
+		}
+
+		/**
+		 * @return true when the bin holds a single large document
+		 */
+		public boolean isIsolated() {
+			return isolated;
+		}
+
+		public double getCost() {
+			return cost;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public int compareTo(Bin other) {
+			return Double.compare(cost, other.cost);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * A side index for a directory of sequence files (such as the output of the
+ * pipeline) that finds a document by name without scanning all files. The
+ * index is a MapFile in the _index subdirectory (ignored by Hadoop input
+ * formats) that maps every document name to its sequence file and a position
+ * just before the sync mark that precedes it. A lookup reads the index, syncs
+ * to that position and reads at most one block (or sync interval) of records.
+ * 
+ * The index is built by reading only the keys of all files once. The entries
+ * are sorted on disk with a SequenceFile.Sorter, so the number of documents is
+ * not limited by memory.
+ */
+public class DocumentIndex implements Closeable {
+	private static final Logger logger = Logger.getLogger(DocumentIndex.class);
+	public static final String INDEX_DIR = "_index";
+
+	private Configuration conf;
+	private FileSystem fs;
+	private Path dir;
+	private MapFile.Reader index;
+
+	/**
+	 * @param conf
+	 *            the configuration of the file system
+	 * @param dir
+	 *            the directory with the sequence files
+	 */
+	public DocumentIndex(Configuration conf, Path dir) throws IOException {
+		this.conf = conf;
+		this.fs = dir.getFileSystem(conf);
+		this.dir = dir;
+	}
+
+	/**
+	 * Builds (or rebuilds) the index of all sequence files in the directory.
+	 * 
+	 * @return the number of documents in the index
+	 */
+	public long build() throws IOException {
+		Path indexDir = new Path(dir, INDEX_DIR);
+		Path unsorted = new Path(dir, INDEX_DIR + ".tmp");
+		fs.delete(indexDir, true);
+		long documents = 0;
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(unsorted), SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(Text.class), SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+		try {
+			for (Path file : listSequenceFiles()) {
+				documents += addEntries(file, writer);
+			}
+		} finally {
+			writer.close();
+		}
+		// MapFile.fix() cannot index block compressed data, so the sorted
+		// entries are copied into a MapFile instead
+		Path sorted = new Path(dir, INDEX_DIR + ".sorted");
+		SequenceFile.Sorter sorter = new SequenceFile.Sorter(fs, Text.class, Text.class, conf);
+		sorter.sort(new Path[] { unsorted }, sorted, true);
+		SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(sorted));
+		MapFile.Writer mapFile = new MapFile.Writer(conf, indexDir, MapFile.Writer.keyClass(Text.class), MapFile.Writer.valueClass(Text.class),
+				MapFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+		try {
+			Text key = new Text();
+			Text val = new Text();
+			while (r.next(key, val)) {
+				mapFile.append(key, val);
+			}
+		} finally {
+			r.close();
+			mapFile.close();
+		}
+		fs.delete(sorted, false);
+		logger.info("Indexed " + documents + " documents in: " + dir);
+		return documents;
+	}
+
+	/**
+	 * Checks whether the directory has an index.
+	 */
+	public boolean exists() throws IOException {
+		return fs.exists(new Path(new Path(dir, INDEX_DIR), MapFile.INDEX_FILE_NAME));
+	}
+
+	/**
+	 * Looks up a document.
+	 * 
+	 * @param name
+	 *            the name of the document
+	 * @return the content of the document or null when it is not in the index
+	 */
+	public byte[] get(String name) throws IOException {
+		if (index == null) {
+			index = new MapFile.Reader(new Path(dir, INDEX_DIR), conf);
+		}
+		Text location = new Text();
+		if (index.get(new Text(name), location) == null) {
+			return null;
+		}
+		String[] parts = location.toString().split("\t");
+		Path file = new Path(dir, parts[0]);
+		SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+		try {
+			long position = Long.parseLong(parts[1]);
+			if (position > r.getPosition()) {
+				r.sync(position);
+			}
+			Text key = new Text();
+			Text val = new Text();
+			while (r.next(key, val)) {
+				if (name.equals(key.toString())) {
+					return Arrays.copyOf(val.getBytes(), val.getLength());
+				}
+			}
+		} finally {
+			r.close();
+		}
+		logger.warn("Document " + name + " is in the index but not in: " + file + "; rebuild the index.");
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+	}
+
+	private Path[] listSequenceFiles() throws IOException {
+		FileStatus[] statuses = fs.listStatus(dir);
+		Arrays.sort(statuses);
+		int n = 0;
+		Path[] files = new Path[statuses.length];
+		for (FileStatus status : statuses) {
+			String name = status.getPath().getName();
+			// Skip the index, the _SUCCESS marker and checksum files
+			if (status.isFile() && !name.startsWith("_") && !name.startsWith(".")) {
+				files[n++] = status.getPath();
+			}
+		}
+		return Arrays.copyOf(files, n);
+	}
+
+	/**
+	 * Reads the keys of a sequence file and writes an index entry for every
+	 * document. The position of an entry is where the reader was before it
+	 * passed the last sync mark before the document (or the end of the
+	 * header). Only the keys are read, so in a block compressed file this is
+	 * within the values of the previous block; SequenceFile.Reader.sync()
+	 * finds the sync mark from there.
+	 */
+	private long addEntries(Path file, SequenceFile.Writer writer) throws IOException {
+		SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file));
+		long documents = 0;
+		try {
+			Text key = new Text();
+			long syncPosition = r.getPosition();
+			long position = syncPosition;
+			while (r.next(key)) {
+				if (r.syncSeen()) {
+					syncPosition = position;
+				}
+				writer.append(key, new Text(file.getName() + "\t" + syncPosition));
+				documents++;
+				position = r.getPosition();
+			}
+		} finally {
+			r.close();
+		}
+		return documents;
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * A PrivilegedAction that, as the logged in user, gets single documents by
+ * name from a directory of sequence files with a DocumentIndex and stores
+ * them on the local file system. The index is built first when the directory
+ * has none.
+ */
+public class GetNewsreaderDocs implements PrivilegedAction<Long> {
+	private static final Logger logger = Logger.getLogger(GetNewsreaderDocs.class);
+
+	private Configuration conf;
+	private String source;
+	private String dest;
+	private List<String> names;
+
+	/**
+	 * @param conf
+	 *            the configuration of the source file system
+	 * @param source
+	 *            a directory of sequence files
+	 * @param dest
+	 *            a local directory
+	 * @param names
+	 *            the names of the documents to get
+	 */
+	public GetNewsreaderDocs(Configuration conf, String source, String dest, List<String> names) {
+		this.conf = conf;
+		this.source = source;
+		this.dest = dest;
+		this.names = names;
+	}
+
+	@Override
+	public Long run() {
+		long found = 0;
+		File destDir = new File(dest);
+		if (!destDir.isDirectory() && !destDir.mkdirs()) {
+			System.out.println("Destination should be a directory.");
+			return found;
+		}
+		DocumentIndex index = null;
+		try {
+			index = new DocumentIndex(conf, new Path(source));
+			if (!index.exists()) {
+				System.out.println("No index in " + source + "; indexing the documents first...");
+				index.build();
+			}
+			for (String name : names) {
+				byte[] content = ParallelReadNewsreaderDocs.isSafeName(name) ? index.get(name) : null;
+				if (content == null) {
+					System.out.println("Document not found: " + name);
+					continue;
+				}
+				File outputFile = new File(destDir, name);
+				outputFile.getParentFile().mkdirs();
+				FileOutputStream fos = new FileOutputStream(outputFile);
+				try {
+					fos.write(content);
+				} finally {
+					fos.close();
+				}
+				found++;
+			}
+		} catch (IOException e) {
+			logger.error(e);
+			System.out.println("Cannot get documents: " + e.getMessage());
+		} finally {
+			if (index != null) {
+				try {
+					index.close();
+				} catch (IOException e) {
+					logger.debug(e);
+				}
+			}
+		}
+		return found;
+	}
+}
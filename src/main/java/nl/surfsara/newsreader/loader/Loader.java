@@ -15,8 +15,18 @@
  */
 package nl.surfsara.newsreader.loader;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.security.PrivilegedExceptionAction;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import nl.surfsara.newsreader.Compression;
+import nl.surfsara.newsreader.ToolOptions;
+import nl.surfsara.newsreader.loader.DocumentBinPacker.Bin;
+import nl.surfsara.newsreader.loader.ParallelReadNewsreaderDocs.Format;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
@@ -44,24 +54,76 @@ public class Loader implements Runnable {
 	public void run() {
 		PropertyConfigurator.configure("log4jconfig.properties");
 		boolean showusage = false;
-		if (args.length < 3) {
+		ToolOptions options = new ToolOptions(args);
+		String[] positional = options.getPositional();
+		if (positional.length >= 2 && "codecs".equals(positional[0])) {
+			try {
+				int sampleSize = positional.length > 2 ? Integer.parseInt(positional[2]) : 100;
+				System.out.println("Comparing compression codecs on up to " + sampleSize + " documents from " + positional[1] + "...");
+				CodecBenchmark cb = new CodecBenchmark(new Configuration(), positional[1], sampleSize);
+				System.out.print(cb.run());
+			} catch (IOException e) {
+				logger.debug(e);
+				System.out.println("Failed to compare codecs: " + e.getMessage());
+			} catch (NumberFormatException e) {
+				logger.debug(e);
+				System.out.println("Sample size is not specified correctly: " + e.getMessage());
+			}
+		} else if (positional.length >= 2 && "index".equals(positional[0])) {
+			final String dir = positional[1];
+			System.out.println("Indexing documents in " + dir + "...");
+			try {
+				init();
+				Long indexed = loginUser.doAs(new PrivilegedExceptionAction<Long>() {
+					@Override
+					public Long run() throws IOException {
+						return new DocumentIndex(conf, new Path(dir)).build();
+					}
+				});
+				System.out.println("Indexed " + indexed + " documents in " + dir + ".");
+			} catch (IOException e) {
+				logger.debug(e);
+				System.out.println("Failed to index documents: " + e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (positional.length < 3) {
 			showusage = true;
 		} else {
-			String mode = args[0];
-			String source = args[1];
-			String dest = args[2];
+			String mode = positional[0];
+			String source = positional[1];
+			String dest = positional[2];
 
 			if ("load".equals(mode)) {
-				if (args.length < 4) {
+				boolean binPack = options.has("bin-pack");
+				if (positional.length < 4 && !binPack) {
 					showusage = true;
 				} else {
 					System.out.println("Uploading documents to Hadoop...");
-					System.out.println("Using " + Charset.defaultCharset() + " as default encoding.");
+					// Archives and globs are only read by the parallel loader
+					boolean parallel = options.has("parallel") || !new File(source).isDirectory();
+					if (!parallel && !binPack) {
+						System.out.println("Using " + Charset.defaultCharset() + " as default encoding.");
+					}
 					try {
+						Compression compression = Compression.parse(options.get("codec", WriteNewsreaderDocs.DEFAULT_COMPRESSION.toString()));
 						init();
-						int docsPerFile = Integer.parseInt(args[3]);
-						WriteNewsreaderDocs wnd = new WriteNewsreaderDocs(conf, source, dest, docsPerFile);
-						Long filesWritten = loginUser.doAs(wnd);
+						compression = compression.resolve(conf);
+						System.out.println("Compressing sequencefiles with " + compression + ".");
+						Long filesWritten;
+						if (binPack) {
+							List<Bin> bins = packDocuments(source, options);
+							filesWritten = loginUser.doAs(new BinnedWriteNewsreaderDocs(conf, bins, dest, compression, options.getInt("writers", 4), options.getInt("sync-mb", 64)));
+						} else if (parallel) {
+							int docsPerFile = Integer.parseInt(positional[3]);
+							int readers = options.getInt("readers", 4);
+							int writers = options.getInt("writers", 4);
+							int syncMb = options.getInt("sync-mb", 64);
+							filesWritten = loginUser.doAs(new ParallelWriteNewsreaderDocs(conf, source, dest, docsPerFile, compression, readers, writers, syncMb));
+						} else {
+							int docsPerFile = Integer.parseInt(positional[3]);
+							filesWritten = loginUser.doAs(new WriteNewsreaderDocs(conf, source, dest, docsPerFile, compression));
+						}
 						System.out.println("Wrote " + filesWritten + " documents from " + source + " to sequencefiles in " + dest + ".");
 					} catch (IOException e) {
 						logger.debug(e);
@@ -69,14 +131,41 @@ public class Loader implements Runnable {
 					} catch (NumberFormatException e) {
 						logger.debug(e);
 						System.out.println("Documents per file is not specified correctly: " + e.getMessage());
+					} catch (IllegalArgumentException e) {
+						// E.g. an unknown codec or a bin packing source that is not a directory
+						logger.debug(e);
+						System.out.println(e.getMessage());
+					}
+				}
+			} else if ("get".equals(mode)) {
+				if (positional.length < 4) {
+					showusage = true;
+				} else {
+					try {
+						init();
+						List<String> names = Arrays.asList(positional).subList(3, positional.length);
+						Long found = loginUser.doAs(new GetNewsreaderDocs(conf, source, dest, names));
+						System.out.println("Got " + found + " of " + names.size() + " documents from " + source + " to " + dest + ".");
+					} catch (IOException e) {
+						logger.debug(e);
+						System.out.println("Failed login to Hadoop: " + e.getMessage());
 					}
 				}
 			} else if ("unload".equals(mode)) {
 				System.out.println("Downloading documents from Hadoop...");
 				try {
 					init();
-					ReadNewsreaderDocs rnd = new ReadNewsreaderDocs(conf, source, dest);
-					Long filesRead = loginUser.doAs(rnd);
+					Long filesRead;
+					if (options.has("parallel") || options.has("format")) {
+						Format format = Format.fromName(options.get("format", Format.FILES.getName()));
+						ParallelReadNewsreaderDocs prnd = new ParallelReadNewsreaderDocs(conf, source, dest, format, options.getInt("readers", 4));
+						prnd.setDocsPerArchive(options.getInt("docs-per-archive", 10000));
+						prnd.setShards(options.getInt("shards", 1000));
+						filesRead = loginUser.doAs(prnd);
+					} else {
+						ReadNewsreaderDocs rnd = new ReadNewsreaderDocs(conf, source, dest);
+						filesRead = loginUser.doAs(rnd);
+					}
 					System.out.println("Read " + filesRead + " documents from sequencefiles in " + source + " to " + dest + ".");
 				} catch (IOException e) {
 					logger.debug(e);
@@ -84,6 +173,9 @@ public class Loader implements Runnable {
 				} catch (NumberFormatException e) {
 					logger.debug(e);
 					System.out.println("Documents per file is not specified correctly: " + e.getMessage());
+				} catch (IllegalArgumentException e) {
+					logger.debug(e);
+					System.out.println(e.getMessage());
 				}
 
 			} else {
@@ -95,6 +187,47 @@ public class Loader implements Runnable {
 		}
 	}
 
+	/**
+	 * Divides the documents in a local directory over bins of about equal
+	 * expected processing time and prints the result.
+	 */
+	private List<Bin> packDocuments(String source, ToolOptions options) {
+		File dir = new File(source);
+		if (!dir.isDirectory()) {
+			throw new IllegalArgumentException("File should be a directory: " + source);
+		}
+		List<File> files = ParallelWriteNewsreaderDocs.listFiles(dir);
+		DocumentBinPacker packer = new DocumentBinPacker();
+		packer.setCostExponent(options.getDouble("cost-exponent", 1.0));
+		packer.setDocOverheadBytes(options.getLong("doc-overhead-bytes", 4096));
+		if (options.has("isolate-mb")) {
+			packer.setIsolateBytes((long) (options.getDouble("isolate-mb", 0) * 1024 * 1024));
+		}
+		int splits;
+		if (options.has("minutes-per-split")) {
+			splits = packer.getBinCount(files, options.getDouble("minutes-per-split", 60), options.getDouble("mb-per-minute", 1) * 1024 * 1024);
+		} else {
+			splits = options.getInt("splits", 100);
+		}
+		List<Bin> bins = packer.pack(files, splits);
+		int isolated = 0;
+		double maxCost = 0;
+		double minCost = Double.MAX_VALUE;
+		for (Bin bin : bins) {
+			if (bin.isIsolated()) {
+				isolated++;
+			} else {
+				maxCost = Math.max(maxCost, bin.getCost());
+				minCost = Math.min(minCost, bin.getCost());
+			}
+		}
+		System.out.println("Packed " + files.size() + " documents into " + bins.size() + " sequencefiles (" + isolated + " with a single large document).");
+		if (bins.size() > isolated) {
+			System.out.println(String.format(Locale.ROOT, "Estimated cost of the other sequencefiles: %.1f to %.1f MB.", minCost / (1024 * 1024), maxCost / (1024 * 1024)));
+		}
+		return bins;
+	}
+
 	private void showUsage() {
 		System.out.println("Usage: ");
 		System.out.println();
@@ -103,12 +236,43 @@ public class Loader implements Runnable {
 		System.out.println("When downloading documents are read from one or more sequencefiles and stored into their respective documents.");
 		System.out.println();
 		System.out.println("The loader expects the following arguments: ");
-		System.out.println(" 1.) a mode: can be one of 'load' or 'unload' to upload to, or download from, Hadoop respectively.");
+		System.out.println(" 1.) a mode: can be one of 'load' or 'unload' to upload to, or download from, Hadoop respectively, or 'get' (see below).");
 		System.out.println(" 2.) a source: for download this should be a path on HDFS, for upload a path on the local filesystem.");
 		System.out.println(" 3.) a destination: for download this should be a path on the local filesystem, for upload a path on HDFS.");
 		System.out.println(" 4.) a documents per file setting (only for upload) the tool can distribute the files to one or more destination sequencefiles.");
 		System.out.println("     Use a setting of -1 to write all documents to one file only."); 
 		System.out.println();
+		System.out.println("When uploading the compression of the sequencefiles can be chosen with --codec=CODEC[:TYPE] where CODEC is one of");
+		System.out.println("none, deflate, gzip, snappy, lz4, zstd or bzip2 and TYPE is block (default) or record. Codecs that need a native library");
+		System.out.println("that is not available fall back to deflate. The default is deflate:block.");
+		System.out.println();
+		System.out.println("Large collections are uploaded faster with --parallel: documents are then read as raw bytes (without re-encoding) by");
+		System.out.println("--readers=N threads (default 4) and written to --writers=N sequencefiles at the same time (default 4), which are only");
+		System.out.println("flushed every --sync-mb=N MB (default 64) and when they are closed. Throughput is printed while uploading.");
+		System.out.println();
+		System.out.println("The source can also be a tar, tar.gz, tar.bz2, zip or gz archive or a glob such as /foo/*.tar.gz. Archives are uploaded");
+		System.out.println("without unpacking them (one reader per archive) with the path in the archive as document name; this implies --parallel.");
+		System.out.println();
+		System.out.println("With --bin-pack the documents are divided over sequencefiles (and so map tasks) of about equal expected processing time");
+		System.out.println("instead of by count; the documents per file argument is then not needed. The cost of a document is estimated as");
+		System.out.println("--doc-overhead-bytes (default 4096) + size^--cost-exponent (default 1.0). Give the number of files with --splits=N (default 100)");
+		System.out.println("or a target time with --minutes-per-split=M and the expected throughput of a map task with --mb-per-minute=X (see the");
+		System.out.println("performance report of the pipeline). Documents of at least --isolate-mb=X MB get a file of their own. --writers and --sync-mb");
+		System.out.println("apply as for --parallel.");
+		System.out.println();
+		System.out.println("When downloading, --parallel reads --readers=N sequencefiles at the same time (default 4) and copies the documents without");
+		System.out.println("decoding them. --format=F chooses how they are stored: files (default, one file per document), sharded (one file per");
+		System.out.println("document in --shards=N subdirectories, default 1000), tar.gz or zip (archives of --docs-per-archive=N documents, default");
+		System.out.println("10000). Throughput is printed while downloading.");
+		System.out.println();
+		System.out.println("The mode 'get' copies single documents by name from a directory of sequencefiles (such as the pipeline output) to a local");
+		System.out.println("directory using an index, instead of scanning all files: java -jar newsreader-hadoop.jar loader get /foo /bar doc1.naf doc2.naf");
+		System.out.println("The index is written by the pipeline with --index, or with: java -jar newsreader-hadoop.jar loader index /foo");
+		System.out.println("It is built on the first get when it is missing; rebuild it when the files in the directory change.");
+		System.out.println();
+		System.out.println("The mode 'codecs' compares the compression ratio and speed of the available codecs on local documents:");
+		System.out.println("java -jar newsreader-hadoop.jar loader codecs /foo [number of documents to sample, default 100]");
+		System.out.println();
 		System.out.println("Some examples:");
 		System.out.println("Upload /foo/* to a single file in /bar/file_0 on HDFS: java -jar newsreader-hadoop.jar loader load /foo /bar/file -1");
 		System.out.println("Upload /foo/* to files in /bar/file/docs_{0..} on HDFS with 10 docs per file: java -jar newsreader-hadoop.jar loader load /foo /bar/file/docs 10");
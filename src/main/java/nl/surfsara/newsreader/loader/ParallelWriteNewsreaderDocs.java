@@ -0,0 +1,441 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.surfsara.newsreader.Compression;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.SequenceFile.Writer.Option;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.log4j.Logger;
+
+/**
+ * A PrivilegedAction that writes NAF documents to sequence files like
+ * WriteNewsreaderDocs, but with several threads: reader threads read the files
+ * with NIO as raw bytes (no decoding and re-encoding of the text) and writer
+ * threads each write their own sequence files. Instead of flushing after every
+ * document, a writer only flushes every syncMegabytes MB and when it closes a
+ * file. Progress is printed while loading.
+ * 
+ * The source can be a directory, a file or a glob (e.g. /feeds/*.tar.gz).
+ * Archives (see the ArchiveReader class) are streamed entry by entry, each by
+ * one reader, with the path in the archive as document name.
+ * 
+ * The files are named destination_0, destination_1, ... as with
+ * WriteNewsreaderDocs, but the order of the documents over the files is not
+ * deterministic.
+ * 
+ * A writer that fails stops, and the other writers take over its share. The
+ * documents in the file it was writing are counted as errors and the file is
+ * removed. When no writer is left, the remaining documents are read and
+ * discarded (and counted as errors) so the readers do not block.
+ */
+public class ParallelWriteNewsreaderDocs implements PrivilegedAction<Long> {
+	private static final Logger logger = Logger.getLogger(ParallelWriteNewsreaderDocs.class);
+	private static final Doc END = new Doc(null, null);
+	private static final long REPORT_INTERVAL = 10000;
+
+	private Configuration conf;
+	private String source;
+	private String destination;
+	private int docsPerFile;
+	private Compression compression;
+	private CompressionCodec codec;
+	private int readers;
+	private int writers;
+	private long syncBytes;
+
+	private BlockingQueue<Doc> queue;
+	private List<File> files;
+	private AtomicInteger nextInputFile = new AtomicInteger();
+	private AtomicInteger nextOutputFile = new AtomicInteger();
+	private AtomicInteger activeReaders = new AtomicInteger();
+	private AtomicInteger activeWriters = new AtomicInteger();
+	private AtomicInteger filesRead = new AtomicInteger();
+	private AtomicLong docsWritten = new AtomicLong();
+	private AtomicLong bytesWritten = new AtomicLong();
+	private AtomicLong errors = new AtomicLong();
+
+	/**
+	 * @param conf
+	 *            the configuration of the destination file system
+	 * @param source
+	 *            a local directory with NAF documents
+	 * @param destination
+	 *            the path prefix of the sequence files
+	 * @param docsPerFile
+	 *            the number of documents per sequence file or -1 for one file
+	 *            per writer
+	 * @param compression
+	 *            the compression of the sequence files
+	 * @param readers
+	 *            the number of threads reading documents
+	 * @param writers
+	 *            the number of sequence files written at the same time
+	 * @param syncMegabytes
+	 *            the number of MB a writer writes between flushes
+	 */
+	public ParallelWriteNewsreaderDocs(Configuration conf, String source, String destination, int docsPerFile, Compression compression, int readers, int writers, int syncMegabytes) {
+		this.conf = conf;
+		this.source = source;
+		this.destination = destination;
+		this.docsPerFile = docsPerFile;
+		this.compression = compression;
+		this.codec = compression.getCompressionCodec(conf);
+		this.readers = Math.max(1, readers);
+		this.writers = Math.max(1, writers);
+		this.syncBytes = Math.max(1, syncMegabytes) * 1024L * 1024L;
+		this.queue = new ArrayBlockingQueue<Doc>(16 * this.writers);
+	}
+
+	@Override
+	public Long run() {
+		try {
+			files = listSources(source);
+		} catch (IOException e) {
+			logger.error(e);
+			System.out.println("Cannot read documents: " + e.getMessage());
+			return 0L;
+		}
+		System.out.println("Loading documents from " + files.size() + " files with " + readers + " readers and " + writers + " writers...");
+
+		long tstart = System.currentTimeMillis();
+		activeReaders.set(readers);
+		List<Thread> readerThreads = new ArrayList<Thread>();
+		for (int i = 0; i < readers; i++) {
+			Thread t = new Thread(new Reader(), "loader-reader-" + i);
+			t.start();
+			readerThreads.add(t);
+		}
+		activeWriters.set(writers);
+		List<Thread> writerThreads = new ArrayList<Thread>();
+		for (int i = 0; i < writers; i++) {
+			Thread t = new Thread(new Writer(), "loader-writer-" + i);
+			t.start();
+			writerThreads.add(t);
+		}
+		try {
+			for (Thread t : writerThreads) {
+				t.join(REPORT_INTERVAL);
+				while (t.isAlive()) {
+					printProgress(tstart);
+					t.join(REPORT_INTERVAL);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for (Thread t : readerThreads) {
+				t.interrupt();
+			}
+			for (Thread t : writerThreads) {
+				t.interrupt();
+			}
+			logger.error("Interrupted while loading documents");
+		}
+		printProgress(tstart);
+		if (errors.get() > 0) {
+			System.out.println(errors.get() + " documents could not be loaded; see the log for details.");
+		}
+		return docsWritten.get();
+	}
+
+	private void printProgress(long tstart) {
+		double seconds = Math.max(1, System.currentTimeMillis() - tstart) / 1000.0;
+		double mb = bytesWritten.get() / (1024.0 * 1024.0);
+		System.out.println(String.format(Locale.ROOT, "Loaded %d documents (%.1f MB) from %d of %d files in %.0f s: %.1f documents/s, %.2f MB/s", docsWritten.get(), mb, filesRead.get(),
+				files.size(), seconds, docsWritten.get() / seconds, mb / seconds));
+	}
+
+	/**
+	 * Lists the files in a directory and its subdirectories.
+	 * 
+	 * @param dir
+	 *            the directory
+	 * @return the files sorted by path
+	 */
+	static List<File> listFiles(File dir) {
+		List<File> result = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		if (children != null) {
+			Arrays.sort(children);
+			for (File f : children) {
+				if (f.isFile()) {
+					result.add(f);
+				} else {
+					result.addAll(listFiles(f));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Lists the input files of a source.
+	 * 
+	 * @param source
+	 *            a directory (searched recursively), a file or a glob in the
+	 *            last part of the path
+	 * @return the files sorted by path
+	 * @throws FileNotFoundException
+	 *             When the source does not exist or the glob matches nothing
+	 */
+	static List<File> listSources(String source) throws FileNotFoundException {
+		File f = new File(source);
+		String pattern = f.getName();
+		if (!f.exists() && (pattern.contains("*") || pattern.contains("?") || pattern.contains("["))) {
+			File dir = f.getAbsoluteFile().getParentFile();
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			File[] matches = dir.listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File candidate) {
+					return candidate.isFile() && matcher.matches(candidate.toPath().getFileName());
+				}
+			});
+			if (matches == null || matches.length == 0) {
+				throw new FileNotFoundException("No files match: " + source);
+			}
+			Arrays.sort(matches);
+			return Arrays.asList(matches);
+		}
+		if (!f.exists()) {
+			throw new FileNotFoundException("File does not exist: " + f);
+		}
+		if (!f.canRead()) {
+			throw new IllegalArgumentException("File cannot be read: " + f);
+		}
+		return f.isDirectory() ? listFiles(f) : Collections.singletonList(f);
+	}
+
+	private Path nextFile() {
+		return new Path(destination + "_" + nextOutputFile.getAndIncrement());
+	}
+
+	private SequenceFile.Writer createWriter(Path file) throws IOException {
+		Option optPath = SequenceFile.Writer.file(file);
+		Option optKey = SequenceFile.Writer.keyClass(Text.class);
+		Option optVal = SequenceFile.Writer.valueClass(Text.class);
+		Option optCom = codec == null ? SequenceFile.Writer.compression(CompressionType.NONE) : SequenceFile.Writer.compression(compression.getType(), codec);
+		return SequenceFile.createWriter(conf, optPath, optKey, optVal, optCom);
+	}
+
+	/**
+	 * Reads the input files in turn with the other readers.
+	 */
+	private class Reader implements Runnable {
+		@Override
+		public void run() {
+			File f = null;
+			try {
+				int i;
+				while ((i = nextInputFile.getAndIncrement()) < files.size()) {
+					f = files.get(i);
+					try {
+						if (ArchiveReader.isArchive(f)) {
+							readArchive(f);
+						} else {
+							queue.put(new Doc(f.getName(), Files.readAllBytes(f.toPath())));
+						}
+					} catch (IOException e) {
+						errors.incrementAndGet();
+						logger.error("Could not read document: " + f + ": " + e);
+					} catch (RuntimeException e) {
+						// E.g. a corrupt archive header or a file over 2 GB
+						errors.incrementAndGet();
+						logger.error("Could not read document: " + f + ": " + e);
+					}
+					filesRead.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// Loading is stopped
+			} catch (Error e) {
+				errors.incrementAndGet();
+				logger.error("Reader stopped while reading: " + f + ": " + e);
+				throw e;
+			} finally {
+				// The last reader tells the writers that the input has ended
+				if (activeReaders.decrementAndGet() == 0) {
+					endInput();
+				}
+			}
+		}
+
+		private void endInput() {
+			try {
+				for (int w = 0; w < writers; w++) {
+					queue.put(END);
+				}
+			} catch (InterruptedException e) {
+				// Loading is stopped
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void readArchive(File f) throws IOException, InterruptedException {
+		ArchiveReader archive = new ArchiveReader(f);
+		try {
+			while (archive.next()) {
+				queue.put(new Doc(archive.getName(), archive.getContent()));
+			}
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Appends documents to its own sequence files until the end of the input
+	 * or until writing fails.
+	 */
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			SequenceFile.Writer writer = null;
+			Path file = null;
+			Doc pending = null;
+			int docsInFile = 0;
+			long bytesInFile = 0;
+			long unsynced = 0;
+			boolean failed = false;
+			Text key = new Text();
+			Text value = new Text();
+			try {
+				while (true) {
+					Doc doc = queue.take();
+					if (doc == END) {
+						break;
+					}
+					pending = doc;
+					if (writer == null) {
+						file = nextFile();
+						writer = createWriter(file);
+					}
+					key.set(doc.name);
+					value.set(doc.content);
+					writer.append(key, value);
+					pending = null;
+					docsInFile++;
+					bytesInFile += doc.content.length;
+					unsynced += doc.content.length;
+					docsWritten.incrementAndGet();
+					bytesWritten.addAndGet(doc.content.length);
+					if (docsPerFile > 0 && docsInFile >= docsPerFile) {
+						close(writer);
+						writer = null;
+						docsInFile = 0;
+						bytesInFile = 0;
+						unsynced = 0;
+					} else if (unsynced >= syncBytes) {
+						writer.hflush();
+						unsynced = 0;
+					}
+				}
+			} catch (IOException e) {
+				failed = true;
+				logger.error("Writing sequence file: " + file + " failed: " + e);
+				// The documents in the file are lost with it
+				docsWritten.addAndGet(-docsInFile);
+				bytesWritten.addAndGet(-bytesInFile);
+				errors.addAndGet(docsInFile + (pending == null ? 0 : 1));
+				abandon(writer, file);
+				writer = null;
+				System.out.println("Writing sequence file " + file + " failed (" + e.getMessage() + "); " + docsInFile + " documents in it are not loaded.");
+			} catch (InterruptedException e) {
+				// Loading is stopped
+			} finally {
+				if (writer != null) {
+					try {
+						close(writer);
+					} catch (IOException e) {
+						logger.error(e);
+					}
+				}
+				if (activeWriters.decrementAndGet() == 0 && failed) {
+					System.out.println("No writers are left; the remaining documents are not loaded.");
+					// Keep taking documents so the readers do not block
+					discard();
+				}
+			}
+		}
+
+		/**
+		 * Closes a file that could not be written and removes it, so its
+		 * documents are not loaded twice when loading is retried.
+		 */
+		private void abandon(SequenceFile.Writer writer, Path file) {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					logger.debug(e);
+				}
+			}
+			if (file != null) {
+				try {
+					file.getFileSystem(conf).delete(file, false);
+				} catch (IOException e) {
+					logger.error("Could not remove sequence file: " + file + ": " + e);
+				}
+			}
+		}
+
+		private void discard() {
+			try {
+				while (queue.take() != END) {
+					errors.incrementAndGet();
+				}
+			} catch (InterruptedException e) {
+				// Loading is stopped
+			}
+		}
+
+		private void close(SequenceFile.Writer writer) throws IOException {
+			writer.hsync();
+			writer.close();
+		}
+	}
+
+	private static class Doc {
+		private final String name;
+		private final byte[] content;
+
+		private Doc(String name, byte[] content) {
+			this.name = name;
+			this.content = content;
+		}
+	}
+}
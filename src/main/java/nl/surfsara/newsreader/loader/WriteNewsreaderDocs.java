@@ -26,6 +26,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import nl.surfsara.newsreader.Compression;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.SequenceFile;
@@ -33,7 +35,6 @@ import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.SequenceFile.Writer.Option;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
-import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.log4j.Logger;
 
 /**
@@ -46,6 +47,10 @@ import org.apache.log4j.Logger;
 public class WriteNewsreaderDocs implements PrivilegedAction<Long> {
 
 	private static final Logger logger = Logger.getLogger(WriteNewsreaderDocs.class);
+	/**
+	 * The compression used when none is given: deflate with block compression.
+	 */
+	public static final Compression DEFAULT_COMPRESSION = new Compression(Compression.Codec.DEFLATE, CompressionType.BLOCK);
 
 	private File file;
 	private SequenceFile.Writer writer;
@@ -53,22 +58,29 @@ public class WriteNewsreaderDocs implements PrivilegedAction<Long> {
 	private int docsPerFile;
 
 	private Configuration conf;
+	private Compression compression;
+	private CompressionCodec codec;
 
 	public WriteNewsreaderDocs(Configuration conf, String source, String destination, int docsPerFile) throws IOException {
+		this(conf, source, destination, docsPerFile, DEFAULT_COMPRESSION);
+	}
+
+	public WriteNewsreaderDocs(Configuration conf, String source, String destination, int docsPerFile, Compression compression) throws IOException {
 		this.conf = conf;
 		file = new File(source);
 		this.destination = destination;
 		this.docsPerFile = docsPerFile;
+		this.compression = compression;
+		this.codec = compression.getCompressionCodec(conf);
 		initWriter(conf, destination + "_0");
 	}
 
 	private void initWriter(Configuration conf, String path) throws IOException {
-		CompressionCodec Codec = new DefaultCodec();
 		writer = null;
 		Option optPath = SequenceFile.Writer.file(new Path(path));
 		Option optKey = SequenceFile.Writer.keyClass(Text.class);
 		Option optVal = SequenceFile.Writer.valueClass(Text.class);
-		Option optCom = SequenceFile.Writer.compression(CompressionType.BLOCK, Codec);
+		Option optCom = codec == null ? SequenceFile.Writer.compression(CompressionType.NONE) : SequenceFile.Writer.compression(compression.getType(), codec);
 		writer = SequenceFile.createWriter(conf, optPath, optKey, optVal, optCom);
 	}
 
@@ -101,6 +113,10 @@ public class WriteNewsreaderDocs implements PrivilegedAction<Long> {
 						}
 					}
 				}
+				// The last block of documents is only written when the writer is closed
+				writer.hflush();
+				writer.hsync();
+				writer.close();
 			}
 		} catch (Exception e) {
 			logger.error(e);
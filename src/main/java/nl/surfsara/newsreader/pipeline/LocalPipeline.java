@@ -0,0 +1,494 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.TraceRecord;
+import nl.surfsara.newsreader.pipeline.modules.NewsreaderDocument;
+import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+import nl.surfsara.newsreader.pipeline.modules.StepCache;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
+import nl.surfsara.newsreader.pipeline.util.ScratchArea;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the pipeline on a single machine without Hadoop. Documents are read
+ * from a local directory: sequence files written by the load tool are read
+ * document by document, any other file is read as a single NAF document named
+ * after the file. The components are run from an already extracted components
+ * directory and up to concurrency documents are processed at the same time in
+ * every step, chained or pipelined as in a Hadoop task. Processed documents are
+ * written as files to the output directory and failed documents to the error
+ * directory; the performance report and the traces (when enabled) are written
+ * next to the output directory as for a Hadoop run.
+ */
+public class LocalPipeline {
+	private static final Logger logger = Logger.getLogger(LocalPipeline.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] SEQUENCEFILE_MAGIC = { 'S', 'E', 'Q' };
+	private static final String TASKNAME = "local";
+
+	private PipelineLayout pipelineLayout;
+	private String scratchDir;
+	private String workDir;
+	private String cacheDir;
+	private String localCacheDir;
+	private long localCacheMegabytes = 1024;
+	private File outputDir;
+	private File errorDir;
+	private List<StepRunner> runners;
+	private Writer traceWriter;
+	private String host;
+	private AtomicLong documents = new AtomicLong();
+	private AtomicLong failed = new AtomicLong();
+	private AtomicLong inputBytes = new AtomicLong();
+	private AtomicLong outputBytes = new AtomicLong();
+	private long elapsedMillis;
+
+	/**
+	 * @param pipelineLayout
+	 *            the pipeline to run; the components root of its steps should
+	 *            point to the extracted components
+	 */
+	public LocalPipeline(PipelineLayout pipelineLayout) {
+		this.pipelineLayout = pipelineLayout;
+		this.workDir = System.getProperty("java.io.tmpdir") + "/newsreader-local-" + UUID.randomUUID();
+	}
+
+	/**
+	 * @param scratchDir
+	 *            the directory for the input files of components that read a
+	 *            file or null to use /dev/shm when available
+	 */
+	public void setScratchDir(String scratchDir) {
+		this.scratchDir = scratchDir;
+	}
+
+	/**
+	 * Caches the output of the steps (see the StepCache class).
+	 * 
+	 * @param cacheDir
+	 *            the directory of the cache or null to always run the steps
+	 * @param localCacheDir
+	 *            the directory of a size-limited cache on local disk in front
+	 *            of it or null to use none
+	 * @param localCacheMegabytes
+	 *            the size of the local cache
+	 */
+	public void setCache(String cacheDir, String localCacheDir, long localCacheMegabytes) {
+		this.cacheDir = cacheDir;
+		this.localCacheDir = localCacheDir;
+		this.localCacheMegabytes = localCacheMegabytes;
+	}
+
+	/**
+	 * @param workDir
+	 *            the directory the components run in; it is removed when the
+	 *            run has finished
+	 */
+	public void setWorkDir(String workDir) {
+		this.workDir = workDir;
+	}
+
+	/**
+	 * Runs the pipeline on all documents of the input path.
+	 * 
+	 * @param inputPath
+	 *            a local file or directory with NAF files or sequence files
+	 * @param outputPath
+	 *            the local directory for the processed documents
+	 * @param errorPath
+	 *            the local directory for the failed documents
+	 * @throws IOException
+	 *             When the input cannot be read or the output cannot be written
+	 * @throws InterruptedException
+	 *             When interrupted while waiting for documents to finish
+	 */
+	public void run(String inputPath, String outputPath, String errorPath) throws IOException, InterruptedException {
+		File input = new File(inputPath);
+		if (!input.exists()) {
+			throw new IOException("Input path does not exist: " + inputPath);
+		}
+		outputDir = mkdirs(outputPath);
+		errorDir = mkdirs(errorPath);
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "unknown";
+		}
+		if (pipelineLayout.isTrace()) {
+			File traceDir = mkdirs(outputPath + "_trace");
+			traceWriter = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(new File(traceDir, "trace.json"))), UTF8);
+		}
+
+		int concurrency = pipelineLayout.getConcurrency();
+		List<PipelineStep> steps = pipelineLayout.getSteps();
+		runners = new ArrayList<StepRunner>();
+		for (int i = 0; i < steps.size(); i++) {
+			StepRunner runner = new StepRunner(steps.get(i), workDir + "/" + i, concurrency);
+			runner.setScratchDir(scratchDir);
+			runner.setCache(StepCache.create(new Configuration(), cacheDir, localCacheDir, localCacheMegabytes, steps.get(i), null));
+			runners.add(runner);
+		}
+		List<File> files = listFiles(input);
+		logger.info("Running pipeline locally on " + files.size() + " input files with " + concurrency + " documents in flight per step.");
+
+		long tstart = System.currentTimeMillis();
+		try {
+			if (pipelineLayout.getExecution() == PipelineLayout.Execution.PIPELINED) {
+				runPipelined(input, files);
+			} else {
+				runChained(input, files);
+			}
+		} finally {
+			elapsedMillis = System.currentTimeMillis() - tstart;
+			if (traceWriter != null) {
+				traceWriter.close();
+			}
+			FileUtils.deleteQuietly(new File(workDir));
+		}
+		logger.info(getSummary());
+
+		Configuration conf = getLocalConfiguration();
+		String reportDir = PerformanceReport.getReportDir(outputPath);
+		PerformanceReport.prepare(conf, reportDir);
+		PerformanceReport.writeTaskReport(conf, reportDir, TASKNAME, runners);
+		PerformanceReport.merge(conf, reportDir, steps);
+	}
+
+	/**
+	 * Runs all steps on a document in one of concurrency threads. At most
+	 * twice the concurrency documents are read ahead.
+	 */
+	private void runChained(File input, List<File> files) throws IOException, InterruptedException {
+		int concurrency = pipelineLayout.getConcurrency();
+		final Semaphore readAhead = new Semaphore(2 * concurrency);
+		ExecutorService threads = Executors.newFixedThreadPool(concurrency);
+		for (StepRunner runner : runners) {
+			runner.start();
+		}
+		try {
+			DocumentReader reader = new DocumentReader(input, files);
+			NewsreaderDocument doc;
+			while ((doc = reader.next()) != null) {
+				readAhead.acquire();
+				final NewsreaderDocument current = doc;
+				threads.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (StepRunner runner : runners) {
+								runner.run(current);
+							}
+							write(current);
+						} finally {
+							readAhead.release();
+						}
+					}
+				});
+			}
+			threads.shutdown();
+			while (!threads.awaitTermination(1, TimeUnit.MINUTES)) {
+				logger.info("Waiting for " + (2 * concurrency - readAhead.availablePermits()) + " documents to finish...");
+			}
+		} finally {
+			threads.shutdownNow();
+			for (StepRunner runner : runners) {
+				runner.stop();
+			}
+		}
+	}
+
+	/**
+	 * Runs the documents through a StagedPipeline and writes them in the
+	 * order in which they leave the last step.
+	 */
+	private void runPipelined(File input, List<File> files) throws IOException, InterruptedException {
+		int[] bufferSizes = new int[runners.size()];
+		for (int i = 0; i < runners.size(); i++) {
+			bufferSizes[i] = runners.get(i).getPipelineStep().getBufferSize();
+		}
+		StagedPipeline pipeline = new StagedPipeline(runners, bufferSizes, pipelineLayout.getConcurrency());
+		pipeline.start();
+		try {
+			DocumentReader reader = new DocumentReader(input, files);
+			NewsreaderDocument doc;
+			while ((doc = reader.next()) != null) {
+				while (!pipeline.offer(doc, 1, TimeUnit.SECONDS)) {
+					writeProcessed(pipeline);
+				}
+				writeProcessed(pipeline);
+			}
+			while (pipeline.getInFlight() > 0) {
+				NewsreaderDocument processed = pipeline.take(1, TimeUnit.MINUTES);
+				if (processed != null) {
+					write(processed);
+				} else {
+					logger.info("Waiting for " + pipeline.getInFlight() + " documents to finish...");
+				}
+			}
+			logger.info("Pipeline stages:\n" + pipeline.getReport());
+		} finally {
+			pipeline.stop();
+		}
+	}
+
+	private void writeProcessed(StagedPipeline pipeline) {
+		NewsreaderDocument doc;
+		while ((doc = pipeline.poll()) != null) {
+			write(doc);
+		}
+	}
+
+	/**
+	 * Writes a processed document to the output or error directory and its
+	 * trace record to the trace file.
+	 */
+	private void write(NewsreaderDocument doc) {
+		ByteBuffer content = doc.getContent() == null ? ByteBuffer.allocate(0) : doc.getContent();
+		File f = getFile(doc.hasFailed() ? errorDir : outputDir, doc.getName());
+		try {
+			f.getParentFile().mkdirs();
+			ScratchArea.write(f, content);
+		} catch (IOException e) {
+			logger.error("Could not write document: " + doc.getName() + " to " + f + ": " + e);
+		}
+		documents.incrementAndGet();
+		if (doc.hasFailed()) {
+			failed.incrementAndGet();
+		} else {
+			outputBytes.addAndGet(content.remaining());
+		}
+		if (traceWriter != null) {
+			String line = TraceRecord.toLine(doc.getName(), content.remaining(), doc.hasFailed(), host, TASKNAME, doc.getTrace());
+			synchronized (traceWriter) {
+				try {
+					traceWriter.write(line + "\n");
+				} catch (IOException e) {
+					logger.error("Could not write trace of document: " + doc.getName() + ": " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of documents processed
+	 */
+	public long getDocuments() {
+		return documents.get();
+	}
+
+	/**
+	 * @return the number of documents that failed
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return the number of bytes of the input documents
+	 */
+	public long getInputBytes() {
+		return inputBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes of the successfully processed documents
+	 */
+	public long getOutputBytes() {
+		return outputBytes.get();
+	}
+
+	/**
+	 * @return the wall clock time of the run in milliseconds
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * @return the step runners of the last run, which hold the metrics of
+	 *         every step
+	 */
+	public List<StepRunner> getStepRunners() {
+		return runners;
+	}
+
+	/**
+	 * @return a summary of the throughput of the run
+	 */
+	public String getSummary() {
+		double seconds = Math.max(1, elapsedMillis) / 1000.0;
+		return String.format("Processed %d documents (%d failed) in %.1f s: %.2f documents/s, %.2f MB/s input.", documents.get(), failed.get(), seconds, documents.get() / seconds,
+				inputBytes.get() / (1024.0 * 1024.0) / seconds);
+	}
+
+	/**
+	 * The default file system of a Hadoop configuration on the class path may
+	 * be HDFS; local runs only use the local file system.
+	 */
+	private static Configuration getLocalConfiguration() {
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		return conf;
+	}
+
+	private static File mkdirs(String path) throws IOException {
+		File dir = new File(path);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory: " + path);
+		}
+		return dir;
+	}
+
+	private static List<File> listFiles(File input) {
+		List<File> files = new ArrayList<File>();
+		if (input.isDirectory()) {
+			File[] children = input.listFiles();
+			if (children != null) {
+				Arrays.sort(children);
+				for (File child : children) {
+					if (!child.isHidden() && !child.getName().startsWith("_")) {
+						files.addAll(listFiles(child));
+					}
+				}
+			}
+		} else {
+			files.add(input);
+		}
+		return files;
+	}
+
+	/**
+	 * Gets the name of a document read from a file: its path relative to the
+	 * input directory, so files with the same name in different
+	 * subdirectories get different names.
+	 */
+	private static String getDocumentName(File input, File f) {
+		if (!input.isDirectory()) {
+			return f.getName();
+		}
+		return input.toPath().relativize(f.toPath()).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Gets the file of a document in an output directory. The directories in
+	 * the name of the document are kept below the output directory.
+	 */
+	private static File getFile(File dir, String docName) {
+		File f = dir;
+		for (String part : docName.split("/")) {
+			f = new File(f, part.isEmpty() || part.equals(".") || part.equals("..") ? "_" + part : part);
+		}
+		return f;
+	}
+
+	private static boolean isSequenceFile(File f) throws IOException {
+		byte[] magic = new byte[SEQUENCEFILE_MAGIC.length];
+		InputStream in = new FileInputStream(f);
+		try {
+			int read = 0;
+			while (read < magic.length) {
+				int n = in.read(magic, read, magic.length - read);
+				if (n < 0) {
+					return false;
+				}
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.equals(magic, SEQUENCEFILE_MAGIC);
+	}
+
+	/**
+	 * Reads the documents of the input files one by one.
+	 */
+	private class DocumentReader {
+		private final File input;
+		private final List<File> files;
+		private int next;
+		private SequenceFile.Reader sequenceFile;
+
+		private DocumentReader(File input, List<File> files) {
+			this.input = input;
+			this.files = Collections.unmodifiableList(files);
+		}
+
+		/**
+		 * @return the next document or null at the end of the input
+		 */
+		private NewsreaderDocument next() throws IOException {
+			while (true) {
+				if (sequenceFile != null) {
+					Text key = new Text();
+					Text val = new Text();
+					if (sequenceFile.next(key, val)) {
+						return newDocument(key.toString(), ByteBuffer.wrap(val.getBytes(), 0, val.getLength()));
+					}
+					sequenceFile.close();
+					sequenceFile = null;
+				}
+				if (next >= files.size()) {
+					return null;
+				}
+				File f = files.get(next++);
+				if (isSequenceFile(f)) {
+					sequenceFile = new SequenceFile.Reader(getLocalConfiguration(), SequenceFile.Reader.file(new Path(f.getAbsolutePath())));
+				} else {
+					return newDocument(getDocumentName(input, f), ByteBuffer.wrap(FileUtils.readFileToByteArray(f)));
+				}
+			}
+		}
+
+		private NewsreaderDocument newDocument(String name, ByteBuffer content) {
+			inputBytes.addAndGet(content.remaining());
+			NewsreaderDocument doc = new NewsreaderDocument(name, content, false);
+			if (pipelineLayout.isTrace()) {
+				doc.setTrace("");
+			}
+			return doc;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+import nl.surfsara.newsreader.pipeline.modules.StepMetrics;
+import nl.surfsara.newsreader.pipeline.modules.StepMetrics.SlowDocument;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
+import nl.surfsara.newsreader.pipeline.util.LatencyHistogram;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import cascading.flow.FlowProcess;
+
+/**
+ * The performance report of a pipeline run. Every task writes the latency
+ * histograms (per step and document size class) and the slowest documents of
+ * its steps to a file in the tmp directory of the report directory. When the
+ * job has completed these files are merged into report.json and report.csv
+ * with the p50, p95, p99 and maximum latency of every step.
+ */
+public class PerformanceReport {
+	private static final Logger logger = Logger.getLogger(PerformanceReport.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The job property that holds the report directory.
+	 */
+	public static final String REPORTDIR_PROPERTY = "newsreader.report.dir";
+	private static final String TMPDIR = "tmp";
+	private static final double[] PERCENTILES = { 50, 95, 99 };
+
+	private PerformanceReport() {
+	}
+
+	/**
+	 * Gets the report directory for an output path.
+	 * 
+	 * @param outputPath
+	 *            the output path of the pipeline
+	 * @return the directory next to the output path that holds the report
+	 */
+	public static String getReportDir(String outputPath) {
+		return outputPath + "_report";
+	}
+
+	/**
+	 * Removes the task files of an earlier run.
+	 */
+	public static void prepare(Configuration conf, String reportDir) throws IOException {
+		Path tmp = new Path(reportDir, TMPDIR);
+		FileSystem fs = tmp.getFileSystem(conf);
+		if (fs.exists(tmp)) {
+			fs.delete(tmp, true);
+		}
+	}
+
+	/**
+	 * Writes the metrics of the step runners of a task. Failures are logged
+	 * but do not fail the task.
+	 * 
+	 * @param flowProcess
+	 *            the flow process of the task
+	 * @param name
+	 *            a name for the file that is unique within the task
+	 * @param runners
+	 *            the step runners of the task
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void writeTaskReport(FlowProcess flowProcess, String name, List<StepRunner> runners) {
+		String reportDir = flowProcess.getStringProperty(REPORTDIR_PROPERTY);
+		if (reportDir == null) {
+			return;
+		}
+		String taskId = getTaskId(flowProcess.getStringProperty("mapred.task.id"));
+		if (taskId == null) {
+			taskId = UUID.randomUUID().toString();
+		}
+		Object config = flowProcess.getConfig();
+		Configuration conf = config instanceof Configuration ? (Configuration) config : new Configuration();
+		writeTaskReport(conf, reportDir, taskId + "_" + name, runners);
+	}
+
+	/**
+	 * Gets the id of the task of a task attempt, so every attempt of a task
+	 * (retried after a failure, or speculative) writes the same file and only
+	 * the last one is merged.
+	 * 
+	 * @param attemptId
+	 *            an attempt id such as attempt_1400000000000_0001_m_000005_1
+	 * @return the task id such as task_1400000000000_0001_m_000005 or null
+	 *         when the attempt id is null
+	 */
+	static String getTaskId(String attemptId) {
+		if (attemptId == null) {
+			return null;
+		}
+		String id = attemptId;
+		if (id.startsWith("attempt_") && id.lastIndexOf('_') > "attempt_".length()) {
+			id = "task_" + id.substring("attempt_".length(), id.lastIndexOf('_'));
+		}
+		return id;
+	}
+
+	/**
+	 * Writes the metrics of step runners to a file in the tmp directory of the
+	 * report directory. Failures are logged.
+	 * 
+	 * @param conf
+	 *            the configuration used to access the report directory
+	 * @param reportDir
+	 *            the report directory
+	 * @param fileName
+	 *            a name for the file that is unique within the run
+	 * @param runners
+	 *            the step runners
+	 */
+	public static void writeTaskReport(Configuration conf, String reportDir, String fileName, List<StepRunner> runners) {
+		Path file = new Path(new Path(reportDir, TMPDIR), fileName);
+		try {
+			FileSystem fs = file.getFileSystem(conf);
+			Writer w = new OutputStreamWriter(fs.create(file, true), UTF8);
+			try {
+				for (StepRunner runner : runners) {
+					String step = runner.getPipelineStep().getName();
+					StepMetrics metrics = runner.getMetrics();
+					for (int i = 0; i < StepMetrics.SIZE_CLASSES.length; i++) {
+						LatencyHistogram h = metrics.getHistogram(i);
+						if (h.getCount() > 0) {
+							w.write("H\t" + step + "\t" + i + "\t" + h + "\n");
+						}
+					}
+					for (SlowDocument d : metrics.getSlowestDocuments()) {
+						w.write("S\t" + step + "\t" + d.getMillis() + "\t" + d.getBytes() + "\t" + d.getName() + "\n");
+					}
+				}
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not write performance report " + file + ": " + e);
+		}
+	}
+
+	/**
+	 * Merges the task files into report.json and report.csv and removes the
+	 * task files.
+	 * 
+	 * @param conf
+	 *            the Hadoop configuration
+	 * @param reportDir
+	 *            the report directory
+	 * @param steps
+	 *            the steps of the pipeline, in pipeline order
+	 * @throws IOException
+	 *             When the files could not be read or written
+	 */
+	public static void merge(Configuration conf, String reportDir, List<PipelineStep> steps) throws IOException {
+		Path tmp = new Path(reportDir, TMPDIR);
+		FileSystem fs = tmp.getFileSystem(conf);
+		if (!fs.exists(tmp)) {
+			logger.info("No performance data found in " + tmp);
+			return;
+		}
+		Map<String, LatencyHistogram[]> histograms = new HashMap<String, LatencyHistogram[]>();
+		Map<String, List<SlowDocument>> slowest = new HashMap<String, List<SlowDocument>>();
+		for (PipelineStep ps : steps) {
+			LatencyHistogram[] h = new LatencyHistogram[StepMetrics.SIZE_CLASSES.length];
+			for (int i = 0; i < h.length; i++) {
+				h[i] = new LatencyHistogram();
+			}
+			histograms.put(ps.getName(), h);
+			slowest.put(ps.getName(), new ArrayList<SlowDocument>());
+		}
+		for (FileStatus status : fs.listStatus(tmp)) {
+			BufferedReader r = new BufferedReader(new InputStreamReader(fs.open(status.getPath()), UTF8));
+			try {
+				String line;
+				while ((line = r.readLine()) != null) {
+					String[] f = line.split("\t", 5);
+					if (!histograms.containsKey(f[1])) {
+						continue;
+					}
+					if ("H".equals(f[0])) {
+						histograms.get(f[1])[Integer.parseInt(f[2])].merge(LatencyHistogram.parse(f[3]));
+					} else if ("S".equals(f[0])) {
+						slowest.get(f[1]).add(new SlowDocument(f[4], Long.parseLong(f[2]), Long.parseLong(f[3])));
+					}
+				}
+			} finally {
+				r.close();
+			}
+		}
+
+		JSONArray jsonSteps = new JSONArray();
+		StringBuilder csv = new StringBuilder("step,size,documents,p50_ms,p95_ms,p99_ms,max_ms\n");
+		for (PipelineStep ps : steps) {
+			LatencyHistogram[] h = histograms.get(ps.getName());
+			LatencyHistogram all = new LatencyHistogram();
+			JSONArray sizes = new JSONArray();
+			for (int i = 0; i < h.length; i++) {
+				all.merge(h[i]);
+				if (h[i].getCount() > 0) {
+					sizes.put(toJSON(h[i]).put("size", StepMetrics.SIZE_CLASSES[i]));
+					csv.append(toCSV(ps.getName(), StepMetrics.SIZE_CLASSES[i], h[i]));
+				}
+			}
+			csv.append(toCSV(ps.getName(), "all", all));
+			List<SlowDocument> slow = slowest.get(ps.getName());
+			Collections.sort(slow, Collections.reverseOrder());
+			JSONArray jsonSlow = new JSONArray();
+			for (SlowDocument d : slow.subList(0, Math.min(StepMetrics.SLOWEST, slow.size()))) {
+				jsonSlow.put(new JSONObject().put("name", d.getName()).put("ms", d.getMillis()).put("bytes", d.getBytes()));
+			}
+			JSONObject step = toJSON(all).put("name", ps.getName()).put("timeout", ps.getTimeout());
+			step.put("sizes", sizes).put("slowest", jsonSlow);
+			jsonSteps.put(step);
+			logger.info("PipelineStep " + ps.getName() + ": " + all.getCount() + " documents, p50 " + all.getPercentile(50) + " ms, p95 " + all.getPercentile(95) + " ms, p99 "
+					+ all.getPercentile(99) + " ms, max " + all.getMax() + " ms.");
+		}
+		write(fs, new Path(reportDir, "report.json"), new JSONObject().put("steps", jsonSteps).toString(2));
+		write(fs, new Path(reportDir, "report.csv"), csv.toString());
+		fs.delete(tmp, true);
+		logger.info("Performance report written to " + reportDir);
+	}
+
+	private static JSONObject toJSON(LatencyHistogram h) {
+		JSONObject jo = new JSONObject();
+		jo.put("documents", h.getCount());
+		for (double p : PERCENTILES) {
+			jo.put("p" + (int) p + "_ms", h.getPercentile(p));
+		}
+		jo.put("max_ms", h.getMax());
+		return jo;
+	}
+
+	private static String toCSV(String step, String size, LatencyHistogram h) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(step).append(',').append(size).append(',').append(h.getCount());
+		for (double p : PERCENTILES) {
+			sb.append(',').append(h.getPercentile(p));
+		}
+		sb.append(',').append(h.getMax()).append('\n');
+		return sb.toString();
+	}
+
+	private static void write(FileSystem fs, Path path, String content) throws IOException {
+		Writer w = new OutputStreamWriter(fs.create(path, true), UTF8);
+		try {
+			w.write(content);
+		} finally {
+			w.close();
+		}
+	}
+}
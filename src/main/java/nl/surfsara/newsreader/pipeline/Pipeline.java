@@ -15,11 +15,24 @@
  */
 package nl.surfsara.newsreader.pipeline;
 
+import java.io.File;
 import java.util.Properties;
 
+import nl.surfsara.newsreader.Compression;
+import nl.surfsara.newsreader.ToolOptions;
+import nl.surfsara.newsreader.loader.DocumentIndex;
 import nl.surfsara.newsreader.pipeline.cascading.flows.NewsReaderFlow;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.ProcessedFilter;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.StepCounters;
 import nl.surfsara.newsreader.pipeline.modules.ModuleConstants;
+import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+import nl.surfsara.newsreader.pipeline.modules.StepCache;
+import nl.surfsara.newsreader.pipeline.modules.StepMetrics;
+import nl.surfsara.newsreader.pipeline.util.DocumentNameSet;
 
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
@@ -27,6 +40,7 @@ import cascading.flow.Flow;
 import cascading.flow.FlowDef;
 import cascading.flow.hadoop.HadoopFlowConnector;
 import cascading.property.AppProps;
+import cascading.stats.FlowStats;
 
 /**
  * Runnable class that runs the newsreader NLP pipeline on Hadoop clusters.
@@ -35,6 +49,11 @@ import cascading.property.AppProps;
  */
 public class Pipeline implements Runnable {
 	private static final Logger logger = Logger.getLogger(Pipeline.class);
+	private static final String COUNTERS_MAX_PROPERTY = "mapreduce.job.counters.max";
+	private static final String COUNTER_GROUPS_MAX_PROPERTY = "mapreduce.job.counters.groups.max";
+	// Room for the counters of Hadoop and Cascading themselves
+	private static final int FRAMEWORK_COUNTERS = 100;
+	private static final int FRAMEWORK_COUNTER_GROUPS = 20;
 	private String[] args;
 
 	public Pipeline(String[] args) {
@@ -45,20 +64,77 @@ public class Pipeline implements Runnable {
 	public void run() {
 		PropertyConfigurator.configure("log4jconfig.properties");
 		boolean showusage = false;
-		if (args.length < 4) {
+		ToolOptions options = new ToolOptions(args);
+		String[] positional = options.getPositional();
+		if (positional.length < 5) {
 			showusage = true;
 		} else {
-			String inputPath = args[0];
-			String outputPath = args[1];
-			String errorPath = args[2];
-			String layoutFile = args[3];
-			String componentsCache = args[4];
+			String inputPath = positional[0];
+			String outputPath = positional[1];
+			String errorPath = positional[2];
+			String layoutFile = positional[3];
+			String componentsCache = positional[4];
 
 			try {
 				// Read the pipelinelayout 
 				PipelineLayout pl = new PipelineLayout(layoutFile);
+				pl.setConcurrency(options.getInt("concurrency", pl.getConcurrency()));
+				if (options.has("execution")) {
+					pl.setExecution(PipelineLayout.Execution.fromName(options.get("execution", null)));
+				}
+				if (options.has("stage-buffer-size")) {
+					pl.setStageBufferSize(options.getInt("stage-buffer-size", 1));
+				}
+				if (options.has("trace")) {
+					pl.setTrace(true);
+				}
+				if (options.has("checkpoint")) {
+					pl.setCheckpoint(true);
+				}
+				if (options.has("index")) {
+					pl.setIndex(true);
+				}
+				if (options.has("output-codec")) {
+					pl.setOutputCompression(Compression.parse(options.get("output-codec", null)));
+				}
+				if (options.has("checkpoint-codec")) {
+					pl.setCheckpointCompression(Compression.parse(options.get("checkpoint-codec", null)));
+				}
+				if (options.has("timeout-factor")) {
+					double factor = options.getDouble("timeout-factor", 1);
+					for (PipelineStep ps : pl.getSteps()) {
+						ps.setTimeout((long) (ps.getTimeout() * factor));
+					}
+				}
 				logger.info("Running pipeline id: " + pl.getPipelineid());
 				logger.info("Running pipeline version: " + pl.getPipelineversion());
+				logger.info("Running pipeline with " + pl.getConcurrency() + " documents in flight per step.");
+				logger.info("Running pipeline with " + pl.getExecution().getName() + " execution.");
+				if (pl.isTrace()) {
+					logger.info("Writing document traces to: " + outputPath + "_trace");
+				}
+				if (pl.getOutputCompression() != null) {
+					logger.info("Compressing output and failed documents with " + pl.getOutputCompression() + ".");
+				}
+				if (pl.isCheckpoint()) {
+					logger.info("Writing a checkpoint compressed with " + pl.getCheckpointCompression() + " to: " + outputPath + "_checkpoint");
+				}
+				if (pl.getExecution() == PipelineLayout.Execution.PIPELINED) {
+					for (PipelineStep ps : pl.getSteps()) {
+						logger.info("Buffer size for pipelineStep " + ps.getName() + ": " + ps.getBufferSize());
+					}
+				}
+
+				if (options.has("local")) {
+					// Run the pipeline on this machine with the extracted components
+					pl.setComponentsRoot(new File(componentsCache).getAbsolutePath());
+					LocalPipeline lp = new LocalPipeline(pl);
+					lp.setScratchDir(options.get("scratch-dir", null));
+					lp.setCache(options.get("cache-dir", null), options.get("cache-local-dir", null), options.getLong("cache-local-mb", 1024));
+					lp.run(inputPath, outputPath, errorPath);
+					System.out.println(lp.getSummary());
+					return;
+				}
 
 				// Run the  pipeline
 				Properties properties = new Properties();
@@ -66,15 +142,38 @@ public class Pipeline implements Runnable {
 
 				properties.put("mapreduce.task.timeout", "7200000");
 				properties.put("mapreduce.job.cache.archives", componentsCache + "#" + ModuleConstants.ARCHIVEROOT);
+				if (options.has("scratch-dir")) {
+					properties.put(ModuleConstants.SCRATCHDIR_PROPERTY, options.get("scratch-dir", null));
+				}
+				if (options.has("cache-dir")) {
+					properties.put(ModuleConstants.CACHEDIR_PROPERTY, options.get("cache-dir", null));
+					logger.info("Caching the output of the steps in: " + options.get("cache-dir", null));
+					String componentsVersion = StepCache.getArchiveVersion(new Configuration(), componentsCache);
+					properties.put(ModuleConstants.CACHE_COMPONENTSVERSION_PROPERTY, componentsVersion);
+					logger.info("Version of the components for steps without a version in the layout: " + componentsVersion);
+				}
+				if (options.has("cache-local-dir")) {
+					properties.put(ModuleConstants.CACHE_LOCALDIR_PROPERTY, options.get("cache-local-dir", null));
+					properties.put(ModuleConstants.CACHE_LOCALMB_PROPERTY, String.valueOf(options.getLong("cache-local-mb", 1024)));
+				}
 
-				// Child jvm settings
-				properties.put("mapreduce.map.java.opts", "-Xmx8G -Dfile.encoding=UTF-8");
+				// Child jvm settings; the heap leaves 20% of the container for the components
+				long mapMemoryMb = options.getLong("map-memory-mb", 10240);
+				properties.put("mapreduce.map.java.opts", "-Xmx" + (mapMemoryMb * 8 / 10) + "m -Dfile.encoding=UTF-8");
 				//properties.put("mapreduce.reduce.java.opts","");
 
 				// Memory limits
-				properties.put("mapreduce.map.memory.mb", "10240");
+				properties.put("mapreduce.map.memory.mb", String.valueOf(mapMemoryMb));
 				//properties.put("mapreduce.reduce.memory.mb","");
 
+				// Tasks write their latency histograms to the report directory
+				String reportDir = PerformanceReport.getReportDir(outputPath);
+				properties.put(PerformanceReport.REPORTDIR_PROPERTY, reportDir);
+				PerformanceReport.prepare(new Configuration(), reportDir);
+
+				// Every step has its own counter group (see StepCounters)
+				setCounterLimits(properties, pl.getSteps().size());
+
 				// Slow start reducers:
 				properties.put("mapreduce.job.reduce.slowstart.completedmaps", "0.9");
 
@@ -85,6 +184,20 @@ public class Pipeline implements Runnable {
 				HadoopFlowConnector flowConnector = new HadoopFlowConnector(properties);
 
 				NewsReaderFlow nrFlow = new NewsReaderFlow(pl);
+				if (options.has("resume-failed")) {
+					String failuresPath = options.get("failures", inputPath + NewsReaderFlow.FAILURES_SUFFIX);
+					logger.info("Resuming failed documents at the step they failed in using the failure records in: " + failuresPath);
+					nrFlow.setResumeFailuresPath(failuresPath);
+				}
+				if (options.has("incremental")) {
+					// The set is built once here; every task only loads it
+					String[] processedPaths = options.get("incremental", null).split(",");
+					DocumentNameSet processed = DocumentNameSet.build(new Configuration(), processedPaths);
+					Path namesPath = new Path(outputPath + "_incremental", "names");
+					processed.write(new Configuration(), namesPath);
+					logger.info("Skipping the " + processed.size() + " documents in the output of earlier runs; their names are in: " + namesPath);
+					nrFlow.setProcessedNamesPath(namesPath.toString());
+				}
 
 				FlowDef flowDef = nrFlow.getFlowDefinition(inputPath, outputPath, errorPath);
 
@@ -92,6 +205,21 @@ public class Pipeline implements Runnable {
 				Flow flow = flowConnector.connect(flowDef);
 				flow.writeDOT("newsreader.dot");
 				flow.complete();
+				logStepCounters(pl, flow.getFlowStats());
+				if (options.has("incremental")) {
+					logger.info("Skipped " + flow.getFlowStats().getCounterValue(ProcessedFilter.GROUP, ProcessedFilter.SKIPPED) + " documents that were processed in earlier runs.");
+				}
+				try {
+					PerformanceReport.merge(new Configuration(), reportDir, pl.getSteps());
+				} catch (Exception e) {
+					// The report is only informative; the output is still indexed
+					logger.error("Could not merge the performance reports in: " + reportDir + ": " + e);
+				}
+				if (pl.isIndex()) {
+					for (String path : new String[] { outputPath, errorPath }) {
+						new DocumentIndex(new Configuration(), new Path(path)).build();
+					}
+				}
 			} catch (Exception e) {
 				logger.error(e);
 				e.printStackTrace();
@@ -102,6 +230,42 @@ public class Pipeline implements Runnable {
 		}
 	}
 
+	/**
+	 * Raises the limits on the number of counters of the job so the counters
+	 * of all steps fit. The job history server applies the limits in its own
+	 * configuration (by default 120 counters in 50 groups) and cannot show
+	 * jobs with more counters, so a warning is logged when the limits in the
+	 * cluster configuration on this machine are too low.
+	 */
+	private void setCounterLimits(Properties properties, int steps) {
+		int counters = steps * StepMetrics.COUNTERS.length + FRAMEWORK_COUNTERS;
+		int groups = steps + FRAMEWORK_COUNTER_GROUPS;
+		JobConf cluster = new JobConf();
+		int clusterCounters = cluster.getInt(COUNTERS_MAX_PROPERTY, 120);
+		int clusterGroups = cluster.getInt(COUNTER_GROUPS_MAX_PROPERTY, 50);
+		properties.put(COUNTERS_MAX_PROPERTY, String.valueOf(Math.max(counters, clusterCounters)));
+		properties.put(COUNTER_GROUPS_MAX_PROPERTY, String.valueOf(Math.max(groups, clusterGroups)));
+		if (clusterCounters < counters || clusterGroups < groups) {
+			logger.warn("The job uses up to " + counters + " counters in " + groups + " groups, but the cluster allows " + clusterCounters + " counters in " + clusterGroups
+					+ " groups. Set " + COUNTERS_MAX_PROPERTY + " to at least " + counters + " and " + COUNTER_GROUPS_MAX_PROPERTY + " to at least " + groups
+					+ " in mapred-site.xml of the job history server, or it cannot show this job.");
+		}
+	}
+
+	private void logStepCounters(PipelineLayout pl, FlowStats stats) {
+		for (PipelineStep ps : pl.getSteps()) {
+			String group = StepCounters.getGroup(ps.getName());
+			StringBuilder sb = new StringBuilder();
+			for (String counter : StepMetrics.COUNTERS) {
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(counter).append(": ").append(stats.getCounterValue(group, counter));
+			}
+			logger.info("PipelineStep " + ps.getName() + ": " + sb);
+		}
+	}
+
 	private void showUsage() {
 		System.out.println("Usage: ");
 		System.out.println();
@@ -114,11 +278,34 @@ public class Pipeline implements Runnable {
 		System.out.println(" 4.) a pipeline layout: a JSON description of the pipeline components/configuration");
 		System.out.println(" 5.) a components file: a path on HDFS to the components zip file.");
 		System.out.println();
+		System.out.println("The following options can be given in addition to the arguments:");
+		System.out.println(" --concurrency=N: the number of documents each task processes at the same time in every step (overrides the layout).");
+		System.out.println(" --execution=chained|pipelined: run the steps one after another or overlap them on different documents (overrides the layout).");
+		System.out.println(" --stage-buffer-size=N: the number of documents that can wait for each step in pipelined execution (overrides the layout).");
+		System.out.println(" --trace: write a trace record with the timing of every step for each document to <outputpath>_trace.");
+		System.out.println(" --checkpoint: write all documents to a compressed checkpoint in <outputpath>_checkpoint after the last step.");
+		System.out.println(" --index: index the output and failed documents by name after the job, so the loader can get single documents quickly.");
+		System.out.println(" --output-codec=CODEC[:TYPE]: the compression of the output and failed documents, e.g. snappy:block (default: cluster default).");
+		System.out.println(" --checkpoint-codec=CODEC[:TYPE]: the compression of the checkpoint (default: deflate:block). See the loader for the codecs.");
+		System.out.println(" --scratch-dir=PATH: a local directory for the input files of components that read a file (default: /dev/shm when available).");
+		System.out.println(" --cache-dir=PATH: cache the output of every step on HDFS and reuse it when a step gets the same input with the same component.");
+		System.out.println(" --cache-local-dir=PATH: keep the most recently used cache entries in a local directory on every node as well.");
+		System.out.println(" --cache-local-mb=N: the size of the local cache in MB (default: 1024).");
+		System.out.println(" --resume-failed: the inputpath is the errorpath of an earlier run; resume its documents at the step they failed in. The failure");
+		System.out.println("   records are read from <inputpath>_failures unless --failures=PATH is given.");
+		System.out.println(" --incremental=PATH[,PATH...]: skip the documents that are already in the given output paths of earlier runs (wildcards allowed).");
+		System.out.println("   The outputpath must be a new path; the names of the skipped documents are written to <outputpath>_incremental.");
+		System.out.println(" --timeout-factor=F: multiply the timeouts of all steps in the layout by F, e.g. when resuming documents that timed out.");
+		System.out.println(" --map-memory-mb=N: the memory of a map task container in MB (default: 10240); the JVM heap gets 80% of it.");
+		System.out.println(" --local: run the pipeline on this machine without Hadoop. The paths are local directories: the inputpath holds NAF files or sequence files,");
+		System.out.println("   documents are written as files to the outputpath and errorpath and the components file is a directory with the extracted components.");
+		System.out.println();
 		System.out.println("A note on the components zip file: the newsreader components should be zipped and uploaded to Hadoop. Then, distributed cache is used");
 		System.out.println("to distribute and symlink the components to all the compute nodes.");
 		System.out.println();
 		System.out.println("An example:");
 		System.out.println("Run the pipeline on documents in /foo/*: yarn jar newsreader-hadoop.jar pipeline /foo/in/* /bar/out /bar/error pipeline.json /foo/components.zip");
+		System.out.println("Run the pipeline locally with 8 documents in flight: hadoop jar newsreader-hadoop.jar pipeline --local --concurrency=8 naf/ out/ error/ pipeline.json components/");
 		System.out.println();
 	}
 }
@@ -22,10 +22,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import nl.surfsara.newsreader.Compression;
 import nl.surfsara.newsreader.pipeline.modules.Module;
+import nl.surfsara.newsreader.pipeline.modules.NAFFileProvidedNewsreaderModule;
+import nl.surfsara.newsreader.pipeline.modules.PersistentNewsreaderModule;
 import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -37,11 +41,49 @@ import org.json.JSONObject;
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class PipelineLayout {
+	private static final Compression DEFAULT_CHECKPOINT_COMPRESSION = new Compression(Compression.Codec.DEFLATE, CompressionType.BLOCK);
 	private String pipelineversion;
 	private String pipelineid;
 	private String description;
 	private ArrayList<PipelineStep> steps;
 	private String layoutFile;
+	private int concurrency;
+	private Execution execution;
+	private boolean trace;
+	private boolean checkpoint;
+	private boolean index;
+	private Compression outputCompression;
+	private Compression checkpointCompression = DEFAULT_CHECKPOINT_COMPRESSION;
+
+	/**
+	 * The ways in which the steps of the pipeline can be executed within a
+	 * task.
+	 */
+	public enum Execution {
+		/** Each step runs in its own Cascading function, one after another. */
+		CHAINED("chained"),
+		/** All steps run concurrently on different documents. */
+		PIPELINED("pipelined");
+
+		private final String name;
+
+		private Execution(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public static Execution fromName(String name) {
+			for (Execution e : values()) {
+				if (e.getName().equals(name)) {
+					return e;
+				}
+			}
+			throw new IllegalArgumentException("Unknown execution: " + name);
+		}
+	}
 
 	public PipelineLayout(String layoutFile) throws FileNotFoundException, IOException, ClassNotFoundException {
 		this.layoutFile = layoutFile;
@@ -59,17 +101,46 @@ public class PipelineLayout {
 		pipelineid = (String) jo.get("id");
 		pipelineversion = (String) jo.get("version");
 		description = (String) jo.get("description");
+		concurrency = jo.optInt("concurrency", 1);
+		execution = Execution.fromName(jo.optString("execution", Execution.CHAINED.getName()));
+		int stageBufferSize = jo.optInt("stageBufferSize", 1);
+		trace = jo.optBoolean("trace", false);
+		checkpoint = jo.optBoolean("checkpoint", false);
+		index = jo.optBoolean("index", false);
+		if (jo.has("outputCodec")) {
+			outputCompression = Compression.parse(jo.getString("outputCodec"));
+		}
+		if (jo.has("checkpointCodec")) {
+			checkpointCompression = Compression.parse(jo.getString("checkpointCodec"));
+		}
 		JSONArray ja = jo.getJSONArray("layout");
 		steps = new ArrayList<PipelineStep>();
 		for (int i = 0; i < ja.length(); i++) {
 			JSONObject jsonObject = ja.getJSONObject(i);
 			String name = jsonObject.getString("name");
-			String className = jsonObject.getString("class");
+			PipelineStep.Mode mode = PipelineStep.Mode.fromName(jsonObject.optString("mode", PipelineStep.Mode.SUBPROCESS.getName()));
+			String className;
+			if (mode == PipelineStep.Mode.PERSISTENT) {
+				className = jsonObject.optString("class", PersistentNewsreaderModule.class.getName());
+			} else {
+				className = jsonObject.getString("class");
+			}
 			long timeOut = jsonObject.getLong("timeout");
 			int numErrorLine = jsonObject.getInt("numErrorLines");
 
 			@SuppressWarnings("unchecked")
-			PipelineStep step = new PipelineStep(name, ((Class<? extends Module>) Class.forName(className)), timeOut, numErrorLine);
+			Class<? extends Module> moduleClass = (Class<? extends Module>) Class.forName(className);
+			if (mode == PipelineStep.Mode.PERSISTENT && !PersistentNewsreaderModule.class.isAssignableFrom(moduleClass)) {
+				throw new IllegalArgumentException("Step " + name + " runs in persistent mode but " + className + " is not a " + PersistentNewsreaderModule.class.getSimpleName());
+			}
+			PipelineStep step = new PipelineStep(name, moduleClass, timeOut, numErrorLine, mode);
+			step.setBufferSize(jsonObject.optInt("bufferSize", stageBufferSize));
+			step.setFailurePolicy(PipelineStep.FailurePolicy.fromName(jsonObject.optString("failurePolicy", PipelineStep.FailurePolicy.STDERR.getName())));
+			step.setStderrTailLines(jsonObject.optInt("stderrTailLines", step.getStderrTailLines()));
+			step.setVersion(jsonObject.optString("version", null));
+			// Components that read their input from a file traditionally got it on standard in as well
+			PipelineStep.InputDelivery defaultDelivery = NAFFileProvidedNewsreaderModule.class.isAssignableFrom(moduleClass) ? PipelineStep.InputDelivery.BOTH : PipelineStep.InputDelivery.STDIN;
+			step.setInputDelivery(PipelineStep.InputDelivery.fromName(jsonObject.optString("inputDelivery", defaultDelivery.getName())));
 			steps.add(step);
 		}
 	}
@@ -90,4 +161,116 @@ public class PipelineLayout {
 		return pipelineid;
 	}
 
+	/**
+	 * Gets the number of documents each task processes concurrently in every
+	 * step.
+	 * 
+	 * @return the number of documents in flight per step
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public Execution getExecution() {
+		return execution;
+	}
+
+	public void setExecution(Execution execution) {
+		this.execution = execution;
+	}
+
+	/**
+	 * Checks whether a trace record is written for every document.
+	 * 
+	 * @return true when documents are traced
+	 */
+	public boolean isTrace() {
+		return trace;
+	}
+
+	public void setTrace(boolean trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Checks whether the documents are written to a (compressed) checkpoint
+	 * after the last step.
+	 * 
+	 * @return true when a checkpoint is written
+	 */
+	public boolean isCheckpoint() {
+		return checkpoint;
+	}
+
+	public void setCheckpoint(boolean checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	/**
+	 * Checks whether an index of the output and failed documents is written
+	 * after the job (see the DocumentIndex class).
+	 * 
+	 * @return true when the output is indexed
+	 */
+	public boolean isIndex() {
+		return index;
+	}
+
+	public void setIndex(boolean index) {
+		this.index = index;
+	}
+
+	/**
+	 * Gets the compression of the output and error sequence files.
+	 * 
+	 * @return the compression or null to use the default of the cluster
+	 */
+	public Compression getOutputCompression() {
+		return outputCompression;
+	}
+
+	public void setOutputCompression(Compression outputCompression) {
+		this.outputCompression = outputCompression;
+	}
+
+	/**
+	 * @return the compression of the checkpoint (deflate:block by default)
+	 */
+	public Compression getCheckpointCompression() {
+		return checkpointCompression;
+	}
+
+	public void setCheckpointCompression(Compression checkpointCompression) {
+		this.checkpointCompression = checkpointCompression;
+	}
+
+	/**
+	 * Sets the directory with the component directories for all steps (see
+	 * PipelineStep.setComponentsRoot).
+	 * 
+	 * @param componentsRoot
+	 *            the directory holding the component directories
+	 */
+	public void setComponentsRoot(String componentsRoot) {
+		for (PipelineStep step : steps) {
+			step.setComponentsRoot(componentsRoot);
+		}
+	}
+
+	/**
+	 * Overrides the input buffer size of all steps.
+	 * 
+	 * @param bufferSize
+	 *            the number of documents that can wait for each step
+	 */
+	public void setStageBufferSize(int bufferSize) {
+		for (PipelineStep step : steps) {
+			step.setBufferSize(bufferSize);
+		}
+	}
+
 }
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import nl.surfsara.newsreader.pipeline.modules.NewsreaderDocument;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the steps of a pipeline as a software pipeline: every step is a stage
+ * with its own worker thread(s) that takes documents from a bounded input
+ * buffer and hands them to the buffer of the next stage. While a slow stage
+ * works on one document, the other stages work on the documents before and
+ * after it.
+ *
+ * Documents are added with put(), which blocks while the buffer of the first
+ * stage is full. Processed documents are collected with poll() or take() in
+ * the order in which they leave the last stage.
+ *
+ * A document on which a step throws is marked as failed in that step and
+ * passed on. When a stage worker dies anyway, the error is rethrown by the
+ * next call that adds or collects documents, so a task fails instead of
+ * waiting forever for documents that never leave the pipeline.
+ */
+public class StagedPipeline {
+	private static final Logger logger = Logger.getLogger(StagedPipeline.class);
+
+	private List<Stage> stages = new ArrayList<Stage>();
+	private BlockingQueue<NewsreaderDocument> output = new LinkedBlockingQueue<NewsreaderDocument>();
+	private AtomicInteger inFlight = new AtomicInteger();
+	private AtomicReference<Throwable> workerError = new AtomicReference<Throwable>();
+	private ExecutorService threads;
+	private int workersPerStage;
+
+	/**
+	 * @param runners
+	 *            the step runners in pipeline order
+	 * @param bufferSizes
+	 *            the size of the input buffer of each stage
+	 * @param workersPerStage
+	 *            the number of threads that run documents in each stage
+	 */
+	public StagedPipeline(List<StepRunner> runners, int[] bufferSizes, int workersPerStage) {
+		if (runners.size() != bufferSizes.length) {
+			throw new IllegalArgumentException("Expected " + runners.size() + " buffer sizes but got " + bufferSizes.length);
+		}
+		this.workersPerStage = Math.max(1, workersPerStage);
+		for (int i = 0; i < runners.size(); i++) {
+			stages.add(new Stage(runners.get(i), Math.max(1, bufferSizes[i])));
+		}
+	}
+
+	/**
+	 * Starts the step runners and the stage threads.
+	 */
+	public void start() {
+		threads = Executors.newFixedThreadPool(stages.size() * workersPerStage);
+		for (int i = 0; i < stages.size(); i++) {
+			Stage stage = stages.get(i);
+			stage.runner.start();
+			Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+			for (int w = 0; w < workersPerStage; w++) {
+				threads.execute(new StageWorker(stage, next, output, workerError));
+			}
+			logger.info("Stage " + i + " (" + stage.runner.getPipelineStep().getName() + "): buffer size " + stage.bufferSize + ", " + workersPerStage + " worker(s).");
+		}
+	}
+
+	/**
+	 * Adds a document to the pipeline. Blocks while the buffer of the first
+	 * stage is full.
+	 *
+	 * @param doc
+	 *            the document to process
+	 * @throws InterruptedException
+	 *             When interrupted while waiting for room in the first buffer
+	 */
+	public void put(NewsreaderDocument doc) throws InterruptedException {
+		checkWorkers();
+		inFlight.incrementAndGet();
+		stages.get(0).enqueue(doc);
+	}
+
+	/**
+	 * Adds a document to the pipeline if there is room in the buffer of the
+	 * first stage within the given time.
+	 *
+	 * @return true when the document was added
+	 * @throws InterruptedException
+	 *             When interrupted while waiting
+	 */
+	public boolean offer(NewsreaderDocument doc, long timeout, TimeUnit unit) throws InterruptedException {
+		checkWorkers();
+		inFlight.incrementAndGet();
+		if (stages.get(0).buffer.offer(doc, timeout, unit)) {
+			stages.get(0).recordDepth();
+			return true;
+		}
+		inFlight.decrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return a processed document or null if none is available
+	 */
+	public NewsreaderDocument poll() {
+		checkWorkers();
+		NewsreaderDocument doc = output.poll();
+		if (doc != null) {
+			inFlight.decrementAndGet();
+		}
+		return doc;
+	}
+
+	/**
+	 * Waits for a processed document.
+	 *
+	 * @return a processed document or null if none became available in time
+	 * @throws InterruptedException
+	 *             When interrupted while waiting
+	 */
+	public NewsreaderDocument take(long timeout, TimeUnit unit) throws InterruptedException {
+		checkWorkers();
+		NewsreaderDocument doc = output.poll(timeout, unit);
+		if (doc != null) {
+			inFlight.decrementAndGet();
+		} else {
+			checkWorkers();
+		}
+		return doc;
+	}
+
+	/**
+	 * @return the number of documents added but not yet collected
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             When a stage worker died; its documents are lost
+	 */
+	private void checkWorkers() {
+		Throwable t = workerError.get();
+		if (t != null) {
+			throw new IllegalStateException("A stage worker died with " + inFlight.get() + " documents in the pipeline", t);
+		}
+	}
+
+	/**
+	 * Stops the stage threads and the step runners.
+	 */
+	public void stop() {
+		if (threads != null) {
+			threads.shutdownNow();
+		}
+		for (Stage stage : stages) {
+			stage.runner.stop();
+		}
+	}
+
+	/**
+	 * Summarizes for each stage its buffer size, the largest number of
+	 * documents waiting in its buffer and the time its workers spent waiting
+	 * for input (starved) and for room in the next buffer (blocked).
+	 *
+	 * @return a report with a line per stage
+	 */
+	public String getReport() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < stages.size(); i++) {
+			Stage stage = stages.get(i);
+			sb.append("Stage ").append(i).append(" (").append(stage.runner.getPipelineStep().getName()).append("): ");
+			sb.append("buffer size ").append(stage.bufferSize);
+			sb.append(", max waiting ").append(stage.maxDepth.get());
+			sb.append(", documents ").append(stage.processed.get());
+			sb.append(", busy ").append(TimeUnit.NANOSECONDS.toMillis(stage.busyNanos.get())).append(" ms");
+			sb.append(", starved ").append(TimeUnit.NANOSECONDS.toMillis(stage.starvedNanos.get())).append(" ms");
+			sb.append(", blocked ").append(TimeUnit.NANOSECONDS.toMillis(stage.blockedNanos.get())).append(" ms");
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	private static class Stage {
+		private final StepRunner runner;
+		private final int bufferSize;
+		private final BlockingQueue<NewsreaderDocument> buffer;
+		private final AtomicInteger maxDepth = new AtomicInteger();
+		private final AtomicLong processed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong starvedNanos = new AtomicLong();
+		private final AtomicLong blockedNanos = new AtomicLong();
+
+		private Stage(StepRunner runner, int bufferSize) {
+			this.runner = runner;
+			this.bufferSize = bufferSize;
+			this.buffer = new ArrayBlockingQueue<NewsreaderDocument>(bufferSize);
+		}
+
+		private void enqueue(NewsreaderDocument doc) throws InterruptedException {
+			buffer.put(doc);
+			recordDepth();
+		}
+
+		private void recordDepth() {
+			int depth = buffer.size();
+			int max = maxDepth.get();
+			while (depth > max && !maxDepth.compareAndSet(max, depth)) {
+				max = maxDepth.get();
+			}
+		}
+	}
+
+	private static class StageWorker implements Runnable {
+		private final Stage stage;
+		private final Stage next;
+		private final BlockingQueue<NewsreaderDocument> output;
+		private final AtomicReference<Throwable> error;
+
+		private StageWorker(Stage stage, Stage next, BlockingQueue<NewsreaderDocument> output, AtomicReference<Throwable> error) {
+			this.stage = stage;
+			this.next = next;
+			this.output = output;
+			this.error = error;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					long t0 = System.nanoTime();
+					NewsreaderDocument doc = stage.buffer.take();
+					long t1 = System.nanoTime();
+					try {
+						stage.runner.run(doc);
+					} catch (Throwable t) {
+						// E.g. an OutOfMemoryError on a large document; the document
+						// still has to leave the pipeline
+						String step = stage.runner.getPipelineStep().getName();
+						logger.error("PipelineStep " + step + " threw on document: " + doc.getName(), t);
+						doc.setFailedStep(step);
+					}
+					long t2 = System.nanoTime();
+					if (next != null) {
+						next.enqueue(doc);
+					} else {
+						output.put(doc);
+					}
+					long t3 = System.nanoTime();
+					stage.processed.incrementAndGet();
+					stage.starvedNanos.addAndGet(t1 - t0);
+					stage.busyNanos.addAndGet(t2 - t1);
+					stage.blockedNanos.addAndGet(t3 - t2);
+				}
+			} catch (InterruptedException e) {
+				// Pipeline is stopped
+			} catch (Throwable t) {
+				logger.error("Stage worker of pipelineStep " + stage.runner.getPipelineStep().getName() + " died.", t);
+				error.compareAndSet(null, t);
+			}
+		}
+	}
+}
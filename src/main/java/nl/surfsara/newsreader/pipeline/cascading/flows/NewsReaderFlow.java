@@ -15,21 +15,34 @@
  */
 package nl.surfsara.newsreader.pipeline.cascading.flows;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import nl.surfsara.newsreader.Compression;
 import nl.surfsara.newsreader.pipeline.PipelineLayout;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.DocumentTuples;
 import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.FailedFilter;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.FailureRecord;
 import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.InsertField;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.ProcessedFilter;
 import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.RunModuleFunction;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.RunPipelineFunction;
 import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.StripField;
 import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.SuccessFilter;
+import nl.surfsara.newsreader.pipeline.cascading.flows.udfs.TraceRecord;
 import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.Text;
 
 import cascading.flow.FlowDef;
 import cascading.pipe.Checkpoint;
 import cascading.pipe.Each;
 import cascading.pipe.Pipe;
+import cascading.property.ConfigDef;
 import cascading.scheme.hadoop.SequenceFile;
+import cascading.scheme.hadoop.TextLine;
 import cascading.scheme.hadoop.WritableSequenceFile;
 import cascading.tap.Tap;
 import cascading.tap.hadoop.Hfs;
@@ -45,23 +58,71 @@ import cascading.tuple.Fields;
  * function inserts the document failed field for each tuple: <document name,
  * document contents, document failed> The next functions execute the pipeline
  * on the document contents field. Documents where docFailed has been set to
- * true will not be processed by subsequent moduled. Finally, the stream is
+ * true will not be processed by subsequent moduled. In pipelined execution all
+ * steps run in a single function that overlaps the steps on different
+ * documents (see the StagedPipeline class). Finally, the stream is
  * split and failed and successful documents are stored in separate sinks on
  * HDFS (again as sequence files with <key,value> = <document name, document
- * contents>
+ * contents>. The split happens in the same map pass as the steps; only when a
+ * checkpoint is enabled in the layout are all documents first written to a
+ * compressed sequence file next to the output path.
+ * 
+ * Every tuple also carries a docFailure field with the failure record of a
+ * failed document: the step it failed in and the number of attempts. The
+ * records of the failed documents are stored next to the error path, so a
+ * later run can resume the failed documents at the step they failed in.
+ * 
+ * When tracing is enabled the tuples carry a fifth field (docTrace) to which
+ * every step adds a record. Another sink stores one compressed line of JSON
+ * per document with these records next to the output path.
+ * 
+ * In incremental runs the documents that are already in the output of earlier
+ * runs are removed right after they are read, before the first step.
  * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class NewsReaderFlow implements Flow {
+	/**
+	 * The suffix of the path of the failure records next to the error path.
+	 */
+	public static final String FAILURES_SUFFIX = "_failures";
+
 	private PipelineLayout pl;
+	private String resumeFailuresPath;
+	private String processedNamesPath;
 
 	public NewsReaderFlow(PipelineLayout pl) {
 		this.pl = pl;
 	}
 
+	/**
+	 * Resumes failed documents of an earlier run at the step they failed in.
+	 * The input path should then be the error path of that run.
+	 * 
+	 * @param failuresPath
+	 *            the failure records of the earlier run (the error path with
+	 *            FAILURES_SUFFIX) or null to run all steps on all documents
+	 */
+	public void setResumeFailuresPath(String failuresPath) {
+		this.resumeFailuresPath = failuresPath;
+	}
+
+	/**
+	 * Skips the documents that were processed in earlier runs.
+	 * 
+	 * @param namesPath
+	 *            a DocumentNameSet file with the names of the processed
+	 *            documents or null to process all documents
+	 */
+	public void setProcessedNamesPath(String namesPath) {
+		this.processedNamesPath = namesPath;
+	}
+
 	@Override
 	public FlowDef getFlowDefinition(String inPath, String outPath, String errorPath) throws Exception {
 		Fields pipelineFields = new Fields("docName", "docContent", "docFailed");
+		boolean trace = pl.isTrace();
+		Fields stepFields = DocumentTuples.getFields(trace);
 		Fields docFields = new Fields("docName", "docContent");
 
 		//SequenceFile seq = new SequenceFile(docFields);
@@ -70,33 +131,95 @@ public class NewsReaderFlow implements Flow {
 		@SuppressWarnings("rawtypes")
 		Tap docTap = new Hfs(inseq, inPath);
 
-		Pipe insertField = new Each("Insert docFailed", new InsertField(), Fields.RESULTS);
+		InsertField insert;
+		if (resumeFailuresPath != null) {
+			List<String> stepNames = new ArrayList<String>();
+			for (PipelineStep ps : pl.getSteps()) {
+				stepNames.add(ps.getName());
+			}
+			insert = new InsertField(trace, resumeFailuresPath, stepNames);
+		} else {
+			insert = new InsertField(trace);
+		}
+		Pipe head;
+		Pipe insertField;
+		if (processedNamesPath != null) {
+			head = new Each("Skip processed docs", new Fields("docName"), new ProcessedFilter(processedNamesPath));
+			insertField = new Each(new Pipe("Insert docFailed", head), insert, Fields.RESULTS);
+		} else {
+			insertField = new Each("Insert docFailed", insert, Fields.RESULTS);
+			head = insertField;
+		}
 
 		// Build pipeline from steps
 		Pipe prevPipe = insertField;
-		for (PipelineStep ps : pl.getSteps()) {
-			Pipe currentPipe = new Each(new Pipe(ps.getName(), prevPipe), pipelineFields, new RunModuleFunction(ps), Fields.RESULTS);
-			prevPipe = currentPipe;
+		if (pl.getExecution() == PipelineLayout.Execution.PIPELINED) {
+			prevPipe = new Each(new Pipe("Pipelined steps", prevPipe), stepFields, new RunPipelineFunction(pl.getSteps(), pl.getConcurrency(), trace), Fields.RESULTS);
+		} else {
+			for (PipelineStep ps : pl.getSteps()) {
+				Pipe currentPipe = new Each(new Pipe(ps.getName(), prevPipe), stepFields, new RunModuleFunction(ps, pl.getConcurrency(), trace), Fields.RESULTS);
+				prevPipe = currentPipe;
+			}
+		}
+		// Without a checkpoint the tuples are split over the sinks in the same
+		// map pass; the checkpoint materializes all documents first
+		Pipe lastStep = prevPipe;
+		Checkpoint checkPoint = null;
+		if (pl.isCheckpoint()) {
+			checkPoint = new Checkpoint("Checkpoint", prevPipe);
+			lastStep = checkPoint;
 		}
-		Checkpoint checkPoint = new Checkpoint("Checkpoint", prevPipe);
 
-		Pipe succesDocs = new Each(new Pipe("Select succesful docs", checkPoint), pipelineFields, new FailedFilter());
+		Pipe succesDocs = new Each(new Pipe("Select succesful docs", lastStep), pipelineFields, new FailedFilter());
 		Pipe sstrip = new Each(new Pipe("Strip docFailed from succesful docs", succesDocs), pipelineFields, new StripField(), Fields.RESULTS);
 
-		Pipe failedDocs = new Each(new Pipe("Select failed docs", checkPoint), pipelineFields, new SuccessFilter());
+		Pipe failedDocs = new Each(new Pipe("Select failed docs", lastStep), pipelineFields, new SuccessFilter());
 		Pipe fstrip = new Each(new Pipe("Strip docFailed from failed docs", failedDocs), pipelineFields, new StripField(), Fields.RESULTS);
+		Pipe frecords = new Each(new Pipe("Failure records of failed docs", failedDocs), new Fields("docName", "docFailure"), new FailureRecord(), Fields.RESULTS);
 
 		WritableSequenceFile outseq = new WritableSequenceFile(docFields, Text.class, Text.class);
-		SequenceFile checkPointSeq = new SequenceFile(Fields.ALL);
 
 		@SuppressWarnings("rawtypes")
 		Tap successSink = new Hfs(outseq, outPath);
 		@SuppressWarnings("rawtypes")
-		Tap checkpointSink = new Hfs(checkPointSeq, outPath + "_checkpoint");
-		@SuppressWarnings("rawtypes")
 		Tap failedSink = new Hfs(outseq, errorPath);
+		@SuppressWarnings("rawtypes")
+		Tap failuresSink = new Hfs(new WritableSequenceFile(new Fields("docName", "docFailure"), Text.class, Text.class), errorPath + FAILURES_SUFFIX);
+		Configuration conf = new Configuration();
+		if (pl.getOutputCompression() != null) {
+			setCompression(successSink, pl.getOutputCompression(), conf);
+			setCompression(failedSink, pl.getOutputCompression(), conf);
+		}
 
-		return FlowDef.flowDef().addSource(insertField, docTap).addCheckpoint(checkPoint, checkpointSink).addTailSink(sstrip, successSink).addTailSink(fstrip, failedSink);
+		FlowDef flowDef = FlowDef.flowDef().addSource(head, docTap).addTailSink(sstrip, successSink).addTailSink(fstrip, failedSink).addTailSink(frecords, failuresSink);
+		if (checkPoint != null) {
+			SequenceFile checkPointSeq = new SequenceFile(Fields.ALL);
+			@SuppressWarnings("rawtypes")
+			Tap checkpointSink = new Hfs(checkPointSeq, outPath + "_checkpoint");
+			setCompression(checkpointSink, pl.getCheckpointCompression(), conf);
+			flowDef.addCheckpoint(checkPoint, checkpointSink);
+		}
+		if (trace) {
+			// One compressed line of JSON per document
+			Pipe traces = new Each(new Pipe("Trace docs", lastStep), stepFields, new TraceRecord(), Fields.RESULTS);
+			@SuppressWarnings("rawtypes")
+			Tap traceSink = new Hfs(new TextLine(new Fields("offset", "line"), new Fields("line"), TextLine.Compress.ENABLE), outPath + "_trace");
+			flowDef.addTailSink(traces, traceSink);
+		}
+		return flowDef;
+	}
+
+	/**
+	 * Sets the compression of a sink. The codec is checked, and falls back to
+	 * deflate, only on the submitting machine; the task nodes must have the
+	 * same native libraries. The tasks check this when they start (see
+	 * Compression.checkOutputCodec).
+	 */
+	@SuppressWarnings("rawtypes")
+	private void setCompression(Tap sink, Compression compression, Configuration conf) {
+		for (Map.Entry<String, String> e : compression.getOutputProperties(conf).entrySet()) {
+			sink.getConfigDef().setProperty(ConfigDef.Mode.REPLACE, e.getKey(), e.getValue());
+		}
 	}
 
 }
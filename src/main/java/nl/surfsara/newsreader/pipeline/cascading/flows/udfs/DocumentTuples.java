@@ -0,0 +1,190 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import nl.surfsara.newsreader.pipeline.modules.NewsreaderDocument;
+
+import org.apache.hadoop.io.Text;
+import org.json.JSONObject;
+
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Utility class; converts between the tuples in the flow and the documents
+ * handed to the modules. Document content is copied as UTF-8 bytes; it is never
+ * decoded to a String on the way.
+ */
+public class DocumentTuples {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DocumentTuples() {
+	}
+
+	/**
+	 * Gets the fields of the tuples that flow through the pipeline. The
+	 * docFailure field holds the failure record of the document (see
+	 * toFailureRecord) or is empty.
+	 * 
+	 * @param trace
+	 *            whether documents are traced
+	 * @return <docName, docContent, docFailed, docFailure> or, when tracing,
+	 *         <docName, docContent, docFailed, docFailure, docTrace>
+	 */
+	public static Fields getFields(boolean trace) {
+		if (trace) {
+			return new Fields("docName", "docContent", "docFailed", "docFailure", "docTrace");
+		}
+		return new Fields("docName", "docContent", "docFailed", "docFailure");
+	}
+
+	/**
+	 * Creates the tuple of a document that enters the pipeline: it has not
+	 * failed and, when tracing, has no trace records yet.
+	 * 
+	 * @param failure
+	 *            the failure record of an earlier run to resume the document
+	 *            at, or null to run all steps
+	 * @return a tuple with the fields of getFields(trace)
+	 */
+	public static Tuple newTuple(Text name, Text content, String failure, boolean trace) {
+		Tuple result = new Tuple();
+		result.add(name);
+		result.add(content);
+		result.add(false);
+		result.add(new Text(failure == null ? "" : failure));
+		if (trace) {
+			result.add(new Text());
+		}
+		return result;
+	}
+
+	/**
+	 * Creates a document from a <docName, docContent, docFailed, docFailure>
+	 * tuple. Tuples are reused by Cascading, so the document holds a copy of
+	 * the content.
+	 */
+	public static NewsreaderDocument toDocument(TupleEntry args) {
+		return toDocument(args, false);
+	}
+
+	/**
+	 * Creates a document from a <docName, docContent, docFailed, docFailure>
+	 * tuple or, when tracing, a <docName, docContent, docFailed, docFailure,
+	 * docTrace> tuple. A failure record on a document that has not failed
+	 * means the document is resumed at the step in the record.
+	 */
+	public static NewsreaderDocument toDocument(TupleEntry args, boolean trace) {
+		boolean failed = args.getBoolean("docFailed");
+		NewsreaderDocument doc = new NewsreaderDocument(args.getString("docName"), ByteBuffer.wrap(getBytes(args, "docContent")), failed);
+		String failure = args.getString("docFailure");
+		if (failure != null && !failure.isEmpty()) {
+			JSONObject record = new JSONObject(failure);
+			doc.setFailure(record.getString("step"), record.getInt("attempts"));
+			if (!failed) {
+				doc.setResumeStep(record.getString("step"));
+			}
+		}
+		if (trace) {
+			String records = args.getString("docTrace");
+			doc.setTrace(records == null ? "" : records);
+		}
+		return doc;
+	}
+
+	/**
+	 * Creates a <docName, docContent, docFailed, docFailure> tuple from a
+	 * document. The docTrace field is added for traced documents.
+	 */
+	public static Tuple toTuple(NewsreaderDocument doc) {
+		Tuple result = new Tuple();
+		result.add(new Text(doc.getName()));
+		result.add(toText(doc.getContent()));
+		result.add(doc.hasFailed());
+		if (doc.hasFailed() && doc.getFailedStep() != null) {
+			result.add(new Text(toFailureRecord(doc.getFailedStep(), doc.getAttempts())));
+		} else if (doc.getResumeStep() != null) {
+			// The document has not reached its resume step yet
+			result.add(new Text(toFailureRecord(doc.getResumeStep(), doc.getAttempts())));
+		} else {
+			result.add(new Text());
+		}
+		if (doc.isTraced()) {
+			result.add(new Text(doc.getTrace()));
+		}
+		return result;
+	}
+
+	/**
+	 * Creates the failure record of a document: a JSON object with the step
+	 * the document failed in and the number of times that step failed on it.
+	 */
+	public static String toFailureRecord(String step, int attempts) {
+		JSONObject record = new JSONObject();
+		record.put("step", step);
+		record.put("attempts", attempts);
+		return record.toString();
+	}
+
+	/**
+	 * Gets a copy of the UTF-8 bytes of a field. Text fields are copied
+	 * without decoding them.
+	 */
+	public static byte[] getBytes(TupleEntry args, String field) {
+		Object value = args.getObject(field);
+		if (value == null) {
+			return new byte[0];
+		}
+		if (value instanceof Text) {
+			return ((Text) value).copyBytes();
+		}
+		return value.toString().getBytes(UTF8);
+	}
+
+	/**
+	 * Gets a copy of a field as Text. Text fields are copied without decoding
+	 * them.
+	 */
+	public static Text getText(TupleEntry args, String field) {
+		Object value = args.getObject(field);
+		if (value instanceof Text) {
+			return new Text((Text) value);
+		}
+		return new Text(value == null ? "" : value.toString());
+	}
+
+	/**
+	 * Wraps the bytes between the position and the limit of a buffer in a Text.
+	 */
+	public static Text toText(ByteBuffer content) {
+		Text text = new Text();
+		if (content == null) {
+			return text;
+		}
+		if (content.hasArray()) {
+			text.set(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		} else {
+			byte[] bytes = new byte[content.remaining()];
+			content.duplicate().get(bytes);
+			text.set(bytes);
+		}
+		return text;
+	}
+}
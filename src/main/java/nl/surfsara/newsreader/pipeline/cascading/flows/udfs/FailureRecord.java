@@ -0,0 +1,50 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Function that keeps the name and the failure record (the failed step and
+ * the number of attempts) of failed documents, so they can be resumed at the
+ * failed step later.
+ */
+@SuppressWarnings("serial")
+public class FailureRecord extends BaseOperation<Tuple> implements Function<Tuple> {
+
+	// Eats: <docName, docFailure>
+	// Emits: <docName, docFailure>
+	public FailureRecord() {
+		super(2, new Fields("docName", "docFailure"));
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
+		TupleEntry args = functionCall.getArguments();
+		Tuple result = new Tuple();
+		result.add(DocumentTuples.getText(args, "docName"));
+		result.add(DocumentTuples.getText(args, "docFailure"));
+		functionCall.getOutputCollector().add(result);
+	}
+
+}
@@ -15,44 +15,140 @@
  */
 package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
 
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
 import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
 
 /**
- * Function that insert the docFailed field for each tuple in the tuple stream.
+ * Function that insert the docFailed and the empty docFailure field (and the
+ * empty docTrace field when tracing) for each tuple in the tuple stream.
  * @author mathijs.kattenberg@surfsara.nl
  */
 @SuppressWarnings("serial")
 public class InsertField extends BaseOperation<Tuple> implements Function<Tuple> {
+	private static final Logger logger = Logger.getLogger(InsertField.class);
+	private boolean trace;
+	private String failuresPath;
+	private List<String> stepNames;
+	private transient Map<String, String> failures;
 	
 	// Eats: <docName, docContent>
-	// Emits: <docName, docContent, docFailed>
+	// Emits: <docName, docContent, docFailed, docFailure>
 	public InsertField() {
-		super(2, new Fields("docName", "docContent", "docFailed"));
+		super(2, DocumentTuples.getFields(false));
+	}
+
+	// Eats: <docName, docContent>
+	// Emits: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	public InsertField(boolean trace) {
+		super(2, DocumentTuples.getFields(trace));
+		this.trace = trace;
+	}
+
+	/**
+	 * Creates the function for resuming failed documents: documents with a
+	 * failure record get it in the docFailure field, so they are resumed at
+	 * the step they failed in. Documents without a (valid) record run all
+	 * steps.
+	 * 
+	 * @param failuresPath
+	 *            the sequence files with <docName, failure record> written
+	 *            next to the error path of an earlier run
+	 * @param stepNames
+	 *            the names of the steps in the pipeline
+	 */
+	// Eats: <docName, docContent>
+	// Emits: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	public InsertField(boolean trace, String failuresPath, List<String> stepNames) {
+		this(trace);
+		this.failuresPath = failuresPath;
+		this.stepNames = new ArrayList<String>(stepNames);
 	}
 
 	public InsertField(Fields fields) {
 		super(2, fields);
 	}
 
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+		if (failuresPath == null) {
+			return;
+		}
+		Object config = flowProcess.getConfig();
+		Configuration conf = config instanceof Configuration ? (Configuration) config : new Configuration();
+		try {
+			failures = readFailures(conf, failuresPath, stepNames);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read the failure records in: " + failuresPath, e);
+		}
+		logger.info("Resuming " + failures.size() + " documents at the step they failed in.");
+	}
+
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
 		TupleEntry args = functionCall.getArguments();
-		String docName = args.getString("docName");
-		String docContent = args.getString("docContent");
-		Tuple result = new Tuple();
-		result.add(new Text(docName));
-		result.add(new Text(docContent));
-		result.add(false);
-		functionCall.getOutputCollector().add(result);
+		// Copy the content as bytes; decoding and encoding large documents is expensive
+		String failure = failures == null ? null : failures.get(args.getString("docName"));
+		functionCall.getOutputCollector().add(DocumentTuples.newTuple(DocumentTuples.getText(args, "docName"), DocumentTuples.getText(args, "docContent"), failure, trace));
 	}
 
+	/**
+	 * Reads the failure records of an earlier run.
+	 * 
+	 * @return the failure record by document name for documents that failed
+	 *         in one of the given steps
+	 */
+	static Map<String, String> readFailures(Configuration conf, String failuresPath, List<String> stepNames) throws IOException {
+		Map<String, String> result = new HashMap<String, String>();
+		Path path = new Path(failuresPath);
+		FileSystem fs = path.getFileSystem(conf);
+		FileStatus[] statuses = fs.globStatus(new Path(path, "part*"));
+		if (statuses == null) {
+			return result;
+		}
+		int unknown = 0;
+		for (FileStatus status : statuses) {
+			SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+			try {
+				Text key = new Text();
+				Text val = new Text();
+				while (r.next(key, val)) {
+					String record = val.toString();
+					if (stepNames.contains(new JSONObject(record).getString("step"))) {
+						result.put(key.toString(), record);
+					} else {
+						unknown++;
+					}
+				}
+			} finally {
+				r.close();
+			}
+		}
+		if (unknown > 0) {
+			logger.warn(unknown + " documents failed in steps that are not in the pipeline; they run all steps.");
+		}
+		return result;
+	}
 }
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.io.IOException;
+
+import nl.surfsara.newsreader.pipeline.util.DocumentNameSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Filter;
+import cascading.operation.FilterCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+
+/**
+ * Filter that removes the documents that were already processed in an earlier
+ * run from the tuple stream. The names of these documents are read from a
+ * DocumentNameSet file when the task starts.
+ */
+@SuppressWarnings("serial")
+public class ProcessedFilter extends BaseOperation<Tuple> implements Filter<Tuple> {
+	private static final Logger logger = Logger.getLogger(ProcessedFilter.class);
+	/**
+	 * The counter group and counter of the removed documents.
+	 */
+	public static final String GROUP = "Newsreader incremental";
+	public static final String SKIPPED = "Skipped processed documents";
+
+	private String namesPath;
+	private transient DocumentNameSet processed;
+
+	/**
+	 * @param namesPath
+	 *            the DocumentNameSet file with the names of the processed
+	 *            documents
+	 */
+	// Eats: <docName>
+	public ProcessedFilter(String namesPath) {
+		super(1);
+		this.namesPath = namesPath;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+		Object config = flowProcess.getConfig();
+		Configuration conf = config instanceof Configuration ? (Configuration) config : new Configuration();
+		try {
+			processed = DocumentNameSet.read(conf, new Path(namesPath));
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read the names of the processed documents in: " + namesPath, e);
+		}
+		logger.info("Skipping the " + processed.size() + " documents that were processed in earlier runs.");
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public boolean isRemove(FlowProcess flowProcess, FilterCall filterCall) {
+		if (processed.contains(filterCall.getArguments().getString("docName"))) {
+			flowProcess.increment(GROUP, SKIPPED, 1);
+			return true;
+		}
+		return false;
+	}
+}
@@ -15,17 +15,26 @@
  */
 package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
 
-import java.io.File;
-import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.UUID;
-import java.util.concurrent.FutureTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-import nl.surfsara.newsreader.pipeline.modules.Module;
-import nl.surfsara.newsreader.pipeline.modules.ModuleExecutorService;
+import nl.surfsara.newsreader.Compression;
+import nl.surfsara.newsreader.pipeline.PerformanceReport;
+import nl.surfsara.newsreader.pipeline.modules.ModuleConstants;
+import nl.surfsara.newsreader.pipeline.modules.NewsreaderDocument;
 import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+import nl.surfsara.newsreader.pipeline.modules.StepCache;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
 
-import org.apache.hadoop.io.Text;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Logger;
 
 import cascading.flow.FlowProcess;
@@ -36,93 +45,209 @@ import cascading.operation.OperationCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 
 /**
- * Function that executes the modules run script in a separate Thread.
+ * Function that executes the modules run script in a separate Thread. For
+ * steps in persistent mode the component is started once in prepare and kept
+ * running until cleanup.
+ * 
+ * With a concurrency larger than one the function keeps up to that many
+ * documents in flight. Each document in flight uses its own scratch directory
+ * (and persistent worker). Results are emitted as soon as they are available,
+ * so the order of the documents is not preserved.
  * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 @SuppressWarnings("serial")
 public class RunModuleFunction extends BaseOperation<Tuple> implements Function<Tuple> {
 	private static final Logger logger = Logger.getLogger(RunModuleFunction.class);
-	private ModuleExecutorService mes;
 	private PipelineStep pipelineStep;
-	private String localDir;
+	private int concurrency = 1;
+	private boolean trace;
+	private transient StepRunner runner;
+	private transient StepCounters counters;
+	private transient ExecutorService dispatcher;
+	private transient CompletionService<Tuple> completed;
+	private transient int inFlight;
 
-	// Eats: <docName, docContent, docFailed>
-	// Emits: <docName, docContent, docFailed>
+	// Eats: <docName, docContent, docFailed, docFailure>
+	// Emits: <docName, docContent, docFailed, docFailure>
 	public RunModuleFunction(PipelineStep pipelineStep) {
-		super(3, new Fields("docName", "docContent", "docFailed"));
+		super(4, DocumentTuples.getFields(false));
 		this.pipelineStep = pipelineStep;
 	}
 
+	public RunModuleFunction(PipelineStep pipelineStep, int concurrency) {
+		this(pipelineStep);
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	// Eats: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	// Emits: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	public RunModuleFunction(PipelineStep pipelineStep, int concurrency, boolean trace) {
+		super(trace ? 5 : 4, DocumentTuples.getFields(trace));
+		this.pipelineStep = pipelineStep;
+		this.concurrency = Math.max(1, concurrency);
+		this.trace = trace;
+	}
+
 	public RunModuleFunction(PipelineStep pipelineStep, Fields fields) {
-		super(3, fields);
+		super(4, fields);
 		this.pipelineStep = pipelineStep;
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
-		String[] taskId = flowProcess.getStringProperty("mapred.task.id").split("_");
-		localDir = flowProcess.getStringProperty("job.local.dir");
-		localDir = localDir + "/mo-" + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
-		File f = new File(localDir);
-		f.mkdirs();
-		mes = new ModuleExecutorService();
+		checkOutputCodec(flowProcess);
+		runner = new StepRunner(pipelineStep, getTaskLocalDir(flowProcess), concurrency);
+		runner.setScratchDir(flowProcess.getStringProperty(ModuleConstants.SCRATCHDIR_PROPERTY));
+		runner.setCache(getCache(flowProcess, pipelineStep));
+		runner.start();
+		counters = new StepCounters(pipelineStep.getName(), runner.getMetrics());
+		if (concurrency > 1) {
+			logger.info("Running pipelineStep: " + pipelineStep.getName() + " with " + concurrency + " documents in flight.");
+			dispatcher = Executors.newFixedThreadPool(concurrency);
+			completed = new ExecutorCompletionService<Tuple>(dispatcher);
+			inFlight = 0;
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public void flush(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+		super.flush(flowProcess, operationCall);
+		if (completed != null) {
+			// Emit the documents still in flight at the end of the input
+			TupleEntryCollector collector = ((FunctionCall) operationCall).getOutputCollector();
+			while (inFlight > 0) {
+				collector.add(takeCompleted(flowProcess));
+			}
+		}
+		counters.publish(flowProcess);
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void cleanup(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
 		super.cleanup(flowProcess, operationCall);
-		mes.destroy();
+		if (dispatcher != null) {
+			dispatcher.shutdownNow();
+		}
+		counters.publish(flowProcess);
+		PerformanceReport.writeTaskReport(flowProcess, pipelineStep.getName(), Collections.singletonList(runner));
+		runner.stop();
 	}
 
 	@SuppressWarnings("rawtypes")
 	@Override
 	public void operate(FlowProcess flowProcess, FunctionCall functionCall) {
-		logger.error("Charset: " + Charset.defaultCharset());
 		TupleEntry args = functionCall.getArguments();
 		String docName = args.getString("docName");
 		flowProcess.setStatus("Processing: " + docName);
-		Tuple result = operate(args);
-		functionCall.getOutputCollector().add(result);
+		if (completed == null) {
+			Tuple result = operate(args);
+			functionCall.getOutputCollector().add(result);
+		} else {
+			// Tuples are reused by Cascading; copy the fields before handing them off
+			final NewsreaderDocument doc = DocumentTuples.toDocument(args, trace);
+			completed.submit(new Callable<Tuple>() {
+				@Override
+				public Tuple call() {
+					return DocumentTuples.toTuple(runner.run(doc));
+				}
+			});
+			inFlight++;
+			TupleEntryCollector collector = functionCall.getOutputCollector();
+			Future<Tuple> done;
+			while ((done = completed.poll()) != null) {
+				collector.add(getCompleted(done));
+			}
+			while (inFlight >= concurrency) {
+				collector.add(takeCompleted(flowProcess));
+			}
+		}
+		counters.publish(flowProcess);
 	}
 
 	protected Tuple operate(TupleEntry args) {
-		Tuple result = new Tuple();
-		String docName = args.getString("docName");
-		String docContent = args.getString("docContent");
-		boolean docFailed = args.getBoolean("docFailed");
-		if (docFailed) {
-			logger.info("Skipping pipelineStep: " + pipelineStep.getName() + " for document: " + docName + " because of previous failure...");
-			result.add(new Text(docName));
-			result.add(new Text(docContent));
-			result.add(true);
-		} else {
-			try {
-				Module instance = pipelineStep.getInstance();
-				instance.setInputDocument(docContent);
-				instance.setLocalDirectory(localDir);
-				long tstart = System.currentTimeMillis();
-				FutureTask<Module> executeModule = mes.executeModule(instance);
-				Module outputInstance = executeModule.get(pipelineStep.getTimeout(), TimeUnit.MILLISECONDS);
-				String outputDocument = outputInstance.getOutputDocument();
-				boolean outputDocFailed = outputInstance.hasFailed();
-				long tend = System.currentTimeMillis();
-				logger.info("Applying pipelineStep: " + pipelineStep.getName() + " on document: " + docName + " took " + (tend - tstart) + " ms.");
-				logger.info("Module " + pipelineStep.getName() + " result: " + !outputDocFailed + " on document: " + docName);
-				result.add(new Text(docName));
-				result.add(new Text(outputDocument));
-				result.add(outputDocFailed);
-			} catch (Exception e) {
-				result.add(new Text(docName));
-				result.add(new Text(docContent));
-				result.add(true);
-				logger.error(e);
+		return DocumentTuples.toTuple(runner.run(DocumentTuples.toDocument(args, trace)));
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Tuple takeCompleted(FlowProcess flowProcess) {
+		try {
+			Future<Tuple> done = completed.poll(1, TimeUnit.MINUTES);
+			while (done == null) {
+				flowProcess.keepAlive();
+				done = completed.poll(1, TimeUnit.MINUTES);
 			}
+			return getCompleted(done);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for pipelineStep: " + pipelineStep.getName(), e);
+		}
+	}
+
+	private Tuple getCompleted(Future<Tuple> done) {
+		inFlight--;
+		try {
+			return done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for pipelineStep: " + pipelineStep.getName(), e);
+		} catch (ExecutionException e) {
+			// The step runner handles all exceptions of the module itself
+			throw new RuntimeException("Unexpected failure in pipelineStep: " + pipelineStep.getName(), e.getCause());
+		}
+	}
+
+	/**
+	 * Creates the step cache configured in the job properties (see
+	 * ModuleConstants.CACHEDIR_PROPERTY).
+	 * 
+	 * @return the cache or null when the output of steps is not cached
+	 */
+	@SuppressWarnings("rawtypes")
+	static StepCache getCache(FlowProcess flowProcess, PipelineStep pipelineStep) {
+		Object config = flowProcess.getConfig();
+		Configuration conf = config instanceof Configuration ? (Configuration) config : new Configuration();
+		String localMegabytes = flowProcess.getStringProperty(ModuleConstants.CACHE_LOCALMB_PROPERTY);
+		return StepCache.create(conf, flowProcess.getStringProperty(ModuleConstants.CACHEDIR_PROPERTY), flowProcess.getStringProperty(ModuleConstants.CACHE_LOCALDIR_PROPERTY),
+				localMegabytes == null ? 1024 : Long.parseLong(localMegabytes), pipelineStep, flowProcess.getStringProperty(ModuleConstants.CACHE_COMPONENTSVERSION_PROPERTY));
+	}
+
+	/**
+	 * Checks whether the output codec of the job is available on this node
+	 * (see Compression.checkOutputCodec), so a missing native library is
+	 * reported before the documents are processed.
+	 */
+	@SuppressWarnings("rawtypes")
+	static void checkOutputCodec(FlowProcess flowProcess) {
+		Object config = flowProcess.getConfig();
+		if (config instanceof Configuration) {
+			Compression.checkOutputCodec((Configuration) config);
+		}
+	}
+
+	/**
+	 * Creates a scratch directory for the current task attempt. Outside a
+	 * Hadoop task (for example in local mode) a directory under java.io.tmpdir
+	 * is used.
+	 * 
+	 * @param flowProcess
+	 *            the current flow process
+	 * @return an absolute path to a new, unique scratch directory
+	 */
+	@SuppressWarnings("rawtypes")
+	static String getTaskLocalDir(FlowProcess flowProcess) {
+		String task = flowProcess.getStringProperty("mapred.task.id");
+		String localDir = flowProcess.getStringProperty("job.local.dir");
+		if (task == null || localDir == null) {
+			return System.getProperty("java.io.tmpdir") + "/mo-local/" + UUID.randomUUID().toString();
 		}
-		return result;
+		String[] taskId = task.split("_");
+		return localDir + "/mo-" + taskId[3] + "-" + taskId[4].substring(1) + "/" + UUID.randomUUID().toString();
 	}
 }
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.surfsara.newsreader.pipeline.PerformanceReport;
+import nl.surfsara.newsreader.pipeline.StagedPipeline;
+import nl.surfsara.newsreader.pipeline.modules.ModuleConstants;
+import nl.surfsara.newsreader.pipeline.modules.NewsreaderDocument;
+import nl.surfsara.newsreader.pipeline.modules.PipelineStep;
+import nl.surfsara.newsreader.pipeline.modules.StepRunner;
+
+import org.apache.log4j.Logger;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+/**
+ * Function that runs all steps of the pipeline on the documents of a task as a
+ * software pipeline (see the StagedPipeline class). Documents are emitted in
+ * the order in which they leave the last step.
+ */
+@SuppressWarnings("serial")
+public class RunPipelineFunction extends BaseOperation<Tuple> implements Function<Tuple> {
+	private static final Logger logger = Logger.getLogger(RunPipelineFunction.class);
+	private List<PipelineStep> pipelineSteps;
+	private int concurrency;
+	private boolean trace;
+	private transient StagedPipeline pipeline;
+	private transient List<StepCounters> counters;
+	private transient List<StepRunner> runners;
+
+	// Eats: <docName, docContent, docFailed, docFailure>
+	// Emits: <docName, docContent, docFailed, docFailure>
+	public RunPipelineFunction(List<PipelineStep> pipelineSteps, int concurrency) {
+		this(pipelineSteps, concurrency, false);
+	}
+
+	// Eats: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	// Emits: <docName, docContent, docFailed, docFailure, docTrace> when tracing
+	public RunPipelineFunction(List<PipelineStep> pipelineSteps, int concurrency, boolean trace) {
+		super(trace ? 5 : 4, DocumentTuples.getFields(trace));
+		this.pipelineSteps = new ArrayList<PipelineStep>(pipelineSteps);
+		this.concurrency = Math.max(1, concurrency);
+		this.trace = trace;
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+		RunModuleFunction.checkOutputCodec(flowProcess);
+		runners = new ArrayList<StepRunner>();
+		counters = new ArrayList<StepCounters>();
+		int[] bufferSizes = new int[pipelineSteps.size()];
+		for (int i = 0; i < pipelineSteps.size(); i++) {
+			PipelineStep ps = pipelineSteps.get(i);
+			StepRunner runner = new StepRunner(ps, RunModuleFunction.getTaskLocalDir(flowProcess), concurrency);
+			runner.setScratchDir(flowProcess.getStringProperty(ModuleConstants.SCRATCHDIR_PROPERTY));
+			runner.setCache(RunModuleFunction.getCache(flowProcess, ps));
+			runners.add(runner);
+			counters.add(new StepCounters(ps.getName(), runner.getMetrics()));
+			bufferSizes[i] = ps.getBufferSize();
+		}
+		pipeline = new StagedPipeline(runners, bufferSizes, concurrency);
+		pipeline.start();
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void operate(FlowProcess flowProcess, FunctionCall functionCall) {
+		// Tuples are reused by Cascading; the document holds a copy of the fields
+		NewsreaderDocument doc = DocumentTuples.toDocument(functionCall.getArguments(), trace);
+		flowProcess.setStatus("Processing: " + doc.getName());
+		TupleEntryCollector collector = functionCall.getOutputCollector();
+		try {
+			while (!pipeline.offer(doc, 1, TimeUnit.SECONDS)) {
+				emitProcessed(collector);
+				flowProcess.keepAlive();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while adding document: " + doc.getName(), e);
+		}
+		emitProcessed(collector);
+		publishCounters(flowProcess);
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Override
+	public void flush(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+		super.flush(flowProcess, operationCall);
+		// Emit the documents still in the pipeline at the end of the input
+		TupleEntryCollector collector = ((FunctionCall) operationCall).getOutputCollector();
+		try {
+			while (pipeline.getInFlight() > 0) {
+				NewsreaderDocument doc = pipeline.take(1, TimeUnit.MINUTES);
+				if (doc != null) {
+					collector.add(DocumentTuples.toTuple(doc));
+				} else {
+					flowProcess.keepAlive();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the pipeline to finish", e);
+		}
+		publishCounters(flowProcess);
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void cleanup(FlowProcess flowProcess, OperationCall<Tuple> operationCall) {
+		super.cleanup(flowProcess, operationCall);
+		publishCounters(flowProcess);
+		logger.info("Pipeline stages:\n" + pipeline.getReport());
+		PerformanceReport.writeTaskReport(flowProcess, "pipelined", runners);
+		pipeline.stop();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private void publishCounters(FlowProcess flowProcess) {
+		for (StepCounters c : counters) {
+			c.publish(flowProcess);
+		}
+	}
+
+	private void emitProcessed(TupleEntryCollector collector) {
+		NewsreaderDocument doc;
+		while ((doc = pipeline.poll()) != null) {
+			collector.add(DocumentTuples.toTuple(doc));
+		}
+	}
+}
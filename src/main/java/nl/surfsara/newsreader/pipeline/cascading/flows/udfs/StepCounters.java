@@ -0,0 +1,66 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nl.surfsara.newsreader.pipeline.modules.StepMetrics;
+
+import cascading.flow.FlowProcess;
+
+/**
+ * Publishes the metrics of a pipeline step as Hadoop counters, one counter
+ * group per step. Counters are only incremented from the thread that calls
+ * publish (the thread Cascading runs the function on); the increments since
+ * the previous call are published.
+ */
+public class StepCounters {
+	/**
+	 * The prefix of the counter group of every step.
+	 */
+	public static final String GROUP_PREFIX = "Newsreader step ";
+
+	private final String group;
+	private final StepMetrics metrics;
+	private final Map<String, Long> published = new HashMap<String, Long>();
+
+	public StepCounters(String stepName, StepMetrics metrics) {
+		this.group = getGroup(stepName);
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param stepName
+	 *            the name of a pipeline step
+	 * @return the counter group of the step
+	 */
+	public static String getGroup(String stepName) {
+		return GROUP_PREFIX + stepName;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public void publish(FlowProcess flowProcess) {
+		for (Map.Entry<String, Long> e : metrics.getCounters().entrySet()) {
+			Long previous = published.get(e.getKey());
+			long delta = e.getValue() - (previous == null ? 0 : previous);
+			if (delta != 0) {
+				flowProcess.increment(group, e.getKey(), delta);
+				published.put(e.getKey(), e.getValue());
+			}
+		}
+	}
+}
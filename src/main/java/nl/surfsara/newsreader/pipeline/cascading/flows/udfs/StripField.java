@@ -15,8 +15,6 @@
  */
 package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
 
-import org.apache.hadoop.io.Text;
-
 import cascading.flow.FlowProcess;
 import cascading.operation.BaseOperation;
 import cascading.operation.Function;
@@ -47,11 +45,10 @@ public class StripField extends BaseOperation<Tuple> implements Function<Tuple>
 	@Override
 	public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
 		TupleEntry args = functionCall.getArguments();
-		String docName = args.getString("docName");
-		String docContent = args.getString("docContent");
+		// Copy the content as bytes; decoding and encoding large documents is expensive
 		Tuple result = new Tuple();
-		result.add(new Text(docName));
-		result.add(new Text(docContent));
+		result.add(DocumentTuples.getText(args, "docName"));
+		result.add(DocumentTuples.getText(args, "docContent"));
 		functionCall.getOutputCollector().add(result);
 	}
 
@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.cascading.flows.udfs;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.apache.hadoop.io.Text;
+import org.json.JSONObject;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Function that turns the trace of a document into a single line of JSON:
+ * the document name, its size, whether it failed, the host and task that
+ * processed it and the records of the steps (start and end time, status, exit
+ * code, stderr line count and input and output bytes).
+ */
+@SuppressWarnings("serial")
+public class TraceRecord extends BaseOperation<Tuple> implements Function<Tuple> {
+	private transient String host;
+	private transient String task;
+
+	// Eats: <docName, docContent, docFailed, docFailure, docTrace>
+	// Emits: <line>
+	public TraceRecord() {
+		super(5, new Fields("line"));
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void prepare(FlowProcess flowProcess, OperationCall<Tuple> call) {
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			host = "unknown";
+		}
+		task = flowProcess.getStringProperty("mapred.task.id");
+	}
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void operate(FlowProcess flowProcess, FunctionCall<Tuple> functionCall) {
+		TupleEntry args = functionCall.getArguments();
+		Object content = args.getObject("docContent");
+		String steps = args.getString("docTrace");
+		long bytes = content instanceof Text ? ((Text) content).getLength() : 0;
+		String line = toLine(args.getString("docName"), bytes, args.getBoolean("docFailed"), host, task, steps);
+		Tuple result = new Tuple();
+		result.add(new Text(line));
+		functionCall.getOutputCollector().add(result);
+	}
+
+	/**
+	 * Builds the trace line of a document.
+	 * 
+	 * @param steps
+	 *            the comma separated step records of the document
+	 * @return a JSON object on a single line
+	 */
+	public static String toLine(String docName, long bytes, boolean failed, String host, String task, String steps) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"doc\":").append(JSONObject.quote(docName));
+		sb.append(",\"bytes\":").append(bytes);
+		sb.append(",\"failed\":").append(failed);
+		sb.append(",\"host\":").append(JSONObject.quote(host));
+		sb.append(",\"task\":").append(JSONObject.quote(task == null ? "" : task));
+		sb.append(",\"steps\":[").append(steps == null ? "" : steps).append("]}");
+		return sb.toString();
+	}
+}
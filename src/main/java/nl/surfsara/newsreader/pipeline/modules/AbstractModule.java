@@ -15,32 +15,57 @@
  */
 package nl.surfsara.newsreader.pipeline.modules;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
 /**
  * Abstract implementation of a Module. A large part of the functionality is
  * common for all modules and implemented here.
  * 
+ * Documents are kept as UTF-8 encoded bytes. The String based accessors
+ * encode and decode (always as UTF-8, independent of the platform default).
+ * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 public abstract class AbstractModule implements Module {
-	private String xmlText;
-	private String xmlOutput;
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+	private ByteBuffer xmlInput;
+	private ByteBuffer xmlOutput;
 	private String localDir;
 	private boolean docFailed = false;
+	private int exitCode;
+	private long errorLineCount;
 
 	public void setInputDocument(String xmlText) {
-		this.xmlText = xmlText;
+		this.xmlInput = xmlText == null ? null : ByteBuffer.wrap(xmlText.getBytes(UTF8));
 	}
 
 	public String getInputDocument() {
-		return xmlText;
+		return decode(xmlInput);
 	}
 
 	public void setOutputDocument(String xmlOutput) {
-		this.xmlOutput = xmlOutput;
+		this.xmlOutput = xmlOutput == null ? null : ByteBuffer.wrap(xmlOutput.getBytes(UTF8));
 	}
 
 	public String getOutputDocument() {
-		return xmlOutput;
+		return decode(xmlOutput);
+	}
+
+	public void setInputBuffer(ByteBuffer xmlBytes) {
+		this.xmlInput = xmlBytes;
+	}
+
+	public ByteBuffer getInputBuffer() {
+		return xmlInput == null ? null : xmlInput.duplicate();
+	}
+
+	public void setOutputBuffer(ByteBuffer xmlBytes) {
+		this.xmlOutput = xmlBytes;
+	}
+
+	public ByteBuffer getOutputBuffer() {
+		return xmlOutput == null ? null : xmlOutput.duplicate();
 	}
 
 	public void setLocalDirectory(String localDir) {
@@ -59,4 +84,32 @@ public abstract class AbstractModule implements Module {
 		this.docFailed = failed;
 	}
 
+	public int getExitCode() {
+		return exitCode;
+	}
+
+	public void setExitCode(int exitCode) {
+		this.exitCode = exitCode;
+	}
+
+	public long getErrorLineCount() {
+		return errorLineCount;
+	}
+
+	public void setErrorLineCount(long errorLineCount) {
+		this.errorLineCount = errorLineCount;
+	}
+
+	public void reset() {
+		xmlInput = null;
+		xmlOutput = null;
+		docFailed = false;
+		exitCode = 0;
+		errorLineCount = 0;
+	}
+
+	private static String decode(ByteBuffer buffer) {
+		return buffer == null ? null : UTF8.decode(buffer.duplicate()).toString();
+	}
+
 }
@@ -15,11 +15,10 @@
  */
 package nl.surfsara.newsreader.pipeline.modules;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.log4j.Logger;
+import nl.surfsara.newsreader.pipeline.util.CaptureBuffer;
+import nl.surfsara.newsreader.pipeline.util.StderrRingBuffer;
 
 /**
  * An implementation of a generic Newsreader NLP component.
@@ -29,49 +28,48 @@ import org.apache.log4j.Logger;
  * running on Hadoop two default arguments have been added: the absolute path to
  * the component directory and an absolute path to a directory usable as scratch
  * or temporary storage. This class sets up the input- and outputstreams and
- * calls the run.sh script with the correct arguments. Failures are flagged due
- * to timeout (failure to process in time) or by exceeding a threshold of
- * newlines in the standard error stream (see the PipelineStep class for these
- * settings).
+ * calls the run.sh script with the correct arguments. When the input delivery
+ * of the step includes a file, the path of the file holding the document is
+ * passed as a third argument. Failures are flagged due
+ * to timeout (failure to process in time), a non-zero exit code and/or by
+ * exceeding a threshold of newlines in the standard error stream (see the
+ * PipelineStep class for these settings).
  * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class GenericNewsreaderModule extends SubprocessModule {
-	private static final Logger logger = Logger.getLogger(GenericNewsreaderModule.class);
-
 	private PipelineStep pipelineStep;
+	private CaptureBuffer bos = new CaptureBuffer();
+	private StderrRingBuffer bes;
 
 	public GenericNewsreaderModule(PipelineStep step) {
 		this.pipelineStep = step;
+		this.bes = new StderrRingBuffer(step.getStderrTailLines(), STDERR_BUFFER_SIZE);
 	}
 
 	@Override
 	public Module call() throws Exception {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ByteArrayOutputStream bes = new ByteArrayOutputStream();
+		// The capture buffers are reused when the module is reused
+		bos.reset(MAX_RETAINED_OUTPUT_BUFFER);
+		bes.reset();
 
-		File f = new File(pipelineStep.getModulePath() + "/run.sh.hadoop");
+		int exitCode;
+		File f = new File(pipelineStep.getModulePath() + "/" + ModuleConstants.RUNSCRIPT);
 		File component = new File(pipelineStep.getModulePath());
 		File scratch = new File(getLocalDirectory());
 
-		super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/");
-		super.setSubProcessStdIn(IOUtils.toInputStream(getInputDocument()));
-		super.setSubProcessStdOut(bos);
-		super.setSubProcessStdErr(bes);
-		super.runSubprocess();
-
-		String stderr = bes.toString();
-		int newlines = stderr.split(System.getProperty("line.separator")).length;
-		if (newlines > pipelineStep.getNumErrorLines()) {
-			setFailed(true);
+		File xmlf = deliverInput(pipelineStep);
+		try {
+			super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/" + (xmlf != null ? " " + xmlf.getAbsolutePath() : ""));
+			super.setSubProcessStdOut(bos);
+			super.setSubProcessStdErr(bes);
+			exitCode = super.runSubprocess();
+		} finally {
+			releaseInput(xmlf);
 		}
-		// TODO instead of checking the number of newlines in stderr a much prettier solution would be to capture the exit code of
-		// the run.sh script. The run.sh scripts do need to be altered so that this exit code reflects functioning or disfunctioning of a component.
-		logger.error(stderr);
-		bos.flush();
-		setOutputDocument(bos.toString());
-		bos.close();
-		bes.close();
+
+		checkResult(pipelineStep, exitCode, bes);
+		setOutputBuffer(bos.copyToByteBuffer());
 		return this;
 	}
 
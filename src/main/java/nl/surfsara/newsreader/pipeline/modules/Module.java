@@ -15,6 +15,7 @@
  */
 package nl.surfsara.newsreader.pipeline.modules;
 
+import java.nio.ByteBuffer;
 import java.util.concurrent.Callable;
 
 /**
@@ -54,6 +55,38 @@ public interface Module extends Callable<Module> {
 	 */
 	public abstract String getOutputDocument();
 
+	/**
+	 * Set the input document to the provided UTF-8 encoded bytes. Use this
+	 * instead of setInputDocument(String) to avoid decoding the document.
+	 * 
+	 * @param xmlBytes
+	 *            the UTF-8 bytes of the document to process (from the position
+	 *            to the limit of the buffer)
+	 */
+	public abstract void setInputBuffer(ByteBuffer xmlBytes);
+
+	/**
+	 * Gets the current input as UTF-8 encoded bytes
+	 * 
+	 * @return the current NAF document
+	 */
+	public abstract ByteBuffer getInputBuffer();
+
+	/**
+	 * Set the output document to the specified UTF-8 encoded bytes
+	 * 
+	 * @param xmlBytes
+	 *            the UTF-8 bytes of the output document
+	 */
+	public abstract void setOutputBuffer(ByteBuffer xmlBytes);
+
+	/**
+	 * Get the output as UTF-8 encoded bytes
+	 * 
+	 * @return the output or null if there is no output defined
+	 */
+	public abstract ByteBuffer getOutputBuffer();
+
 	/**
 	 * Check whether processing has failed
 	 * 
@@ -68,6 +101,20 @@ public interface Module extends Callable<Module> {
 	 */
 	public abstract void setFailed(boolean failed);
 
+	/**
+	 * Get the exit code of the component
+	 * 
+	 * @return the exit code of the last run of the component
+	 */
+	public abstract int getExitCode();
+
+	/**
+	 * Get the number of lines the component wrote to standard error
+	 * 
+	 * @return the line count of standard error of the last run
+	 */
+	public abstract long getErrorLineCount();
+
 	/** 
 	 * Set the local scratch directory (unique for each task)
 	 * 
@@ -81,4 +128,11 @@ public interface Module extends Callable<Module> {
 	 * @return  A path to a directory that can be used for temporary data.
 	 */
 	public abstract String getLocalDirectory();
+
+	/**
+	 * Clears the input, output and results of the last document so the
+	 * instance can be reused for the next document. The local directory is
+	 * kept.
+	 */
+	public abstract void reset();
 }
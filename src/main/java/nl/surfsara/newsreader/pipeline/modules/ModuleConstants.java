@@ -29,4 +29,49 @@ public final class ModuleConstants {
 	 * component directory.
 	 */
 	public static final String ARCHIVEROOT = "newsreader-hadoop-components";
+
+	/**
+	 * The script each component provides to process a single document read
+	 * from standard in.
+	 */
+	public static final String RUNSCRIPT = "run.sh.hadoop";
+
+	/**
+	 * The script a component provides when it supports the persistent mode.
+	 * The script is started once per task and reads length framed documents
+	 * from standard in until it is closed (see the PersistentWorker class).
+	 */
+	public static final String PERSISTENT_RUNSCRIPT = "run.sh.hadoop.persistent";
+
+	/**
+	 * The job property that holds the directory for the input files of
+	 * components (see the ScratchArea class). When it is not set /dev/shm is
+	 * used if available.
+	 */
+	public static final String SCRATCHDIR_PROPERTY = "newsreader.scratch.dir";
+
+	/**
+	 * The job property that holds the directory of the step cache (see the
+	 * StepCache class). The output of steps is only cached when it is set.
+	 */
+	public static final String CACHEDIR_PROPERTY = "newsreader.cache.dir";
+
+	/**
+	 * The job property that holds the directory of the cache on the local
+	 * disk of every node (see the LocalCache class). The local cache is only
+	 * used when it is set.
+	 */
+	public static final String CACHE_LOCALDIR_PROPERTY = "newsreader.cache.local.dir";
+
+	/**
+	 * The job property that holds the size of the local cache in MB.
+	 */
+	public static final String CACHE_LOCALMB_PROPERTY = "newsreader.cache.local.mb";
+
+	/**
+	 * The job property that holds the version of the components archive (see
+	 * StepCache.getArchiveVersion). It is the component version of the steps
+	 * without a version in the pipeline layout.
+	 */
+	public static final String CACHE_COMPONENTSVERSION_PROPERTY = "newsreader.cache.components.version";
 }
@@ -15,14 +15,10 @@
  */
 package nl.surfsara.newsreader.pipeline.modules;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.util.UUID;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.log4j.Logger;
+import nl.surfsara.newsreader.pipeline.util.CaptureBuffer;
+import nl.surfsara.newsreader.pipeline.util.StderrRingBuffer;
 
 /**
  * An implementation of a the FBK-time Newsreader NLP component.
@@ -32,60 +28,52 @@ import org.apache.log4j.Logger;
  * running on Hadoop two default arguments have been added: the absolute path to
  * the component directory and an absolute path to a directory usable as scratch
  * or temporary storage. In addition FBK-time needs the document to be stored on
- * local scratch and is provided with this file as one of the arguments.
+ * local scratch and is provided with this file as one of the arguments. By
+ * default the document is also piped to standard in; the input delivery of the
+ * step controls which of the two copies is made.
  * 
  * This class sets up the input- and outputstreams and calls the run.sh script
  * with the correct arguments. Failures are flagged due to timeout (failure to
- * process in time) or by exceeding a threshold of newlines in the standard
- * error stream (see the PipelineStep class for these settings).
+ * process in time), a non-zero exit code and/or by exceeding a threshold of
+ * newlines in the standard error stream (see the PipelineStep class for these
+ * settings).
  * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 public class NAFFileProvidedNewsreaderModule extends SubprocessModule {
-	private static final Logger logger = Logger.getLogger(NAFFileProvidedNewsreaderModule.class);
-
 	private PipelineStep pipelineStep;
+	private CaptureBuffer bos = new CaptureBuffer();
+	private StderrRingBuffer bes;
 
 	public NAFFileProvidedNewsreaderModule(PipelineStep step) {
 		this.pipelineStep = step;
+		this.bes = new StderrRingBuffer(step.getStderrTailLines(), STDERR_BUFFER_SIZE);
 	}
 
 	@Override
 	public Module call() throws Exception {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
-		ByteArrayOutputStream bes = new ByteArrayOutputStream();
-
-		String filename = UUID.randomUUID().toString();
-		File xmlf = new File(getLocalDirectory() + "/" + filename);
-		FileOutputStream fos = new FileOutputStream(xmlf);
-		InputStream xmlStream = IOUtils.toInputStream(getInputDocument(), "UTF-8");
-		IOUtils.copy(xmlStream, fos);
-		fos.flush();
-		fos.close();
-		xmlStream.close();
+		// The capture buffers are reused when the module is reused
+		bos.reset(MAX_RETAINED_OUTPUT_BUFFER);
+		bes.reset();
 
-		File f = new File(pipelineStep.getModulePath() + "/run.sh.hadoop");
+		int exitCode;
+		File f = new File(pipelineStep.getModulePath() + "/" + ModuleConstants.RUNSCRIPT);
 		File component = new File(pipelineStep.getModulePath());
 		File scratch = new File(getLocalDirectory());
 
-		super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/ " + xmlf.getAbsolutePath());
-
-		super.setSubProcessStdIn(IOUtils.toInputStream(getInputDocument()));
-		super.setSubProcessStdOut(bos);
-		super.setSubProcessStdErr(bes);
-		super.runSubprocess();
-
-		String stderr = bes.toString();
-		int newlines = stderr.split(System.getProperty("line.separator")).length;
-		if (newlines > pipelineStep.getNumErrorLines()) {
-			setFailed(true);
+		// Only the copies the component needs are made (see the input delivery of the step)
+		File xmlf = deliverInput(pipelineStep);
+		try {
+			super.setCommandLine("/bin/bash " + f.getAbsolutePath() + " " + component.getAbsolutePath() + "/ " + scratch.getAbsolutePath() + "/" + (xmlf != null ? " " + xmlf.getAbsolutePath() : ""));
+			super.setSubProcessStdOut(bos);
+			super.setSubProcessStdErr(bes);
+			exitCode = super.runSubprocess();
+		} finally {
+			releaseInput(xmlf);
 		}
-		logger.error(stderr);
-		bos.flush();
-		setOutputDocument(bos.toString());
-		bos.close();
-		bes.close();
-		xmlf.delete();
+
+		checkResult(pipelineStep, exitCode, bes);
+		setOutputBuffer(bos.copyToByteBuffer());
 		return this;
 	}
 }
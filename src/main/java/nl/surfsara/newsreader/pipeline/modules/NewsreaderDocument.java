@@ -0,0 +1,154 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A document on its way through the pipeline: its name, its current content
+ * and whether processing has failed in one of the steps. The content is kept as
+ * UTF-8 encoded bytes. When tracing is enabled the document also collects a
+ * trace record (a JSON object) for every step it passes.
+ *
+ * A failed document records the step it failed in and the number of attempts
+ * of that step, counted over runs. A document that is resumed after a failure
+ * has a resume step: the steps before it pass the document on unchanged.
+ */
+public class NewsreaderDocument {
+	private final String name;
+	private ByteBuffer content;
+	private boolean failed;
+	private String failedStep;
+	private int attempts;
+	private String resumeStep;
+	private StringBuilder trace;
+
+	public NewsreaderDocument(String name, ByteBuffer content, boolean failed) {
+		this.name = name;
+		this.content = content;
+		this.failed = failed;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ByteBuffer getContent() {
+		return content;
+	}
+
+	public void setContent(ByteBuffer content) {
+		this.content = content;
+	}
+
+	public boolean hasFailed() {
+		return failed;
+	}
+
+	public void setFailed(boolean failed) {
+		this.failed = failed;
+	}
+
+	/**
+	 * Marks the document as failed in a step. The attempts are counted on
+	 * when the document failed in the same step before.
+	 * 
+	 * @param step
+	 *            the name of the step
+	 */
+	public void setFailedStep(String step) {
+		attempts = step.equals(failedStep) ? attempts + 1 : 1;
+		failedStep = step;
+		failed = true;
+	}
+
+	/**
+	 * Restores the failure of an earlier run.
+	 * 
+	 * @param step
+	 *            the name of the step the document failed in
+	 * @param attempts
+	 *            the number of times the step failed on the document
+	 */
+	public void setFailure(String step, int attempts) {
+		this.failedStep = step;
+		this.attempts = attempts;
+	}
+
+	/**
+	 * @return the step the document failed in (last) or null
+	 */
+	public String getFailedStep() {
+		return failedStep;
+	}
+
+	/**
+	 * @return the number of times the failed step failed on the document
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return the step to resume the document at or null to run all steps
+	 */
+	public String getResumeStep() {
+		return resumeStep;
+	}
+
+	public void setResumeStep(String resumeStep) {
+		this.resumeStep = resumeStep;
+	}
+
+	/**
+	 * Enables tracing for this document.
+	 * 
+	 * @param trace
+	 *            the step records collected so far (comma separated JSON
+	 *            objects), may be empty
+	 */
+	public void setTrace(String trace) {
+		this.trace = new StringBuilder(trace);
+	}
+
+	/**
+	 * @return the step records collected so far or null when tracing is not
+	 *         enabled
+	 */
+	public String getTrace() {
+		return trace == null ? null : trace.toString();
+	}
+
+	public boolean isTraced() {
+		return trace != null;
+	}
+
+	/**
+	 * Adds the record of a step to the trace (if tracing is enabled).
+	 * 
+	 * @param record
+	 *            a JSON object
+	 */
+	public void addTrace(String record) {
+		if (trace == null) {
+			return;
+		}
+		if (trace.length() > 0) {
+			trace.append(',');
+		}
+		trace.append(record);
+	}
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An implementation of a Newsreader NLP component that runs as a persistent
+ * worker.
+ * 
+ * Instead of starting the run.sh script for every document, the component is
+ * started once per task (see the PersistentWorker class) and this module
+ * streams the document to the running component. Failures are flagged due to
+ * timeout (failure to process in time), a non-zero status returned by the
+ * component or the component dying while processing the document.
+ */
+public class PersistentNewsreaderModule extends AbstractModule {
+	private static final Logger logger = Logger.getLogger(PersistentNewsreaderModule.class);
+
+	private PipelineStep pipelineStep;
+	private PersistentWorker worker;
+
+	public PersistentNewsreaderModule(PipelineStep step) {
+		this.pipelineStep = step;
+	}
+
+	public void setWorker(PersistentWorker worker) {
+		this.worker = worker;
+	}
+
+	@Override
+	public Module call() throws Exception {
+		if (worker == null) {
+			throw new IllegalStateException("No persistent worker set for pipelineStep: " + pipelineStep.getName());
+		}
+		PersistentWorker.Result result = worker.process(getInputBuffer());
+		setExitCode(result.getStatus());
+		if (result.getStatus() != 0) {
+			logger.error("Persistent worker for pipelineStep: " + pipelineStep.getName() + " returned status: " + result.getStatus());
+			setFailed(true);
+		}
+		setOutputBuffer(result.getOutput());
+		return this;
+	}
+
+}
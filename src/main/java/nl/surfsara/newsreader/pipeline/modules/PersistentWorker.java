@@ -0,0 +1,255 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.surfsara.newsreader.pipeline.util.LogOutputStream;
+import nl.surfsara.newsreader.pipeline.util.PipeThread;
+import nl.surfsara.newsreader.pipeline.util.ProcessManager;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * A component that is started once per task and keeps running while documents
+ * are streamed to it. This avoids paying the startup costs of a component
+ * (often a JVM and its models) for every document.
+ *
+ * The component is started with the persistent run script and the same two
+ * default arguments as the run.sh script: the component directory and the
+ * scratch directory. Documents are exchanged over standard in and standard out
+ * using a length framed protocol; all integers are 4 byte big-endian:
+ *
+ * <pre>
+ * request:  [length][length bytes of UTF-8 NAF]
+ * response: [status][length][length bytes of UTF-8 NAF]
+ * </pre>
+ *
+ * A status of 0 means the document was processed successfully. The component
+ * should exit when its standard in is closed. Standard error is logged. When
+ * the component dies, or answers with a length that is negative or larger
+ * than MAX_OUTPUT_LENGTH, it is restarted for the next document.
+ */
+public class PersistentWorker {
+	private static final Logger logger = Logger.getLogger(PersistentWorker.class);
+	/**
+	 * The largest output document accepted from a component (1 GB).
+	 */
+	public static final int MAX_OUTPUT_LENGTH = 1 << 30;
+	/**
+	 * The time a component gets to exit after its standard in is closed
+	 * before it is terminated (in milliseconds).
+	 */
+	public static final long EXIT_TIMEOUT = 5000;
+
+	private PipelineStep pipelineStep;
+	private String localDir;
+	private volatile Process process;
+	private DataOutputStream toWorker;
+	private DataInputStream fromWorker;
+	private Thread stderrThread;
+	private int restarts = -1;
+	private Object processOwner;
+
+	/**
+	 * @param pipelineStep
+	 *            the step the component belongs to
+	 * @param localDir
+	 *            the scratch directory of the component
+	 * @param processOwner
+	 *            the owner the component is registered under with the
+	 *            ProcessManager
+	 */
+	public PersistentWorker(PipelineStep pipelineStep, String localDir, Object processOwner) {
+		this.pipelineStep = pipelineStep;
+		this.localDir = localDir;
+		this.processOwner = processOwner;
+	}
+
+	/**
+	 * Starts the component if it is not running.
+	 *
+	 * @throws IOException
+	 *             When the component could not be started.
+	 */
+	public synchronized void start() throws IOException {
+		if (isAlive()) {
+			return;
+		}
+		File f = new File(pipelineStep.getModulePath() + "/" + ModuleConstants.PERSISTENT_RUNSCRIPT);
+		File component = new File(pipelineStep.getModulePath());
+		File scratch = new File(localDir);
+
+		List<String> argumentList = new ArrayList<String>();
+		argumentList.add("/bin/bash");
+		argumentList.add(f.getAbsolutePath());
+		argumentList.add(component.getAbsolutePath() + "/");
+		argumentList.add(scratch.getAbsolutePath() + "/");
+		logger.info("Starting persistent worker: " + argumentList);
+
+		process = new ProcessBuilder(argumentList).start();
+		ProcessManager.getInstance().register(process, processOwner);
+		toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+		fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+		LogOutputStream los = new LogOutputStream(Logger.getLogger(PersistentWorker.class.getName() + "." + pipelineStep.getName()), Level.ERROR);
+		stderrThread = new Thread(new PipeThread("stderr", process.getErrorStream(), los, false));
+		stderrThread.setDaemon(true);
+		stderrThread.start();
+		restarts++;
+		if (restarts > 0) {
+			logger.warn("Restarted persistent worker for pipelineStep: " + pipelineStep.getName() + " (" + restarts + " restarts so far)");
+		}
+	}
+
+	/**
+	 * Sends a document to the component and waits for the result. A dead
+	 * component is restarted first.
+	 *
+	 * @param document
+	 *            the UTF-8 encoded document (from the position to the limit
+	 *            of the buffer)
+	 * @return the result of processing the document
+	 * @throws IOException
+	 *             When the component died while processing the document. The
+	 *             component is stopped and will be restarted on the next call.
+	 */
+	public synchronized Result process(ByteBuffer document) throws IOException {
+		start();
+		try {
+			toWorker.writeInt(document.remaining());
+			if (document.hasArray()) {
+				toWorker.write(document.array(), document.arrayOffset() + document.position(), document.remaining());
+			} else {
+				byte[] bytes = new byte[document.remaining()];
+				document.duplicate().get(bytes);
+				toWorker.write(bytes);
+			}
+			toWorker.flush();
+			int status = fromWorker.readInt();
+			int length = fromWorker.readInt();
+			if (length < 0 || length > MAX_OUTPUT_LENGTH) {
+				// The stream is out of step with the frames
+				throw new IOException("Invalid output length: " + length + " (status " + status + ")");
+			}
+			byte[] output = new byte[length];
+			fromWorker.readFully(output);
+			return new Result(status, ByteBuffer.wrap(output));
+		} catch (IOException e) {
+			logger.error("Persistent worker for pipelineStep: " + pipelineStep.getName() + " failed: " + e);
+			stop();
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks whether the component process is running.
+	 *
+	 * @return true when the component is running
+	 */
+	public boolean isAlive() {
+		Process p = process;
+		if (p == null) {
+			return false;
+		}
+		try {
+			p.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the component. Its standard in is closed so it can shut down
+	 * cleanly; when it has not exited after EXIT_TIMEOUT, it is terminated
+	 * with all processes it started. This method is not synchronized so that a
+	 * worker that hangs on a document can be killed from another thread.
+	 */
+	public void stop() {
+		Process p = process;
+		if (p == null) {
+			return;
+		}
+		process = null;
+		try {
+			p.getOutputStream().close();
+		} catch (IOException e) {
+			logger.debug(e);
+		}
+		if (waitForExit(p, EXIT_TIMEOUT)) {
+			ProcessManager.getInstance().unregister(p);
+		} else {
+			ProcessManager.getInstance().destroyTree(p, "persistent worker " + pipelineStep.getName());
+		}
+	}
+
+	/**
+	 * Waits a bounded time for a process to exit.
+	 *
+	 * @return true when the process has exited
+	 */
+	private static boolean waitForExit(Process p, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (true) {
+			try {
+				p.exitValue();
+				return true;
+			} catch (IllegalThreadStateException e) {
+				// Still running
+			}
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				// Terminate the process right away
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The response of the component to a single document.
+	 */
+	public static class Result {
+		private final int status;
+		private final ByteBuffer output;
+
+		public Result(int status, ByteBuffer output) {
+			this.status = status;
+			this.output = output;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public ByteBuffer getOutput() {
+			return output;
+		}
+	}
+}
@@ -20,7 +20,9 @@ import java.lang.reflect.Constructor;
 
 /**
  * Class that defines for each Newsreader component its name, executing class,
- * timeout and allowable newlines in stderr.
+ * timeout, allowable newlines in stderr, how failures are detected, how the
+ * input is delivered and the mode in which the component is run (a subprocess
+ * per document or a persistent worker per task).
  * 
  * @author mathijs.kattenberg@surfsara.nl
  */
@@ -34,17 +36,142 @@ public class PipelineStep implements Serializable {
 	private final Class<? extends Module> c;
 	private long timeout;
 	private int numErrorLines;
+	private Mode mode;
+	private int bufferSize = 1;
+	private FailurePolicy failurePolicy = FailurePolicy.STDERR;
+	private int stderrTailLines = 50;
+	private InputDelivery inputDelivery = InputDelivery.STDIN;
+	private String componentsRoot = ModuleConstants.ARCHIVEROOT;
+	private String version;
+	private transient Constructor<? extends Module> constructor;
+
+	/**
+	 * The ways in which a component can be run.
+	 */
+	public enum Mode {
+		/** Start the run script in a new subprocess for every document. */
+		SUBPROCESS("subprocess"),
+		/** Start the component once per task and stream documents to it. */
+		PERSISTENT("persistent");
+
+		private final String name;
+
+		private Mode(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public static Mode fromName(String name) {
+			for (Mode m : values()) {
+				if (m.getName().equals(name)) {
+					return m;
+				}
+			}
+			throw new IllegalArgumentException("Unknown mode: " + name);
+		}
+	}
+
+	/**
+	 * The ways in which a failing component is detected.
+	 */
+	public enum FailurePolicy {
+		/** The component exited with a non-zero exit code. */
+		EXITCODE("exitcode"),
+		/** The component wrote more than numErrorLines lines to stderr. */
+		STDERR("stderr"),
+		/** Either of the above. */
+		BOTH("both");
+
+		private final String name;
+
+		private FailurePolicy(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public static FailurePolicy fromName(String name) {
+			for (FailurePolicy f : values()) {
+				if (f.getName().equals(name)) {
+					return f;
+				}
+			}
+			throw new IllegalArgumentException("Unknown failure policy: " + name);
+		}
+	}
+
+	/**
+	 * The ways in which the input document is handed to a subprocess
+	 * component.
+	 */
+	public enum InputDelivery {
+		/** Pipe the document to standard in. */
+		STDIN("stdin"),
+		/** Write the document to a file and pass its path as an argument. */
+		FILE("file"),
+		/** Both of the above. */
+		BOTH("both");
+
+		private final String name;
+
+		private InputDelivery(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean usesStdin() {
+			return this != FILE;
+		}
+
+		public boolean usesFile() {
+			return this != STDIN;
+		}
+
+		public static InputDelivery fromName(String name) {
+			for (InputDelivery d : values()) {
+				if (d.getName().equals(name)) {
+					return d;
+				}
+			}
+			throw new IllegalArgumentException("Unknown input delivery: " + name);
+		}
+	}
 
 	public PipelineStep(String name, Class<? extends Module> c, long timeout, int numErrorLines) {
+		this(name, c, timeout, numErrorLines, Mode.SUBPROCESS);
+	}
+
+	public PipelineStep(String name, Class<? extends Module> c, long timeout, int numErrorLines, Mode mode) {
 		this.name = name;
 		this.c = c;
 		this.timeout = timeout;
 		this.numErrorLines = numErrorLines;
+		this.mode = mode;
 	}
 
+	/**
+	 * Creates a new instance of the module of this step. The constructor is
+	 * looked up once and cached.
+	 * 
+	 * @return a new module
+	 * @throws Exception
+	 *             When the module could not be instantiated
+	 */
 	public Module getInstance() throws Exception {
-		Constructor<? extends Module> constructor = c.getConstructor(PipelineStep.class);
-		return constructor.newInstance(this);
+		Constructor<? extends Module> cached = constructor;
+		if (cached == null) {
+			cached = c.getConstructor(PipelineStep.class);
+			constructor = cached;
+		}
+		return cached.newInstance(this);
 	}
 
 	public String getName() {
@@ -52,7 +179,37 @@ public class PipelineStep implements Serializable {
 	}
 
 	public String getModulePath() {
-		return ModuleConstants.ARCHIVEROOT + "/" + getName();
+		return componentsRoot + "/" + getName();
+	}
+
+	public String getComponentsRoot() {
+		return componentsRoot;
+	}
+
+	/**
+	 * Sets the directory that holds the component directories. On Hadoop this
+	 * is the symlink to the distributed cache archive (the default); locally
+	 * it can be any directory with extracted components.
+	 * 
+	 * @param componentsRoot
+	 *            the directory holding the component directories
+	 */
+	public void setComponentsRoot(String componentsRoot) {
+		this.componentsRoot = componentsRoot;
+	}
+
+	/**
+	 * Gets the version of the component, used as part of the key of the step
+	 * cache (see the StepCache class).
+	 * 
+	 * @return the version or null to derive it from the component directory
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String version) {
+		this.version = version;
 	}
 
 	public int getNumErrorLines() {
@@ -63,4 +220,87 @@ public class PipelineStep implements Serializable {
 		return timeout;
 	}
 
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isPersistent() {
+		return mode == Mode.PERSISTENT;
+	}
+
+	public FailurePolicy getFailurePolicy() {
+		return failurePolicy;
+	}
+
+	public void setFailurePolicy(FailurePolicy failurePolicy) {
+		this.failurePolicy = failurePolicy;
+	}
+
+	/**
+	 * Decides whether a run of the component failed according to the failure
+	 * policy of this step.
+	 * 
+	 * @param exitCode
+	 *            the exit code of the component
+	 * @param stderrLines
+	 *            the number of lines the component wrote to stderr
+	 * @return true when the run failed
+	 */
+	public boolean isFailure(int exitCode, long stderrLines) {
+		boolean exitFailure = exitCode != 0;
+		boolean stderrFailure = stderrLines > numErrorLines;
+		switch (failurePolicy) {
+		case EXITCODE:
+			return exitFailure;
+		case BOTH:
+			return exitFailure || stderrFailure;
+		default:
+			return stderrFailure;
+		}
+	}
+
+	/**
+	 * Gets the number of stderr lines that are kept for the log.
+	 * 
+	 * @return the number of lines at the end of stderr that are logged
+	 */
+	public int getStderrTailLines() {
+		return stderrTailLines;
+	}
+
+	public void setStderrTailLines(int stderrTailLines) {
+		this.stderrTailLines = stderrTailLines;
+	}
+
+	/**
+	 * Gets how the input document is handed to the component.
+	 * 
+	 * @return the input delivery of this step
+	 */
+	public InputDelivery getInputDelivery() {
+		return inputDelivery;
+	}
+
+	public void setInputDelivery(InputDelivery inputDelivery) {
+		this.inputDelivery = inputDelivery;
+	}
+
+	/**
+	 * Gets the number of documents that can wait for this step when the
+	 * pipeline runs in pipelined execution mode.
+	 * 
+	 * @return the size of the input buffer of this step
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
 }
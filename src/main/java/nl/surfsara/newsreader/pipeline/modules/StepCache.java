@@ -0,0 +1,327 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import nl.surfsara.newsreader.pipeline.util.LocalCache;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+/**
+ * A content-addressed cache of the output of a pipeline step. The key of a
+ * document is the SHA-256 hash of the step name, the version of the component
+ * and the input document, so a step is only run again when its component or
+ * its input changed. Only successful output is cached.
+ * 
+ * The entries are stored as files in a directory on HDFS (one subdirectory
+ * per step, so the cache of a step can be removed on its own) and, when a
+ * LocalCache is set, on local disk. Lookups try the local cache first and
+ * copy entries found on HDFS to it.
+ * 
+ * The version of a component is the version given in the pipeline layout or,
+ * when there is none, the version of the components archive: its checksum on
+ * HDFS (or its length and modification time when the file system has no
+ * checksums), computed once when the job is submitted. A new archive therefore
+ * invalidates the entries of all steps without a version in the layout. When
+ * the components are a local directory (in local mode) the version is a hash
+ * of the run scripts and of the paths, sizes and modification times of all
+ * files in the directory of the component.
+ */
+public class StepCache {
+	private static final Logger logger = Logger.getLogger(StepCache.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final FileSystem fs;
+	private final Path stepDir;
+	private final byte[] stepHash;
+	private LocalCache localCache;
+
+	/**
+	 * @param conf
+	 *            the configuration of the file system of the cache
+	 * @param cacheDir
+	 *            the directory of the cache
+	 * @param pipelineStep
+	 *            the step whose output is cached
+	 * @param componentsVersion
+	 *            the version of the components archive (see
+	 *            getArchiveVersion) or null to compute the version from the
+	 *            component directory
+	 * @throws IOException
+	 *             When the file system of the cache cannot be accessed
+	 */
+	public StepCache(Configuration conf, String cacheDir, PipelineStep pipelineStep, String componentsVersion) throws IOException {
+		this.stepDir = new Path(cacheDir, pipelineStep.getName());
+		this.fs = stepDir.getFileSystem(conf);
+		String version = pipelineStep.getVersion();
+		if (version == null) {
+			version = componentsVersion != null ? componentsVersion : getComponentVersion(pipelineStep);
+		}
+		MessageDigest md = newDigest();
+		md.update(pipelineStep.getName().getBytes(UTF8));
+		md.update((byte) 0);
+		md.update(version.getBytes(UTF8));
+		this.stepHash = md.digest();
+		logger.info("Caching output of pipelineStep: " + pipelineStep.getName() + " (version " + version + ") in: " + stepDir);
+	}
+
+	/**
+	 * Creates the cache of a step.
+	 * 
+	 * @param conf
+	 *            the configuration of the file system of the cache
+	 * @param cacheDir
+	 *            the directory of the cache or null to disable caching
+	 * @param localDir
+	 *            the directory of the local cache or null to use none
+	 * @param localMegabytes
+	 *            the size of the local cache
+	 * @param pipelineStep
+	 *            the step whose output is cached
+	 * @param componentsVersion
+	 *            the version of the components archive or null
+	 * @return the cache or null when caching is disabled or the cache cannot
+	 *         be accessed
+	 */
+	public static StepCache create(Configuration conf, String cacheDir, String localDir, long localMegabytes, PipelineStep pipelineStep, String componentsVersion) {
+		if (cacheDir == null) {
+			return null;
+		}
+		try {
+			StepCache cache = new StepCache(conf, cacheDir, pipelineStep, componentsVersion);
+			if (localDir != null) {
+				cache.setLocalCache(LocalCache.getInstance(localDir, localMegabytes * 1024 * 1024));
+			}
+			return cache;
+		} catch (IOException e) {
+			logger.error("Running pipelineStep: " + pipelineStep.getName() + " without cache: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param localCache
+	 *            the cache on local disk or null to use only the cache on HDFS
+	 */
+	public void setLocalCache(LocalCache localCache) {
+		this.localCache = localCache;
+	}
+
+	/**
+	 * Computes the key of an input document.
+	 * 
+	 * @param content
+	 *            the input document; its position is not changed
+	 * @return the key of the output of the step for this input
+	 */
+	public String getKey(ByteBuffer content) {
+		MessageDigest md = newDigest();
+		md.update(stepHash);
+		if (content != null) {
+			md.update(content.duplicate());
+		}
+		return toHex(md.digest());
+	}
+
+	/**
+	 * Looks up the output of the step.
+	 * 
+	 * @param key
+	 *            the key of the input document (see getKey)
+	 * @return the cached output or null when it is not cached
+	 */
+	public ByteBuffer get(String key) {
+		if (localCache != null) {
+			byte[] content = localCache.get(key);
+			if (content != null) {
+				return ByteBuffer.wrap(content);
+			}
+		}
+		Path p = getPath(key);
+		try {
+			FileStatus status = fs.getFileStatus(p);
+			byte[] content = new byte[(int) status.getLen()];
+			FSDataInputStream in = fs.open(p);
+			try {
+				in.readFully(0, content);
+			} finally {
+				in.close();
+			}
+			if (localCache != null) {
+				localCache.put(key, content);
+			}
+			return ByteBuffer.wrap(content);
+		} catch (IOException e) {
+			// FileNotFoundException for documents that are not cached
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the output of the step to the cache. Failures to write are logged
+	 * and otherwise ignored.
+	 * 
+	 * @param key
+	 *            the key of the input document (see getKey)
+	 * @param content
+	 *            the output of the step; its position is not changed
+	 */
+	public void put(String key, ByteBuffer content) {
+		ByteBuffer b = content.duplicate();
+		byte[] bytes = new byte[b.remaining()];
+		b.get(bytes);
+		if (localCache != null) {
+			localCache.put(key, bytes);
+		}
+		Path p = getPath(key);
+		Path tmp = new Path(stepDir, "_tmp/" + key + "." + UUID.randomUUID().toString());
+		try {
+			FSDataOutputStream out = fs.create(tmp, true);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+			fs.mkdirs(p.getParent());
+			// Fails when another task added the same entry in the meantime
+			if (!fs.rename(tmp, p)) {
+				fs.delete(tmp, false);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not add an entry to the cache in " + stepDir + ": " + e);
+		}
+	}
+
+	private Path getPath(String key) {
+		return new Path(new Path(stepDir, key.substring(0, 2)), key);
+	}
+
+	/**
+	 * Computes the version of the components archive from its checksum or,
+	 * when the file system has no checksums, its length and modification
+	 * time.
+	 * 
+	 * @param conf
+	 *            the configuration of the file system of the archive
+	 * @param archive
+	 *            the path of the components archive
+	 * @return a hexadecimal hash
+	 * @throws IOException
+	 *             When the archive cannot be accessed
+	 */
+	public static String getArchiveVersion(Configuration conf, String archive) throws IOException {
+		Path p = new Path(archive);
+		FileSystem fs = p.getFileSystem(conf);
+		MessageDigest md = newDigest();
+		FileChecksum checksum = fs.getFileChecksum(p);
+		if (checksum != null) {
+			md.update(checksum.getAlgorithmName().getBytes(UTF8));
+			md.update(checksum.getBytes());
+		} else {
+			FileStatus status = fs.getFileStatus(p);
+			md.update((status.getLen() + "\t" + status.getModificationTime()).getBytes(UTF8));
+		}
+		return toHex(md.digest()).substring(0, 16);
+	}
+
+	/**
+	 * Computes the version of a component from its run scripts and the paths,
+	 * sizes and modification times of all files in its directory.
+	 * 
+	 * @param pipelineStep
+	 *            the step of the component
+	 * @return a hexadecimal hash or "unknown" when the component directory
+	 *         does not exist
+	 */
+	static String getComponentVersion(PipelineStep pipelineStep) {
+		File moduleDir = new File(pipelineStep.getModulePath());
+		if (!moduleDir.isDirectory()) {
+			logger.warn("Component directory of pipelineStep: " + pipelineStep.getName() + " not found; set a version in the pipeline layout to cache its output safely.");
+			return "unknown";
+		}
+		List<String> files = new ArrayList<String>();
+		listFiles(moduleDir, "", files);
+		Collections.sort(files);
+		MessageDigest md = newDigest();
+		for (String f : files) {
+			md.update(f.getBytes(UTF8));
+			md.update((byte) '\n');
+		}
+		for (String script : new String[] { ModuleConstants.RUNSCRIPT, ModuleConstants.PERSISTENT_RUNSCRIPT }) {
+			File f = new File(moduleDir, script);
+			if (f.isFile()) {
+				try {
+					md.update(Files.readAllBytes(f.toPath()));
+				} catch (IOException e) {
+					logger.warn("Could not read " + f + ": " + e);
+				}
+			}
+		}
+		return toHex(md.digest()).substring(0, 16);
+	}
+
+	private static void listFiles(File dir, String prefix, List<String> result) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File f : children) {
+			String path = prefix + f.getName();
+			if (f.isDirectory()) {
+				listFiles(f, path + "/", result);
+			} else {
+				result.add(path + "\t" + f.length() + "\t" + f.lastModified());
+			}
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform supports SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.surfsara.newsreader.pipeline.util.LatencyHistogram;
+
+/**
+ * Collects the numbers of a single pipeline step within a task: documents
+ * processed, failed, skipped and timed out, the time spent, the bytes in and
+ * out and the hits and misses of the step cache. The numbers are updated by
+ * the threads running the step and read by the Cascading functions, which
+ * publish them as counters. In addition a latency histogram is kept per
+ * document size class, together with the slowest documents, for the
+ * performance report (see the PerformanceReport class).
+ */
+public class StepMetrics {
+	public static final String PROCESSED = "Documents processed";
+	public static final String FAILED = "Documents failed";
+	public static final String SKIPPED = "Documents skipped";
+	public static final String TIMED_OUT = "Documents timed out";
+	public static final String MILLIS = "Total ms";
+	public static final String INPUT_BYTES = "Input bytes";
+	public static final String OUTPUT_BYTES = "Output bytes";
+	public static final String CACHE_HITS = "Cache hits";
+	public static final String CACHE_MISSES = "Cache misses";
+	/**
+	 * The names of all counters in the order in which they are reported.
+	 */
+	public static final String[] COUNTERS = { PROCESSED, FAILED, SKIPPED, TIMED_OUT, MILLIS, INPUT_BYTES, OUTPUT_BYTES, CACHE_HITS, CACHE_MISSES };
+
+	/**
+	 * The upper limits (exclusive, in bytes) of the document size classes; the
+	 * last class holds all larger documents.
+	 */
+	public static final long[] SIZE_LIMITS = { 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024 };
+	/**
+	 * The names of the document size classes.
+	 */
+	public static final String[] SIZE_CLASSES = { "0-16KB", "16-64KB", "64-256KB", "256KB-1MB", "1MB+" };
+	/**
+	 * The number of slowest documents that are kept.
+	 */
+	public static final int SLOWEST = 10;
+
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong millis = new AtomicLong();
+	private final AtomicLong inputBytes = new AtomicLong();
+	private final AtomicLong outputBytes = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong minMillis = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong maxMillis = new AtomicLong();
+	private final LatencyHistogram[] histograms = new LatencyHistogram[SIZE_CLASSES.length];
+	private final PriorityQueue<SlowDocument> slowest = new PriorityQueue<SlowDocument>();
+
+	public StepMetrics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records a document that was skipped because it failed in an earlier
+	 * step.
+	 */
+	public void recordSkipped() {
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Records a document whose output was found in the step cache; the step
+	 * was not run on it.
+	 */
+	public void recordCacheHit() {
+		cacheHits.incrementAndGet();
+	}
+
+	/**
+	 * Records a document whose output was not found in the step cache.
+	 */
+	public void recordCacheMiss() {
+		cacheMisses.incrementAndGet();
+	}
+
+	/**
+	 * Records a document the step was run on.
+	 * 
+	 * @param name
+	 *            the name of the document
+	 * @param elapsed
+	 *            the time the step took in milliseconds
+	 * @param in
+	 *            the size of the input document in bytes
+	 * @param out
+	 *            the size of the output document in bytes
+	 * @param hasFailed
+	 *            whether the step failed on the document
+	 * @param hasTimedOut
+	 *            whether the step timed out on the document
+	 */
+	public void record(String name, long elapsed, long in, long out, boolean hasFailed, boolean hasTimedOut) {
+		processed.incrementAndGet();
+		if (hasFailed) {
+			failed.incrementAndGet();
+		}
+		if (hasTimedOut) {
+			timedOut.incrementAndGet();
+		}
+		millis.addAndGet(elapsed);
+		inputBytes.addAndGet(in);
+		outputBytes.addAndGet(out);
+		long min = minMillis.get();
+		while (elapsed < min && !minMillis.compareAndSet(min, elapsed)) {
+			min = minMillis.get();
+		}
+		long max = maxMillis.get();
+		while (elapsed > max && !maxMillis.compareAndSet(max, elapsed)) {
+			max = maxMillis.get();
+		}
+		histograms[getSizeClass(in)].record(elapsed);
+		synchronized (slowest) {
+			if (slowest.size() < SLOWEST || elapsed > slowest.peek().getMillis()) {
+				slowest.add(new SlowDocument(name, elapsed, in));
+				if (slowest.size() > SLOWEST) {
+					slowest.poll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            the size of a document
+	 * @return the index of the size class of the document
+	 */
+	public static int getSizeClass(long bytes) {
+		for (int i = 0; i < SIZE_LIMITS.length; i++) {
+			if (bytes < SIZE_LIMITS[i]) {
+				return i;
+			}
+		}
+		return SIZE_LIMITS.length;
+	}
+
+	/**
+	 * @param sizeClass
+	 *            the index of a size class
+	 * @return the latencies of the documents in the size class
+	 */
+	public LatencyHistogram getHistogram(int sizeClass) {
+		return histograms[sizeClass];
+	}
+
+	/**
+	 * @return the slowest documents, slowest first
+	 */
+	public List<SlowDocument> getSlowestDocuments() {
+		List<SlowDocument> list;
+		synchronized (slowest) {
+			list = new ArrayList<SlowDocument>(slowest);
+		}
+		Collections.sort(list, Collections.reverseOrder());
+		return list;
+	}
+
+	/**
+	 * @return the current value of every counter, in the order of COUNTERS
+	 */
+	public Map<String, Long> getCounters() {
+		Map<String, Long> counters = new LinkedHashMap<String, Long>();
+		counters.put(PROCESSED, processed.get());
+		counters.put(FAILED, failed.get());
+		counters.put(SKIPPED, skipped.get());
+		counters.put(TIMED_OUT, timedOut.get());
+		counters.put(MILLIS, millis.get());
+		counters.put(INPUT_BYTES, inputBytes.get());
+		counters.put(OUTPUT_BYTES, outputBytes.get());
+		counters.put(CACHE_HITS, cacheHits.get());
+		counters.put(CACHE_MISSES, cacheMisses.get());
+		return counters;
+	}
+
+	/**
+	 * @return the shortest time the step took on a document in milliseconds
+	 *         (0 when no documents were processed)
+	 */
+	public long getMinMillis() {
+		long min = minMillis.get();
+		return min == Long.MAX_VALUE ? 0 : min;
+	}
+
+	/**
+	 * @return the longest time the step took on a document in milliseconds
+	 */
+	public long getMaxMillis() {
+		return maxMillis.get();
+	}
+
+	/**
+	 * @return a one line summary of the numbers
+	 */
+	public String getSummary() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Long> e : getCounters().entrySet()) {
+			sb.append(e.getKey()).append(": ").append(e.getValue()).append(", ");
+		}
+		sb.append("min ms: ").append(getMinMillis()).append(", max ms: ").append(getMaxMillis());
+		return sb.toString();
+	}
+
+	/**
+	 * A document and the time the step took on it.
+	 */
+	public static class SlowDocument implements Comparable<SlowDocument> {
+		private final String name;
+		private final long millis;
+		private final long bytes;
+
+		public SlowDocument(String name, long millis, long bytes) {
+			this.name = name;
+			this.millis = millis;
+			this.bytes = bytes;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getMillis() {
+			return millis;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public int compareTo(SlowDocument o) {
+			return millis < o.millis ? -1 : (millis == o.millis ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,318 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import nl.surfsara.newsreader.pipeline.util.IoPump;
+import nl.surfsara.newsreader.pipeline.util.ProcessManager;
+import nl.surfsara.newsreader.pipeline.util.ScratchArea;
+
+import org.apache.log4j.Logger;
+import org.json.JSONObject;
+
+/**
+ * Runs a single pipeline step on documents. The runner owns the resources a
+ * step needs within a task: the thread pool the modules run in and, for each
+ * document that can be in flight at the same time, a scratch directory, a module
+ * instance that is reset and reused for every document and (in persistent mode)
+ * a worker.
+ */
+public class StepRunner {
+	private static final Logger logger = Logger.getLogger(StepRunner.class);
+	private PipelineStep pipelineStep;
+	private String localDir;
+	private int parallelism;
+	private ModuleExecutorService mes;
+	private BlockingQueue<Slot> slots;
+	private String scratchDir;
+	private ScratchArea scratchArea;
+	private StepMetrics metrics = new StepMetrics();
+	private StepCache cache;
+
+	/**
+	 * @param pipelineStep
+	 *            the step to run
+	 * @param localDir
+	 *            the scratch directory for this step
+	 * @param parallelism
+	 *            the number of documents that can be run at the same time
+	 */
+	public StepRunner(PipelineStep pipelineStep, String localDir, int parallelism) {
+		this.pipelineStep = pipelineStep;
+		this.localDir = localDir;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the directory for the input files of components that read their
+	 * input from a file. Must be called before start().
+	 * 
+	 * @param scratchDir
+	 *            the directory or null to use /dev/shm when available
+	 */
+	public void setScratchDir(String scratchDir) {
+		this.scratchDir = scratchDir;
+	}
+
+	/**
+	 * Sets the cache of the output of the step. Documents found in the cache
+	 * get the cached output without running the step.
+	 * 
+	 * @param cache
+	 *            the cache or null to always run the step
+	 */
+	public void setCache(StepCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets up the scratch directories and starts the persistent workers (if
+	 * any).
+	 */
+	public void start() {
+		mes = new ModuleExecutorService();
+		if (pipelineStep.getInputDelivery().usesFile()) {
+			scratchArea = new ScratchArea(scratchDir, localDir);
+			logger.info("Input files for pipelineStep: " + pipelineStep.getName() + " are written to: " + scratchArea.getDirectory());
+		}
+		slots = new LinkedBlockingQueue<Slot>();
+		for (int i = 0; i < parallelism; i++) {
+			String slotDir = parallelism == 1 ? localDir : localDir + "/" + i;
+			File f = new File(slotDir);
+			f.mkdirs();
+			PersistentWorker worker = null;
+			if (pipelineStep.isPersistent()) {
+				worker = new PersistentWorker(pipelineStep, slotDir, this);
+				try {
+					worker.start();
+				} catch (IOException e) {
+					// The worker is started again for the first document
+					logger.error("Could not start persistent worker for pipelineStep: " + pipelineStep.getName() + ": " + e);
+				}
+			}
+			slots.add(new Slot(slotDir, worker));
+		}
+	}
+
+	/**
+	 * Runs the step on a document. Documents that failed in an earlier step
+	 * are skipped and documents whose output is in the step cache get the
+	 * cached output. Resumed documents skip the steps before their resume
+	 * step. On failure the document keeps its input content and is flagged as
+	 * failed in this step.
+	 *
+	 * @param doc
+	 *            the document to process; it is updated in place
+	 * @return the processed document
+	 */
+	public NewsreaderDocument run(NewsreaderDocument doc) {
+		if (doc.hasFailed()) {
+			logger.info("Skipping pipelineStep: " + pipelineStep.getName() + " for document: " + doc.getName() + " because of previous failure...");
+			metrics.recordSkipped();
+			if (doc.isTraced()) {
+				long now = System.currentTimeMillis();
+				doc.addTrace(traceRecord("skipped", now, now, 0, 0, 0, 0));
+			}
+			return doc;
+		}
+		if (doc.getResumeStep() != null) {
+			if (!doc.getResumeStep().equals(pipelineStep.getName())) {
+				// Resumed documents already passed this step in an earlier run
+				return doc;
+			}
+			doc.setResumeStep(null);
+		}
+		long inputBytes = doc.getContent() == null ? 0 : doc.getContent().remaining();
+		String cacheKey = null;
+		if (cache != null) {
+			cacheKey = cache.getKey(doc.getContent());
+			ByteBuffer cached = cache.get(cacheKey);
+			if (cached != null) {
+				logger.info("Using cached output of pipelineStep: " + pipelineStep.getName() + " for document: " + doc.getName());
+				metrics.recordCacheHit();
+				doc.setContent(cached);
+				if (doc.isTraced()) {
+					long now = System.currentTimeMillis();
+					doc.addTrace(traceRecord("cached", now, now, 0, 0, inputBytes, cached.remaining()));
+				}
+				return doc;
+			}
+			metrics.recordCacheMiss();
+		}
+		Slot slot = null;
+		FutureTask<Module> executeModule = null;
+		long tstart = System.currentTimeMillis();
+		try {
+			slot = slots.take();
+			Module instance = slot.module;
+			if (instance == null) {
+				instance = pipelineStep.getInstance();
+				slot.module = instance;
+			} else {
+				instance.reset();
+			}
+			// The module gets its own view of the content, so the input is
+			// kept intact when the step fails
+			instance.setInputBuffer(doc.getContent() == null ? null : doc.getContent().duplicate());
+			instance.setLocalDirectory(slot.localDir);
+			if (instance instanceof PersistentNewsreaderModule) {
+				((PersistentNewsreaderModule) instance).setWorker(slot.worker);
+			}
+			if (instance instanceof SubprocessModule) {
+				((SubprocessModule) instance).setScratchArea(scratchArea);
+				((SubprocessModule) instance).setProcessOwner(this);
+			}
+			tstart = System.currentTimeMillis();
+			executeModule = mes.executeModule(instance);
+			Module outputInstance = executeModule.get(pipelineStep.getTimeout(), TimeUnit.MILLISECONDS);
+			ByteBuffer outputDocument = outputInstance.getOutputBuffer();
+			boolean outputDocFailed = outputInstance.hasFailed();
+			long tend = System.currentTimeMillis();
+			logger.info("Applying pipelineStep: " + pipelineStep.getName() + " on document: " + doc.getName() + " took " + (tend - tstart) + " ms.");
+			logger.info("Module " + pipelineStep.getName() + " result: " + !outputDocFailed + " on document: " + doc.getName());
+			if (outputDocFailed) {
+				// Whatever the component wrote may be partial; the document
+				// keeps the input of this step so it can be resumed here
+				doc.setFailedStep(pipelineStep.getName());
+			} else {
+				doc.setContent(outputDocument);
+				doc.setFailed(false);
+			}
+			long outputBytes = outputDocument == null ? 0 : outputDocument.remaining();
+			metrics.record(doc.getName(), tend - tstart, inputBytes, outputBytes, outputDocFailed, false);
+			if (cacheKey != null && !outputDocFailed && outputDocument != null) {
+				cache.put(cacheKey, outputDocument);
+			}
+			if (doc.isTraced()) {
+				doc.addTrace(traceRecord(outputDocFailed ? "failed" : "ok", tstart, tend, outputInstance.getExitCode(), outputInstance.getErrorLineCount(), inputBytes, outputBytes));
+			}
+		} catch (InterruptedException e) {
+			if (executeModule != null) {
+				executeModule.cancel(true);
+				slot.module = null;
+			}
+			Thread.currentThread().interrupt();
+			doc.setFailedStep(pipelineStep.getName());
+			metrics.record(doc.getName(), System.currentTimeMillis() - tstart, inputBytes, 0, true, false);
+			if (doc.isTraced()) {
+				doc.addTrace(traceRecord("interrupted", tstart, System.currentTimeMillis(), -1, 0, inputBytes, 0));
+			}
+			logger.error(e);
+		} catch (Exception e) {
+			boolean timedOut = e instanceof TimeoutException;
+			if (timedOut) {
+				// Interrupting the module terminates its subprocess tree
+				executeModule.cancel(true);
+				// The module may still be cleaning up; use a new one for the next document
+				slot.module = null;
+				if (slot.worker != null) {
+					// The worker is still busy with this document; restart it for the next one
+					slot.worker.stop();
+				}
+			}
+			doc.setFailedStep(pipelineStep.getName());
+			metrics.record(doc.getName(), System.currentTimeMillis() - tstart, inputBytes, 0, true, timedOut);
+			if (doc.isTraced()) {
+				doc.addTrace(traceRecord(timedOut ? "timeout" : "error", tstart, System.currentTimeMillis(), -1, 0, inputBytes, 0));
+			}
+			logger.error(e);
+		} finally {
+			if (slot != null) {
+				slots.add(slot);
+			}
+		}
+		return doc;
+	}
+
+	/**
+	 * Stops the persistent workers and the thread pool of the step and
+	 * terminates the subprocesses of this runner that are still running.
+	 * Runners are stopped when they have processed all their documents, so
+	 * these are leftovers of modules that did not clean up. Subprocesses of
+	 * other runners in the same JVM are left alone.
+	 */
+	public void stop() {
+		if (slots != null) {
+			for (Slot slot : slots) {
+				if (slot.worker != null) {
+					slot.worker.stop();
+				}
+			}
+		}
+		if (mes != null) {
+			mes.destroy();
+		}
+		if (scratchArea != null) {
+			scratchArea.destroy();
+		}
+		logger.info("PipelineStep " + pipelineStep.getName() + ": " + metrics.getSummary());
+		ProcessManager pm = ProcessManager.getInstance();
+		pm.destroyAll(this);
+		if (pm.getReapedProcesses() > 0) {
+			logger.info("Terminated " + pm.getReapedProcesses() + " subprocesses in this task so far: reclaimed " + (pm.getReapedRssBytes() / (1024 * 1024)) + " MB resident memory and "
+					+ pm.getReapedCpuMillis() + " ms cpu time used by them.");
+		}
+		IoPump pump = IoPump.getInstance();
+		logger.info("Pumped " + pump.getBytesPumped() + " bytes in " + pump.getPumps() + " subprocess streams in this task so far using " + pump.getThreads() + " threads; blocked on reads "
+				+ pump.getReadBlockedMillis() + " ms, on writes " + pump.getWriteBlockedMillis() + " ms.");
+	}
+
+	public PipelineStep getPipelineStep() {
+		return pipelineStep;
+	}
+
+	private String traceRecord(String status, long start, long end, int exitCode, long stderrLines, long inputBytes, long outputBytes) {
+		JSONObject jo = new JSONObject();
+		jo.put("step", pipelineStep.getName());
+		jo.put("status", status);
+		jo.put("start", start);
+		jo.put("end", end);
+		jo.put("exit", exitCode);
+		jo.put("stderr", stderrLines);
+		jo.put("in", inputBytes);
+		jo.put("out", outputBytes);
+		return jo.toString();
+	}
+
+	/**
+	 * @return the metrics of the documents run by this runner
+	 */
+	public StepMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * The resources used by a single document in flight.
+	 */
+	private static class Slot {
+		private final String localDir;
+		private final PersistentWorker worker;
+		private Module module;
+
+		private Slot(String localDir, PersistentWorker worker) {
+			this.localDir = localDir;
+			this.worker = worker;
+		}
+	}
+}
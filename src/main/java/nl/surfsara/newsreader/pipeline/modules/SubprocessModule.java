@@ -15,12 +15,22 @@
  */
 package nl.surfsara.newsreader.pipeline.modules;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.UUID;
+import java.util.concurrent.Future;
 
-import nl.surfsara.newsreader.pipeline.util.PipeThread;
+import nl.surfsara.newsreader.pipeline.util.ByteBufferInputStream;
+import nl.surfsara.newsreader.pipeline.util.IoPump;
+import nl.surfsara.newsreader.pipeline.util.ProcessManager;
+import nl.surfsara.newsreader.pipeline.util.ScratchArea;
+import nl.surfsara.newsreader.pipeline.util.StderrRingBuffer;
 
 import org.apache.log4j.Logger;
 
@@ -28,14 +38,30 @@ import org.apache.log4j.Logger;
  * An abstract module that runs in a subprocess. Most modules will run in a
  * subprocess of some sort. This functionality is provided here.
  * 
+ * The subprocess is registered with the ProcessManager under the owner set
+ * by the runner of the step. When the thread running
+ * the module is interrupted (for example because the module timed out) the
+ * subprocess and all of its descendants are terminated. The standard streams of
+ * the subprocess are copied by the shared threads of the IoPump.
+ * 
  * @author mathijs.kattenberg@surfsara.nl
  */
 public abstract class SubprocessModule extends AbstractModule {
 	private static final Logger logger = Logger.getLogger(SubprocessModule.class);
+	/**
+	 * The size of the buffer that holds the end of the standard error stream.
+	 */
+	protected static final int STDERR_BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The largest standard out buffer that is kept when a module is reused.
+	 */
+	protected static final int MAX_RETAINED_OUTPUT_BUFFER = 16 * 1024 * 1024;
 	private InputStream subProcessStdIn = System.in;
 	private OutputStream subProcessStdOut = System.out;
 	private OutputStream subProcessStdErr = System.err;
 	private String commandLine = "";
+	private ScratchArea scratchArea;
+	private Object processOwner;
 
 	public void setCommandLine(String value) {
 		this.commandLine = value;
@@ -53,6 +79,47 @@ public abstract class SubprocessModule extends AbstractModule {
 		this.subProcessStdIn = subProcessStdIn;
 	}
 
+	/**
+	 * Pipes the bytes of a buffer to the standard in of the subprocess as they
+	 * are, without any charset conversion.
+	 * 
+	 * @param subProcessStdIn
+	 *            the bytes to write to standard in
+	 */
+	public void setSubProcessStdIn(ByteBuffer subProcessStdIn) {
+		this.subProcessStdIn = new ByteBufferInputStream(subProcessStdIn);
+	}
+
+	public ScratchArea getScratchArea() {
+		return scratchArea;
+	}
+
+	/**
+	 * Sets the scratch area for input files. Without a scratch area input files
+	 * are written to the local directory.
+	 * 
+	 * @param scratchArea
+	 *            the scratch area to use
+	 */
+	public void setScratchArea(ScratchArea scratchArea) {
+		this.scratchArea = scratchArea;
+	}
+
+	public Object getProcessOwner() {
+		return processOwner;
+	}
+
+	/**
+	 * Sets the owner the subprocesses are registered under with the
+	 * ProcessManager.
+	 * 
+	 * @param processOwner
+	 *            the owner, usually the runner of the step
+	 */
+	public void setProcessOwner(Object processOwner) {
+		this.processOwner = processOwner;
+	}
+
 	public OutputStream getSubProcessStdOut() {
 		return subProcessStdOut;
 	}
@@ -81,54 +148,110 @@ public abstract class SubprocessModule extends AbstractModule {
 		ProcessBuilder pb = new ProcessBuilder(argumentList);
 		Process p;
 		p = pb.start();
+		ProcessManager.getInstance().register(p, processOwner);
 
-		Thread subIn = null;
+		// The streams are copied by the shared pump threads of the task
+		IoPump pump = IoPump.getInstance();
+		List<Future<?>> pumps = new ArrayList<Future<?>>(3);
 		if (subProcessStdIn != null) {
-			subIn = new Thread(new PipeThread("stdin", subProcessStdIn, p.getOutputStream(), true));
-			subIn.start();
+			pumps.add(pump.pump("stdin", subProcessStdIn, p.getOutputStream(), true));
+		} else {
+			// Nothing to read; make sure the subprocess does not wait for input
+			p.getOutputStream().close();
 		}
-
-		Thread subOut = null;
 		if (subProcessStdOut != null) {
-			if (subProcessStdOut.equals(System.out)) {
-				subOut = new Thread(new PipeThread("stdout", p.getInputStream(), subProcessStdOut, false));
-			} else {
-				subOut = new Thread(new PipeThread("stdout", p.getInputStream(), subProcessStdOut, true));
-			}
-			subOut.start();
+			pumps.add(pump.pump("stdout", p.getInputStream(), subProcessStdOut, !subProcessStdOut.equals(System.out)));
 		}
-		Thread subErr = null;
 		if (subProcessStdErr != null) {
-			if (subProcessStdErr.equals(System.err)) {
-				subErr = new Thread(new PipeThread("stdout", p.getErrorStream(), subProcessStdErr, false));
-			} else {
-				subErr = new Thread(new PipeThread("stdout", p.getErrorStream(), subProcessStdErr, true));
-			}
-			subErr.start();
+			pumps.add(pump.pump("stderr", p.getErrorStream(), subProcessStdErr, !subProcessStdErr.equals(System.err)));
 		}
-		p.waitFor();
+		try {
+			p.waitFor();
+		} catch (InterruptedException e) {
+			ProcessManager.getInstance().destroyTree(p, commandLine);
+			throw e;
+		}
+		ProcessManager.getInstance().unregister(p);
+
+		for (Future<?> f : pumps) {
+			f.get();
+		}
+		return p.exitValue();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		commandLine = "";
+		subProcessStdIn = System.in;
+		subProcessStdOut = System.out;
+		subProcessStdErr = System.err;
+	}
 
-		if (subErr != null) {
-			if (subErr.isAlive()) {
-				subErr.join();
-			}
-			subErr = null;
+	/**
+	 * Delivers the input document as configured for the step: on standard in,
+	 * in a file or both.
+	 * 
+	 * @param step
+	 *            the step that is run
+	 * @return the file holding the document or null when the document is only
+	 *         delivered on standard in
+	 * @throws IOException
+	 *             When the input file could not be written
+	 */
+	protected File deliverInput(PipelineStep step) throws IOException {
+		PipelineStep.InputDelivery delivery = step.getInputDelivery();
+		if (delivery.usesStdin()) {
+			setSubProcessStdIn(getInputBuffer());
+		} else {
+			setSubProcessStdIn((InputStream) null);
+		}
+		if (!delivery.usesFile()) {
+			return null;
 		}
+		File f = scratchArea != null ? scratchArea.acquire() : new File(getLocalDirectory() + "/" + UUID.randomUUID().toString());
+		ScratchArea.write(f, getInputBuffer());
+		return f;
+	}
 
-		if (subOut != null) {
-			if (subOut.isAlive()) {
-				subOut.join();
-			}
-			subOut = null;
+	/**
+	 * Cleans up the input file returned by deliverInput.
+	 * 
+	 * @param f
+	 *            the input file or null
+	 */
+	protected void releaseInput(File f) {
+		if (f == null) {
+			return;
 		}
+		if (scratchArea != null) {
+			scratchArea.release(f);
+		} else {
+			f.delete();
+		}
+	}
 
-		if (subIn != null) {
-			if (subIn.isAlive()) {
-				subIn.join();
-			}
-			subIn = null;
+	/**
+	 * Records the exit code and stderr line count of a run and flags the
+	 * document as failed according to the failure policy of the step. The end
+	 * of standard error is logged.
+	 * 
+	 * @param step
+	 *            the step that was run
+	 * @param exitCode
+	 *            the exit code of the subprocess
+	 * @param stderr
+	 *            the captured standard error
+	 */
+	protected void checkResult(PipelineStep step, int exitCode, StderrRingBuffer stderr) {
+		setExitCode(exitCode);
+		setErrorLineCount(stderr.getLineCount());
+		if (step.isFailure(exitCode, stderr.getLineCount())) {
+			setFailed(true);
+			logger.error(step.getName() + " failed with exit code " + exitCode + " and " + stderr.getLineCount() + " lines on stderr, last lines:\n" + stderr.getTail());
+		} else if (logger.isDebugEnabled()) {
+			logger.debug(step.getName() + " wrote " + stderr.getLineCount() + " lines on stderr, last lines:\n" + stderr.getTail());
 		}
-		return p.exitValue();
 	}
 
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Utility class; a ByteArrayOutputStream that is reused for many documents.
+ * Its contents are copied into a ByteBuffer of exactly the right size and its
+ * internal array is kept between uses.
+ */
+public class CaptureBuffer extends ByteArrayOutputStream {
+
+	public CaptureBuffer() {
+		super();
+	}
+
+	public CaptureBuffer(int size) {
+		super(size);
+	}
+
+	/**
+	 * Copies the bytes written so far into a buffer of exactly the right size.
+	 * The copy stays valid when this stream is reset and reused.
+	 * 
+	 * @return a ByteBuffer holding a copy of the bytes
+	 */
+	public synchronized ByteBuffer copyToByteBuffer() {
+		return ByteBuffer.wrap(toByteArray());
+	}
+
+	/**
+	 * Discards the bytes written so far. The internal array is kept for the
+	 * next use unless it has grown larger than maxRetained bytes.
+	 * 
+	 * @param maxRetained
+	 *            the largest internal array to keep
+	 */
+	public synchronized void reset(int maxRetained) {
+		if (buf.length > maxRetained) {
+			buf = new byte[32];
+		}
+		count = 0;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.log4j.Logger;
+
+/**
+ * A compact set of document names: a sorted array of 64 bit hashes of the
+ * names, 8 bytes per document. Lookups are a binary search. Unlike a Bloom
+ * filter of the same size the chance that a name not in the set is found is
+ * negligible (n / 2^64 per lookup in a set of n names, about 5 * 10^-11 for a
+ * billion names), which matters because a document found in the set is not
+ * processed.
+ * 
+ * The set is built from the keys of the part files in one or more output
+ * directories of earlier runs and stored as a single file, so every task can
+ * load it. The directories a run writes next to its output path (reports,
+ * traces, checkpoints) and error paths (recognized by the failure records
+ * next to them) are skipped, so a wildcard can match them.
+ */
+public class DocumentNameSet {
+	private static final Logger logger = Logger.getLogger(DocumentNameSet.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// The suffixes of the directories a run writes next to its output and error
+	// paths (see NewsReaderFlow, PerformanceReport and Pipeline)
+	private static final String FAILURES_SUFFIX = "_failures";
+	private static final String[] SIDE_SUFFIXES = { "_incremental", "_report", "_trace", "_checkpoint", FAILURES_SUFFIX };
+
+	private long[] hashes;
+
+	private DocumentNameSet(long[] hashes) {
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Builds the set of the document names in sequence file directories. Only
+	 * the keys of the files are read.
+	 * 
+	 * @param conf
+	 *            the configuration of the file system
+	 * @param paths
+	 *            the directories with the sequence files; wildcards allowed
+	 * @return the set of the names of all documents in the directories
+	 */
+	public static DocumentNameSet build(Configuration conf, String[] paths) throws IOException {
+		long[] hashes = new long[1024];
+		int size = 0;
+		int directories = 0;
+		for (String p : paths) {
+			Path path = new Path(p);
+			FileSystem fs = path.getFileSystem(conf);
+			FileStatus[] matches = fs.globStatus(path);
+			if (matches == null || matches.length == 0) {
+				logger.warn("No directories match: " + p);
+				continue;
+			}
+			for (FileStatus match : matches) {
+				if (!isOutputDirectory(fs, match)) {
+					continue;
+				}
+				directories++;
+				for (FileStatus status : fs.listStatus(match.getPath())) {
+					if (!status.isFile() || !status.getPath().getName().startsWith("part-")) {
+						continue;
+					}
+					SequenceFile.Reader r = new SequenceFile.Reader(conf, SequenceFile.Reader.file(status.getPath()));
+					try {
+						if (r.getKeyClass() != Text.class) {
+							logger.warn("Skipping " + status.getPath() + ": not a sequence file of documents.");
+							continue;
+						}
+						Text key = new Text();
+						while (r.next(key)) {
+							if (size == hashes.length) {
+								hashes = Arrays.copyOf(hashes, size * 2);
+							}
+							hashes[size++] = hash(key.getBytes(), key.getLength());
+						}
+					} finally {
+						r.close();
+					}
+				}
+			}
+		}
+		Arrays.sort(hashes, 0, size);
+		// Documents can be in more than one directory
+		int unique = 0;
+		for (int i = 0; i < size; i++) {
+			if (unique == 0 || hashes[i] != hashes[unique - 1]) {
+				hashes[unique++] = hashes[i];
+			}
+		}
+		logger.info("Found " + unique + " documents in " + directories + " directories.");
+		return new DocumentNameSet(Arrays.copyOf(hashes, unique));
+	}
+
+	/**
+	 * Checks whether a directory is the output path of a run and not one of
+	 * the directories written next to it or an error path.
+	 */
+	static boolean isOutputDirectory(FileSystem fs, FileStatus status) throws IOException {
+		if (!status.isDirectory()) {
+			return false;
+		}
+		Path dir = status.getPath();
+		for (String suffix : SIDE_SUFFIXES) {
+			if (dir.getName().endsWith(suffix)) {
+				return false;
+			}
+		}
+		if (fs.exists(new Path(dir.getParent(), dir.getName() + FAILURES_SUFFIX))) {
+			logger.warn("Skipping " + dir + ": it holds the failed documents of a run.");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads a set written with write().
+	 */
+	public static DocumentNameSet read(Configuration conf, Path file) throws IOException {
+		DataInputStream in = file.getFileSystem(conf).open(file);
+		try {
+			long[] hashes = new long[in.readInt()];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = in.readLong();
+			}
+			return new DocumentNameSet(hashes);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes the set to a file.
+	 */
+	public void write(Configuration conf, Path file) throws IOException {
+		DataOutputStream out = file.getFileSystem(conf).create(file, true);
+		try {
+			out.writeInt(hashes.length);
+			for (long h : hashes) {
+				out.writeLong(h);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param name
+	 *            the name of a document
+	 * @return true when the document is in the set
+	 */
+	public boolean contains(String name) {
+		byte[] bytes = name.getBytes(UTF8);
+		return Arrays.binarySearch(hashes, hash(bytes, bytes.length)) >= 0;
+	}
+
+	/**
+	 * @return the number of documents in the set
+	 */
+	public int size() {
+		return hashes.length;
+	}
+
+	/**
+	 * The first 8 bytes of the MD5 digest of a name.
+	 */
+	private static long hash(byte[] name, int length) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		md5.update(name, 0, length);
+		byte[] digest = md5.digest();
+		long h = 0;
+		for (int i = 0; i < 8; i++) {
+			h = (h << 8) | (digest[i] & 0xff);
+		}
+		return h;
+	}
+}
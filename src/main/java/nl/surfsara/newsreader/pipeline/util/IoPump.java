@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Copies the standard in, out and error streams of all subprocesses of a task
+ * using a shared pool of pump threads and pooled copy buffers. Threads and
+ * buffers are reused for every invocation instead of starting three new
+ * threads per subprocess.
+ * 
+ * Process streams block, so every pump occupies a thread until its stream is
+ * exhausted. To prevent deadlocks (for example a subprocess that waits for its
+ * standard out to be read while its standard in is still being written) the
+ * pool always has at least as many threads as there are pumps in use. The pool
+ * grows to the largest number of concurrent pumps seen in the task (three per
+ * document in flight) and keeps those threads.
+ */
+public class IoPump {
+	private static final Logger logger = Logger.getLogger(IoPump.class);
+	private static final IoPump instance = new IoPump();
+	/**
+	 * The size of the pooled copy buffers.
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	private final ThreadPoolExecutor threads;
+	private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	private final AtomicInteger inUse = new AtomicInteger();
+	private final AtomicLong pumps = new AtomicLong();
+	private final AtomicLong bytesPumped = new AtomicLong();
+	private final AtomicLong readBlockedNanos = new AtomicLong();
+	private final AtomicLong writeBlockedNanos = new AtomicLong();
+
+	/**
+	 * @return the pump shared by all modules in this JVM
+	 */
+	public static IoPump getInstance() {
+		return instance;
+	}
+
+	private IoPump() {
+		threads = new ThreadPoolExecutor(1, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "io-pump-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts copying a stream.
+	 * 
+	 * @param id
+	 *            a description of the stream used for logging
+	 * @param is
+	 *            the stream to read from
+	 * @param os
+	 *            the stream to write to
+	 * @param closeAfterCopy
+	 *            whether to close both streams when the input is exhausted
+	 * @return a future that is done when the stream has been copied
+	 */
+	public Future<?> pump(String id, InputStream is, OutputStream os, boolean closeAfterCopy) {
+		int needed = inUse.incrementAndGet();
+		synchronized (threads) {
+			if (needed > threads.getCorePoolSize()) {
+				threads.setCorePoolSize(needed);
+			}
+		}
+		pumps.incrementAndGet();
+		return threads.submit(new Pump(id, is, os, closeAfterCopy));
+	}
+
+	/**
+	 * @return the number of streams copied so far
+	 */
+	public long getPumps() {
+		return pumps.get();
+	}
+
+	/**
+	 * @return the number of bytes copied so far
+	 */
+	public long getBytesPumped() {
+		return bytesPumped.get();
+	}
+
+	/**
+	 * @return the time pumps spent waiting for data to read in milliseconds
+	 */
+	public long getReadBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(readBlockedNanos.get());
+	}
+
+	/**
+	 * @return the time pumps spent waiting for their writes to complete in
+	 *         milliseconds
+	 */
+	public long getWriteBlockedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(writeBlockedNanos.get());
+	}
+
+	/**
+	 * @return the number of pump threads
+	 */
+	public int getThreads() {
+		return threads.getPoolSize();
+	}
+
+	private byte[] takeBuffer() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	private class Pump implements Runnable {
+		private final String id;
+		private final InputStream is;
+		private final OutputStream os;
+		private final boolean closeAfterCopy;
+
+		private Pump(String id, InputStream is, OutputStream os, boolean closeAfterCopy) {
+			this.id = id;
+			this.is = is;
+			this.os = os;
+			this.closeAfterCopy = closeAfterCopy;
+		}
+
+		@Override
+		public void run() {
+			byte[] buffer = takeBuffer();
+			long bytes = 0;
+			long readNanos = 0;
+			long writeNanos = 0;
+			try {
+				while (true) {
+					long t0 = System.nanoTime();
+					int n = is.read(buffer);
+					long t1 = System.nanoTime();
+					readNanos += t1 - t0;
+					if (n < 0) {
+						break;
+					}
+					os.write(buffer, 0, n);
+					writeNanos += System.nanoTime() - t1;
+					bytes += n;
+				}
+				os.flush();
+				if (closeAfterCopy) {
+					os.close();
+					is.close();
+				}
+			} catch (IOException e) {
+				logger.error(id + ": " + e);
+			} finally {
+				bytesPumped.addAndGet(bytes);
+				readBlockedNanos.addAndGet(readNanos);
+				writeBlockedNanos.addAndGet(writeNanos);
+				buffers.add(buffer);
+				inUse.decrementAndGet();
+			}
+		}
+	}
+}
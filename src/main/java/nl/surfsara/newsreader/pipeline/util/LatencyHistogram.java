@@ -0,0 +1,166 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable histogram of latencies in milliseconds. Values below 32 are
+ * counted exactly; larger values are counted in buckets of 16 per power of two,
+ * so every recorded value is known within about 6%. Histograms of different
+ * tasks can be merged by adding their buckets, which makes the percentiles of
+ * a whole job available without keeping every value.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 16;
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + 59 * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long max;
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param millis
+	 *            the latency in milliseconds; negative values count as 0
+	 */
+	public synchronized void record(long millis) {
+		long value = Math.max(0, millis);
+		counts[index(value)]++;
+		count++;
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Adds the values of another histogram to this one.
+	 * 
+	 * @param other
+	 *            the histogram to add
+	 */
+	public synchronized void merge(LatencyHistogram other) {
+		long[] otherCounts;
+		long otherCount;
+		long otherMax;
+		synchronized (other) {
+			otherCounts = other.counts.clone();
+			otherCount = other.count;
+			otherMax = other.max;
+		}
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += otherCounts[i];
+		}
+		count += otherCount;
+		max = Math.max(max, otherMax);
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized long getMax() {
+		return max;
+	}
+
+	/**
+	 * Gets the value at a percentile. The upper bound of the bucket holding
+	 * the value is returned (but never more than the largest value recorded).
+	 * 
+	 * @param percentile
+	 *            the percentile (between 0 and 100)
+	 * @return the value at the percentile or 0 when the histogram is empty
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(count * Math.min(100.0, percentile) / 100.0));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(max, upperBound(i));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Writes the histogram as a compact string: the maximum followed by
+	 * bucket:count pairs for the buckets that are not empty.
+	 * 
+	 * @return the histogram as a string that can be read with parse()
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(max);
+		for (int i = 0; i < BUCKETS; i++) {
+			if (counts[i] > 0) {
+				sb.append(' ').append(i).append(':').append(counts[i]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads a histogram written with toString().
+	 * 
+	 * @param s
+	 *            the string to read
+	 * @return the histogram
+	 */
+	public static LatencyHistogram parse(String s) {
+		LatencyHistogram h = new LatencyHistogram();
+		String[] parts = s.trim().split(" ");
+		h.max = Long.parseLong(parts[0]);
+		for (int i = 1; i < parts.length; i++) {
+			int colon = parts[i].indexOf(':');
+			long c = Long.parseLong(parts[i].substring(colon + 1));
+			h.counts[Integer.parseInt(parts[i].substring(0, colon))] += c;
+			h.count += c;
+		}
+		return h;
+	}
+
+	/**
+	 * Clears all values.
+	 */
+	public synchronized void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		// value >> shift lies between SUB_BUCKETS and 2 * SUB_BUCKETS - 1
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 4;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
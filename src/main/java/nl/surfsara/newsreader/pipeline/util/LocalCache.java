@@ -0,0 +1,247 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A cache of byte arrays by key in a directory on local disk that is limited
+ * in size; the least recently used entries are removed first. The directory
+ * is shared by all tasks on a node: the last modification time of an entry is
+ * its last use, so the order is the same for all JVMs. Entries are written to
+ * a temporary file and renamed, so readers never see a partial entry.
+ * 
+ * The size of the directory is limited for the node, not per JVM. Every JVM
+ * sweeps the directory when it starts and after it added 1/64 of the limit:
+ * under a lock file it sums the sizes of all entries and removes the least
+ * recently used ones until the directory fits the limit again. Between sweeps
+ * the directory can exceed the limit by at most 1/64 of it per JVM.
+ */
+public class LocalCache {
+	private static final Logger logger = Logger.getLogger(LocalCache.class);
+	private static final Map<String, LocalCache> instances = new HashMap<String, LocalCache>();
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String LOCK_FILE = ".lock";
+	private static final int SWEEP_FRACTION = 64;
+	// Temporary files older than this were left behind by a killed task
+	private static final long TMP_MAX_AGE = 3600 * 1000L;
+
+	private final File dir;
+	private final long maxBytes;
+	private long bytes;
+	private long addedSinceSweep;
+
+	/**
+	 * Gets the cache in a directory, shared by all users in this JVM.
+	 * 
+	 * @param dir
+	 *            the directory of the cache
+	 * @param maxBytes
+	 *            the size of the cache on this node; entries are removed when
+	 *            it is exceeded
+	 * @return the cache
+	 */
+	public static synchronized LocalCache getInstance(String dir, long maxBytes) {
+		File f = new File(dir).getAbsoluteFile();
+		LocalCache cache = instances.get(f.getPath());
+		if (cache == null) {
+			cache = new LocalCache(f, maxBytes);
+			instances.put(f.getPath(), cache);
+		}
+		return cache;
+	}
+
+	private LocalCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+		int entries = sweep();
+		logger.info("Local cache in " + dir + " holds " + entries + " entries (" + (bytes / (1024 * 1024)) + " of " + (maxBytes / (1024 * 1024)) + " MB).");
+	}
+
+	/**
+	 * @param key
+	 *            a key of hexadecimal characters
+	 * @return the cached bytes or null when the key is not in the cache
+	 */
+	public byte[] get(String key) {
+		File f = getFile(key);
+		byte[] content;
+		try {
+			content = Files.readAllBytes(f.toPath());
+		} catch (IOException e) {
+			// Not cached, or removed by another task on this node
+			return null;
+		}
+		f.setLastModified(System.currentTimeMillis());
+		return content;
+	}
+
+	/**
+	 * Adds an entry to the cache and removes the least recently used entries
+	 * when the cache is full.
+	 * 
+	 * @param key
+	 *            a key of hexadecimal characters
+	 * @param content
+	 *            the bytes to cache
+	 */
+	public void put(String key, byte[] content) {
+		// Larger entries would let the cache exceed the limit by more than
+		// the sweep interval
+		if (content.length > maxBytes / SWEEP_FRACTION) {
+			return;
+		}
+		File f = getFile(key);
+		File tmp = new File(f.getParentFile(), key + "." + UUID.randomUUID().toString() + TMP_SUFFIX);
+		try {
+			f.getParentFile().mkdirs();
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(content);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(f)) {
+				throw new IOException("Could not rename " + tmp + " to " + f);
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			logger.warn("Could not add an entry to the local cache: " + e);
+			return;
+		}
+		synchronized (this) {
+			bytes += content.length;
+			addedSinceSweep += content.length;
+			if (addedSinceSweep >= maxBytes / SWEEP_FRACTION) {
+				sweep();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes in the cache at the last sweep plus the
+	 *         bytes this JVM added since
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Sums the sizes of all entries in the directory and removes the least
+	 * recently used entries until the cache fits. The lock file keeps the
+	 * JVMs on the node from sweeping at the same time.
+	 * 
+	 * @return the number of entries left
+	 */
+	private synchronized int sweep() {
+		addedSinceSweep = 0;
+		RandomAccessFile lockFile = null;
+		try {
+			lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				List<File> files = listEntries();
+				long total = 0;
+				for (File f : files) {
+					total += f.length();
+				}
+				int removed = 0;
+				for (int i = 0; i < files.size() && total > maxBytes; i++) {
+					File f = files.get(i);
+					long size = f.length();
+					if (f.delete()) {
+						total -= size;
+						removed++;
+					}
+				}
+				bytes = total;
+				if (removed > 0) {
+					logger.info("Removed " + removed + " least recently used entries from the local cache in " + dir + ".");
+				}
+				return files.size() - removed;
+			} finally {
+				lock.release();
+			}
+		} catch (IOException e) {
+			logger.warn("Could not sweep the local cache in " + dir + ": " + e);
+			return 0;
+		} finally {
+			if (lockFile != null) {
+				try {
+					lockFile.close();
+				} catch (IOException e) {
+					logger.debug(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lists the entries from least to most recently used. Removes temporary
+	 * files left behind by killed tasks.
+	 */
+	private List<File> listEntries() {
+		List<File> files = new ArrayList<File>();
+		long now = System.currentTimeMillis();
+		File[] shards = dir.listFiles();
+		if (shards != null) {
+			for (File shard : shards) {
+				File[] children = shard.listFiles();
+				if (children == null) {
+					continue;
+				}
+				for (File f : children) {
+					if (!f.getName().endsWith(TMP_SUFFIX)) {
+						files.add(f);
+					} else if (now - f.lastModified() > TMP_MAX_AGE) {
+						// Other tasks may still be writing recent ones
+						f.delete();
+					}
+				}
+			}
+		}
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for (File f : files) {
+			lastUsed.put(f, f.lastModified());
+		}
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(lastUsed.get(a), lastUsed.get(b));
+			}
+		});
+		return files;
+	}
+
+	private File getFile(String key) {
+		return new File(new File(dir, key.substring(0, 2)), key);
+	}
+}
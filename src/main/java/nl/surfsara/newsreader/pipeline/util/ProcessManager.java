@@ -0,0 +1,310 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of the subprocesses started by the modules of a task and
+ * terminates them including all their descendants. Components are started via
+ * bash and often start a JVM or other programs themselves; destroying only the
+ * bash process would leave those running.
+ *
+ * A process tree is terminated by sending SIGTERM to all processes in the tree,
+ * waiting for a grace period and sending SIGKILL to the processes that are
+ * still running. Before terminating, the cpu time and resident memory of the
+ * processes are read from /proc so the reclaimed resources can be reported.
+ *
+ * The manager is shared by all modules in the JVM, but every process is
+ * registered with the object that owns it (the runner of a step), so leftovers
+ * can be terminated per owner without touching the processes of other steps
+ * or tasks running in the same JVM.
+ */
+public class ProcessManager {
+	private static final Logger logger = Logger.getLogger(ProcessManager.class);
+	private static final ProcessManager instance = new ProcessManager();
+
+	// USER_HZ and the page size are 100 and 4096 on all Linux platforms we run on
+	private static final long CLOCK_TICKS_PER_SECOND = 100;
+	private static final long PAGE_SIZE = 4096;
+
+	private Map<Process, Object> processes = new HashMap<Process, Object>();
+	private long gracePeriod = 5000;
+	private AtomicLong reapedProcesses = new AtomicLong();
+	private AtomicLong reapedCpuMillis = new AtomicLong();
+	private AtomicLong reapedRssBytes = new AtomicLong();
+
+	/**
+	 * @return the process manager shared by all modules in this JVM
+	 */
+	public static ProcessManager getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Registers a running process.
+	 *
+	 * @param p
+	 *            the process
+	 * @param owner
+	 *            the owner of the process, used by destroyAll(Object); may be
+	 *            null for processes that are never reaped as leftovers
+	 */
+	public synchronized void register(Process p, Object owner) {
+		processes.put(p, owner);
+	}
+
+	public synchronized void unregister(Process p) {
+		processes.remove(p);
+	}
+
+	/**
+	 * Sets the time processes get to exit after SIGTERM before they are
+	 * killed.
+	 *
+	 * @param gracePeriod
+	 *            the grace period in milliseconds
+	 */
+	public void setGracePeriod(long gracePeriod) {
+		this.gracePeriod = gracePeriod;
+	}
+
+	/**
+	 * Terminates a process and all of its descendants.
+	 *
+	 * @param p
+	 *            the process to terminate
+	 * @param description
+	 *            a description of the process used for logging
+	 */
+	public void destroyTree(Process p, String description) {
+		unregister(p);
+		int pid = getPid(p);
+		if (pid <= 0) {
+			p.destroy();
+			return;
+		}
+		List<Integer> tree = getTree(pid);
+		long cpuTicks = 0;
+		long rssPages = 0;
+		for (Integer member : tree) {
+			String[] stat = readStat(member);
+			if (stat != null) {
+				cpuTicks += Long.parseLong(stat[11]) + Long.parseLong(stat[12]);
+				rssPages += Long.parseLong(stat[21]);
+			}
+		}
+
+		signal("-TERM", tree);
+		long deadline = System.currentTimeMillis() + gracePeriod;
+		List<Integer> running = getRunning(tree);
+		while (!running.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				// Still make sure the processes are gone
+				Thread.currentThread().interrupt();
+				break;
+			}
+			running = getRunning(tree);
+		}
+		if (!running.isEmpty()) {
+			logger.warn("Killing " + running.size() + " processes of " + description + " that did not exit after SIGTERM.");
+			signal("-KILL", running);
+		}
+		p.destroy();
+
+		long cpuMillis = cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND;
+		long rssBytes = rssPages * PAGE_SIZE;
+		reapedProcesses.addAndGet(tree.size());
+		reapedCpuMillis.addAndGet(cpuMillis);
+		reapedRssBytes.addAndGet(rssBytes);
+		logger.warn("Terminated " + tree.size() + " processes of " + description + ": reclaimed " + (rssBytes / (1024 * 1024)) + " MB resident memory; the processes had used " + cpuMillis
+				+ " ms cpu time.");
+	}
+
+	/**
+	 * Terminates the registered processes of an owner that are still running
+	 * and their descendants. Processes that have exited are only unregistered:
+	 * their pid may have been reused.
+	 *
+	 * @param owner
+	 *            the owner of the processes to terminate
+	 */
+	public void destroyAll(Object owner) {
+		List<Process> owned = new ArrayList<Process>();
+		synchronized (this) {
+			for (Map.Entry<Process, Object> entry : processes.entrySet()) {
+				if (entry.getValue() != null && entry.getValue() == owner) {
+					owned.add(entry.getKey());
+				}
+			}
+		}
+		for (Process p : owned) {
+			try {
+				p.exitValue();
+				unregister(p);
+			} catch (IllegalThreadStateException e) {
+				destroyTree(p, "a leftover subprocess");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of processes terminated so far
+	 */
+	public long getReapedProcesses() {
+		return reapedProcesses.get();
+	}
+
+	/**
+	 * @return the cpu time used by terminated processes in milliseconds
+	 */
+	public long getReapedCpuMillis() {
+		return reapedCpuMillis.get();
+	}
+
+	/**
+	 * @return the resident memory reclaimed from terminated processes in bytes
+	 */
+	public long getReapedRssBytes() {
+		return reapedRssBytes.get();
+	}
+
+	/**
+	 * Gets the pid of a process. Uses Process.pid() when available and falls
+	 * back to the pid field of the UNIX process implementation.
+	 *
+	 * @param p
+	 *            the process
+	 * @return the pid or -1 when it cannot be determined
+	 */
+	static int getPid(Process p) {
+		try {
+			Method m = Process.class.getMethod("pid");
+			return ((Long) m.invoke(p)).intValue();
+		} catch (NoSuchMethodException e) {
+			// Before Java 9
+		} catch (Exception e) {
+			logger.debug(e);
+		}
+		try {
+			Field f = p.getClass().getDeclaredField("pid");
+			f.setAccessible(true);
+			return f.getInt(p);
+		} catch (Exception e) {
+			logger.debug(e);
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets a process and all of its descendants (parents before children).
+	 */
+	private List<Integer> getTree(int pid) {
+		Map<Integer, List<Integer>> children = new HashMap<Integer, List<Integer>>();
+		File[] procs = new File("/proc").listFiles();
+		if (procs != null) {
+			for (File proc : procs) {
+				String name = proc.getName();
+				if (!name.matches("\\d+")) {
+					continue;
+				}
+				String[] stat = readStat(Integer.parseInt(name));
+				if (stat == null) {
+					continue;
+				}
+				Integer ppid = Integer.valueOf(stat[1]);
+				List<Integer> list = children.get(ppid);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					children.put(ppid, list);
+				}
+				list.add(Integer.valueOf(name));
+			}
+		}
+		List<Integer> tree = new ArrayList<Integer>();
+		LinkedList<Integer> todo = new LinkedList<Integer>();
+		todo.add(pid);
+		while (!todo.isEmpty()) {
+			Integer current = todo.removeFirst();
+			tree.add(current);
+			List<Integer> list = children.get(current);
+			if (list != null) {
+				todo.addAll(list);
+			}
+		}
+		return tree;
+	}
+
+	private List<Integer> getRunning(List<Integer> pids) {
+		List<Integer> running = new ArrayList<Integer>();
+		for (Integer pid : pids) {
+			String[] stat = readStat(pid);
+			// Zombies have exited already and only wait for their parent
+			if (stat != null && !"Z".equals(stat[0])) {
+				running.add(pid);
+			}
+		}
+		return running;
+	}
+
+	/**
+	 * Reads /proc/[pid]/stat. The returned fields start after the command
+	 * name, so field 0 is the state, field 1 the parent pid, fields 11 and 12
+	 * the user and system time and field 21 the resident set size.
+	 */
+	private String[] readStat(int pid) {
+		try {
+			String stat = FileUtils.readFileToString(new File("/proc/" + pid + "/stat"));
+			return stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	private void signal(String signal, List<Integer> pids) {
+		List<String> command = new ArrayList<String>();
+		command.add("kill");
+		command.add(signal);
+		for (Integer pid : pids) {
+			command.add(pid.toString());
+		}
+		try {
+			Process kill = new ProcessBuilder(command).redirectErrorStream(true).start();
+			kill.getInputStream().close();
+			kill.waitFor();
+		} catch (IOException e) {
+			logger.error("Could not send " + signal + " to " + pids + ": " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
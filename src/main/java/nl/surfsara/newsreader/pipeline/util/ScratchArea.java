@@ -0,0 +1,256 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+/**
+ * A directory for the document files of components that read their input from
+ * a file. Memory-backed storage (/dev/shm) is preferred so these files do not
+ * compete with HDFS for the local disks. Files are pooled: a released file is
+ * truncated and handed out again instead of creating a new file for every
+ * document.
+ * 
+ * The scratch area is a directory named after the pid of the JVM and a key of
+ * the host (its boot id) and pid namespace the JVM runs in. Tasks that are
+ * killed (for example by YARN after a timeout or for preemption) cannot remove
+ * it, and /dev/shm is only freed at a reboot, so stale directories are removed
+ * when a new scratch area is created. A pid is only meaningful in its own
+ * namespace: areas with the same key are removed when their JVM no longer
+ * runs, other areas (of other containers or hosts sharing the directory) only
+ * when nothing in them has changed for STALE_AGE.
+ */
+public class ScratchArea {
+	private static final Logger logger = Logger.getLogger(ScratchArea.class);
+	/**
+	 * The memory-backed file system used when no scratch directory is
+	 * configured.
+	 */
+	public static final String SHM = "/dev/shm";
+	/**
+	 * The free space a memory-backed file system needs to be used (in bytes).
+	 */
+	public static final long MIN_FREE_SPACE = 256L * 1024 * 1024;
+	/**
+	 * The time after which the scratch areas of other pid namespaces are
+	 * removed when nothing in them changes (in milliseconds).
+	 */
+	public static final long STALE_AGE = 24L * 60 * 60 * 1000;
+	private static final String PREFIX = "newsreader-";
+	private static final Pattern AREA_NAME = Pattern.compile(PREFIX + "pid(\\d+)-ns([0-9a-f]+)-.*");
+
+	private final File dir;
+	private final boolean own;
+	private final ConcurrentLinkedQueue<File> files = new ConcurrentLinkedQueue<File>();
+
+	/**
+	 * @param preferredDir
+	 *            the directory to create the scratch area in; /dev/shm is used
+	 *            when null
+	 * @param fallbackDir
+	 *            the directory to use when the preferred directory is not
+	 *            available
+	 */
+	public ScratchArea(String preferredDir, String fallbackDir) {
+		File preferred = new File(preferredDir != null ? preferredDir : SHM);
+		if (preferred.isDirectory() && preferred.canWrite()) {
+			removeStale(preferred);
+		}
+		if (preferred.isDirectory() && preferred.canWrite() && preferred.getUsableSpace() >= MIN_FREE_SPACE) {
+			String pid = getPid();
+			String namespace = getNamespaceKey();
+			String owner = pid != null && namespace != null ? "pid" + pid + "-ns" + namespace + "-" : "";
+			dir = new File(preferred, PREFIX + owner + UUID.randomUUID().toString());
+			own = true;
+		} else {
+			logger.info("Scratch directory " + preferred + " not available; using " + fallbackDir);
+			dir = new File(fallbackDir);
+			own = false;
+		}
+		dir.mkdirs();
+	}
+
+	/**
+	 * Removes the scratch areas of JVMs in this pid namespace that no longer
+	 * run and the other scratch areas that have not changed for STALE_AGE.
+	 * 
+	 * @param parent
+	 *            the directory the scratch areas are created in
+	 */
+	static void removeStale(File parent) {
+		File[] areas = parent.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File f) {
+				return f.isDirectory() && f.getName().startsWith(PREFIX);
+			}
+		});
+		if (areas == null) {
+			return;
+		}
+		String namespace = getNamespaceKey();
+		long now = System.currentTimeMillis();
+		for (File area : areas) {
+			Matcher m = AREA_NAME.matcher(area.getName());
+			if (m.matches() && m.group(2).equals(namespace)) {
+				if (!new File("/proc/" + m.group(1)).exists()) {
+					logger.info("Removing the scratch area of a task that has ended: " + area);
+					FileUtils.deleteQuietly(area);
+				}
+			} else if (now - getLastModified(area) > STALE_AGE) {
+				logger.info("Removing a scratch area that has not been used for " + (STALE_AGE / (60 * 60 * 1000)) + " hours: " + area);
+				FileUtils.deleteQuietly(area);
+			}
+		}
+	}
+
+	/**
+	 * @return the latest modification time of a scratch area and its files
+	 */
+	private static long getLastModified(File area) {
+		long lastModified = area.lastModified();
+		File[] children = area.listFiles();
+		if (children != null) {
+			for (File f : children) {
+				lastModified = Math.max(lastModified, f.lastModified());
+			}
+		}
+		return lastModified;
+	}
+
+	/**
+	 * Gets a key for the pid namespace this JVM runs in on this host: a hash
+	 * of the boot id of the host and the pid namespace of the process.
+	 * 
+	 * @return the key as hexadecimal digits or null when it cannot be
+	 *         determined (for example when /proc is not available)
+	 */
+	private static String getNamespaceKey() {
+		try {
+			String bootId = new String(Files.readAllBytes(Paths.get("/proc/sys/kernel/random/boot_id")), Charset.forName("UTF-8")).trim();
+			String pidNamespace = Files.readSymbolicLink(Paths.get("/proc/self/ns/pid")).toString();
+			return Long.toHexString(UUID.nameUUIDFromBytes((bootId + " " + pidNamespace).getBytes(Charset.forName("UTF-8"))).getMostSignificantBits());
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// E.g. no permission to read the namespace link
+			return null;
+		}
+	}
+
+	/**
+	 * @return the pid of this JVM or null when it cannot be determined
+	 */
+	private static String getPid() {
+		// The name of the runtime is <pid>@<host> on all JVMs we run on
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		String pid = name.substring(0, Math.max(0, name.indexOf('@')));
+		return pid.matches("\\d+") ? pid : null;
+	}
+
+	/**
+	 * @return the directory files are created in
+	 */
+	public File getDirectory() {
+		return dir;
+	}
+
+	/**
+	 * Gets an empty file from the pool (or a new file).
+	 * 
+	 * @return a file that can be written
+	 */
+	public File acquire() {
+		File f = files.poll();
+		return f != null ? f : new File(dir, UUID.randomUUID().toString());
+	}
+
+	/**
+	 * Writes a document to a file using a file channel.
+	 * 
+	 * @param f
+	 *            the file to write
+	 * @param content
+	 *            the bytes to write (from the position to the limit of the
+	 *            buffer); the buffer itself is not modified
+	 * @throws IOException
+	 *             When the file could not be written
+	 */
+	public static void write(File f, ByteBuffer content) throws IOException {
+		ByteBuffer bytes = content.duplicate();
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns a file to the pool. The file is truncated so a memory-backed
+	 * scratch area does not keep the document in memory.
+	 * 
+	 * @param f
+	 *            the file acquired before
+	 */
+	public void release(File f) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(0);
+			} finally {
+				raf.close();
+			}
+			files.add(f);
+		} catch (IOException e) {
+			logger.debug(e);
+			f.delete();
+		}
+	}
+
+	/**
+	 * Removes the files of the scratch area.
+	 */
+	public void destroy() {
+		if (own) {
+			FileUtils.deleteQuietly(dir);
+		} else {
+			File f;
+			while ((f = files.poll()) != null) {
+				f.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Utility class; an OutputStream that counts the lines written to it and keeps
+ * only the last lines in a fixed-size ring buffer. Used to capture the standard
+ * error of subprocesses without keeping all of it in memory.
+ */
+public class StderrRingBuffer extends OutputStream {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final byte[] ring;
+	private final int maxLines;
+	private long position;
+	private long lines;
+	private boolean partialLine;
+
+	/**
+	 * @param maxLines
+	 *            the number of lines to keep
+	 * @param maxBytes
+	 *            the size of the ring buffer; long lines may reduce the number
+	 *            of lines kept
+	 */
+	public StderrRingBuffer(int maxLines, int maxBytes) {
+		this.maxLines = maxLines;
+		this.ring = new byte[Math.max(1, maxBytes)];
+	}
+
+	@Override
+	public synchronized void write(int b) {
+		ring[(int) (position % ring.length)] = (byte) b;
+		position++;
+		if (b == '\n') {
+			lines++;
+			partialLine = false;
+		} else {
+			partialLine = true;
+		}
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			if (b[i] == '\n') {
+				lines++;
+			}
+		}
+		if (len > 0) {
+			partialLine = b[off + len - 1] != '\n';
+		}
+		// Only the last ring.length bytes can end up in the buffer
+		int skip = Math.max(0, len - ring.length);
+		position += skip;
+		for (int i = off + skip; i < off + len; i++) {
+			ring[(int) (position % ring.length)] = b[i];
+			position++;
+		}
+	}
+
+	/**
+	 * @return the number of lines written; an unterminated last line counts
+	 *         as a line
+	 */
+	public synchronized long getLineCount() {
+		return partialLine ? lines + 1 : lines;
+	}
+
+	/**
+	 * @return the last lines written (at most maxLines)
+	 */
+	public synchronized String getTail() {
+		int size = (int) Math.min(position, ring.length);
+		byte[] tail = new byte[size];
+		long start = position - size;
+		for (int i = 0; i < size; i++) {
+			tail[i] = ring[(int) ((start + i) % ring.length)];
+		}
+		// Drop the trailing newline and keep the last maxLines lines
+		int end = size;
+		if (end > 0 && tail[end - 1] == '\n') {
+			end--;
+		}
+		int begin = end;
+		int found = 0;
+		while (begin > 0 && found < maxLines) {
+			begin--;
+			if (tail[begin] == '\n') {
+				found++;
+				if (found == maxLines) {
+					begin++;
+				}
+			}
+		}
+		return new String(tail, begin, end - begin, UTF8);
+	}
+
+	/**
+	 * Clears the buffer and the counters so it can be reused.
+	 */
+	public synchronized void reset() {
+		position = 0;
+		lines = 0;
+		partialLine = false;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the packing of documents into bins of about equal cost.
+ */
+public class DocumentBinPackerTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("documentbinpacker").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void packsEveryDocumentOnce() throws IOException {
+		List<File> files = createFiles(100, 1000, 2000, 50000, 300, 7000, 12000, 1, 0, 900);
+		List<DocumentBinPacker.Bin> bins = new DocumentBinPacker().pack(files, 3);
+		assertEquals(3, bins.size());
+		Set<File> packed = new HashSet<File>();
+		for (DocumentBinPacker.Bin bin : bins) {
+			for (File f : bin.getFiles()) {
+				assertTrue(f.getName(), packed.add(f));
+			}
+		}
+		assertEquals(new HashSet<File>(files), packed);
+	}
+
+	@Test
+	public void balancesTheCostOfTheBins() throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 200; i++) {
+			files.add(createFile("doc" + i, 1000 + (i * 7919) % 20000));
+		}
+		DocumentBinPacker packer = new DocumentBinPacker();
+		List<DocumentBinPacker.Bin> bins = packer.pack(files, 8);
+		assertEquals(8, bins.size());
+		double largest = bins.get(0).getCost();
+		double smallest = bins.get(bins.size() - 1).getCost();
+		// The largest document is the most a bin can be off
+		assertTrue(largest - smallest <= packer.getCost(21000));
+	}
+
+	@Test
+	public void neverCreatesEmptyBins() throws IOException {
+		List<File> files = createFiles(100, 200, 300);
+		List<DocumentBinPacker.Bin> bins = new DocumentBinPacker().pack(files, 10);
+		assertEquals(3, bins.size());
+		for (DocumentBinPacker.Bin bin : bins) {
+			assertFalse(bin.getFiles().isEmpty());
+		}
+		assertTrue(new DocumentBinPacker().pack(Collections.<File> emptyList(), 10).isEmpty());
+	}
+
+	@Test
+	public void isolatesLargeDocuments() throws IOException {
+		List<File> files = createFiles(100, 200, 5000, 300, 6000);
+		DocumentBinPacker packer = new DocumentBinPacker();
+		packer.setIsolateBytes(5000);
+		List<DocumentBinPacker.Bin> bins = packer.pack(files, 3);
+		int isolated = 0;
+		for (DocumentBinPacker.Bin bin : bins) {
+			if (bin.isIsolated()) {
+				isolated++;
+				assertEquals(1, bin.getFiles().size());
+				assertTrue(bin.getBytes() >= 5000);
+			}
+		}
+		assertEquals(2, isolated);
+	}
+
+	@Test
+	public void onlyIsolatedDocumentsGiveNoOtherBins() throws IOException {
+		List<File> files = createFiles(5000, 6000);
+		DocumentBinPacker packer = new DocumentBinPacker();
+		packer.setIsolateBytes(1000);
+		List<DocumentBinPacker.Bin> bins = packer.pack(files, 4);
+		assertEquals(2, bins.size());
+		assertTrue(bins.get(0).isIsolated());
+		assertTrue(bins.get(1).isIsolated());
+	}
+
+	@Test
+	public void sortsBinsFromHighestToLowestCost() throws IOException {
+		List<File> files = createFiles(100, 20000, 300, 5000, 700, 1);
+		List<DocumentBinPacker.Bin> bins = new DocumentBinPacker().pack(files, 3);
+		for (int i = 1; i < bins.size(); i++) {
+			assertTrue(bins.get(i - 1).getCost() >= bins.get(i).getCost());
+		}
+	}
+
+	@Test
+	public void countsBinsForTheTargetTime() throws IOException {
+		List<File> files = createFiles(10000, 10000, 10000, 10000);
+		DocumentBinPacker packer = new DocumentBinPacker();
+		packer.setDocOverheadBytes(0);
+		assertEquals(4, packer.getBinCount(files, 1, 10000));
+		assertEquals(2, packer.getBinCount(files, 2, 10000));
+		assertEquals(1, packer.getBinCount(files, 100, 10000));
+		assertEquals(1, packer.getBinCount(Collections.<File> emptyList(), 1, 10000));
+	}
+
+	private List<File> createFiles(long... sizes) throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < sizes.length; i++) {
+			files.add(createFile("doc" + i, sizes[i]));
+		}
+		return files;
+	}
+
+	private File createFile(String name, long size) throws IOException {
+		File f = new File(dir, name);
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		try {
+			raf.setLength(size);
+		} finally {
+			raf.close();
+		}
+		return f;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.loader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the lookups of the DocumentIndex in sequence files with many blocks
+ * and sync marks.
+ */
+public class DocumentIndexTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int FILES = 3;
+	private static final int DOCS_PER_FILE = 200;
+
+	private Configuration conf;
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		// Small blocks, so most documents are not in the first block of a file
+		conf.setInt("io.seqfile.compress.blocksize", 4096);
+		dir = Files.createTempDirectory("documentindex").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void findsEveryDocumentWithoutCompression() throws IOException {
+		checkLookups(CompressionType.NONE);
+	}
+
+	@Test
+	public void findsEveryDocumentWithRecordCompression() throws IOException {
+		checkLookups(CompressionType.RECORD);
+	}
+
+	@Test
+	public void findsEveryDocumentWithBlockCompression() throws IOException {
+		checkLookups(CompressionType.BLOCK);
+	}
+
+	@Test
+	public void returnsNullForUnknownDocuments() throws IOException {
+		writeFiles(CompressionType.BLOCK);
+		DocumentIndex index = new DocumentIndex(conf, new Path(dir.getPath()));
+		try {
+			index.build();
+			assertNull(index.get("unknown.naf"));
+			// Sorts between existing names
+			assertNull(index.get("doc-0-00005.naf.x"));
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void skipsMarkersAndHiddenFiles() throws IOException {
+		writeFiles(CompressionType.NONE);
+		FileUtils.writeStringToFile(new File(dir, "_SUCCESS"), "");
+		FileUtils.writeStringToFile(new File(dir, ".part-00000.crc"), "not a sequence file");
+		DocumentIndex index = new DocumentIndex(conf, new Path(dir.getPath()));
+		try {
+			assertFalse(index.exists());
+			assertEquals(FILES * DOCS_PER_FILE, index.build());
+			assertTrue(index.exists());
+		} finally {
+			index.close();
+		}
+	}
+
+	@Test
+	public void rebuildReplacesTheIndex() throws IOException {
+		writeFiles(CompressionType.BLOCK);
+		DocumentIndex index = new DocumentIndex(conf, new Path(dir.getPath()));
+		try {
+			assertEquals(FILES * DOCS_PER_FILE, index.build());
+			assertEquals(FILES * DOCS_PER_FILE, index.build());
+			assertArrayEquals(content(1, 7), index.get(name(1, 7)));
+		} finally {
+			index.close();
+		}
+	}
+
+	private void checkLookups(CompressionType type) throws IOException {
+		writeFiles(type);
+		DocumentIndex index = new DocumentIndex(conf, new Path(dir.getPath()));
+		try {
+			assertEquals(FILES * DOCS_PER_FILE, index.build());
+			for (int f = 0; f < FILES; f++) {
+				for (int d = 0; d < DOCS_PER_FILE; d++) {
+					assertArrayEquals(name(f, d) + " (" + type + ")", content(f, d), index.get(name(f, d)));
+				}
+			}
+		} finally {
+			index.close();
+		}
+	}
+
+	private void writeFiles(CompressionType type) throws IOException {
+		for (int f = 0; f < FILES; f++) {
+			Path file = new Path(new File(dir, String.format("part-%05d", f)).getPath());
+			SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(file), SequenceFile.Writer.keyClass(Text.class),
+					SequenceFile.Writer.valueClass(Text.class), SequenceFile.Writer.compression(type));
+			try {
+				for (int d = 0; d < DOCS_PER_FILE; d++) {
+					writer.append(new Text(name(f, d)), new Text(content(f, d)));
+				}
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	private static String name(int file, int doc) {
+		return String.format("doc-%d-%05d.naf", file, doc);
+	}
+
+	/**
+	 * Documents of different sizes with content that does not compress away.
+	 */
+	private static byte[] content(int file, int doc) {
+		Random random = new Random(file * 100000L + doc);
+		StringBuilder sb = new StringBuilder("<NAF name=\"" + name(file, doc) + "\">");
+		int words = 10 + random.nextInt(300);
+		for (int i = 0; i < words; i++) {
+			sb.append(Long.toString(random.nextLong(), 36)).append(' ');
+		}
+		return sb.append("</NAF>").toString().getBytes(UTF8);
+	}
+}
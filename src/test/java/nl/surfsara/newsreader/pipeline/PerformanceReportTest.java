@@ -0,0 +1,40 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests the names of the task files of the performance report.
+ */
+public class PerformanceReportTest {
+
+	@Test
+	public void attemptsOfATaskShareTheTaskId() {
+		assertEquals("task_1400000000000_0001_m_000005", PerformanceReport.getTaskId("attempt_1400000000000_0001_m_000005_0"));
+		assertEquals("task_1400000000000_0001_m_000005", PerformanceReport.getTaskId("attempt_1400000000000_0001_m_000005_3"));
+	}
+
+	@Test
+	public void otherIdsAreKept() {
+		assertEquals("local", PerformanceReport.getTaskId("local"));
+		assertEquals("attempt_", PerformanceReport.getTaskId("attempt_"));
+		assertNull(PerformanceReport.getTaskId(null));
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.modules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests running documents through steps, failing them and resuming them at
+ * the failed step.
+ */
+public class StepRunnerTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("steprunner").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void failedDocumentKeepsTheInputOfTheFailedStep() {
+		NewsreaderDocument doc = new NewsreaderDocument("doc.naf", encode("<naf/>"), false);
+		run(doc, new PipelineStep("a", AppendingModule.class, 10000, 0));
+		run(doc, new PipelineStep("b", FailingModule.class, 10000, 0));
+		assertTrue(doc.hasFailed());
+		assertEquals("b", doc.getFailedStep());
+		assertEquals(1, doc.getAttempts());
+		assertEquals("<naf/>a", decode(doc.getContent()));
+
+		// Failing again in the same step counts the attempts
+		doc.setFailed(false);
+		run(doc, new PipelineStep("b", FailingModule.class, 10000, 0));
+		assertEquals(2, doc.getAttempts());
+		assertEquals("<naf/>a", decode(doc.getContent()));
+	}
+
+	@Test
+	public void resumedDocumentContinuesAtTheFailedStep() {
+		NewsreaderDocument failed = new NewsreaderDocument("doc.naf", encode("<naf/>"), false);
+		run(failed, new PipelineStep("a", AppendingModule.class, 10000, 0));
+		run(failed, new PipelineStep("b", FailingModule.class, 10000, 0));
+
+		NewsreaderDocument doc = new NewsreaderDocument(failed.getName(), failed.getContent(), false);
+		doc.setFailure(failed.getFailedStep(), failed.getAttempts());
+		doc.setResumeStep(failed.getFailedStep());
+		run(doc, new PipelineStep("a", AppendingModule.class, 10000, 0));
+		assertEquals("<naf/>a", decode(doc.getContent()));
+		run(doc, new PipelineStep("b", AppendingModule.class, 10000, 0));
+		run(doc, new PipelineStep("c", AppendingModule.class, 10000, 0));
+		assertFalse(doc.hasFailed());
+		assertNull(doc.getResumeStep());
+		assertEquals("<naf/>abc", decode(doc.getContent()));
+	}
+
+	private void run(NewsreaderDocument doc, PipelineStep step) {
+		StepRunner runner = new StepRunner(step, new File(dir, step.getName()).getPath(), 1);
+		runner.start();
+		try {
+			runner.run(doc);
+		} finally {
+			runner.stop();
+		}
+	}
+
+	private static ByteBuffer encode(String s) {
+		return ByteBuffer.wrap(s.getBytes(UTF8));
+	}
+
+	private static String decode(ByteBuffer buffer) {
+		return UTF8.decode(buffer.duplicate()).toString();
+	}
+
+	/**
+	 * Appends the name of its step to the document.
+	 */
+	public static class AppendingModule extends AbstractModule {
+		private final PipelineStep step;
+
+		public AppendingModule(PipelineStep step) {
+			this.step = step;
+		}
+
+		@Override
+		public Module call() {
+			setOutputDocument(getInputDocument() + step.getName());
+			return this;
+		}
+	}
+
+	/**
+	 * Consumes its input, writes partial output and fails.
+	 */
+	public static class FailingModule extends AbstractModule {
+
+		public FailingModule(PipelineStep step) {
+		}
+
+		@Override
+		public Module call() {
+			ByteBuffer input = getInputBuffer();
+			input.position(input.limit());
+			setOutputDocument("partial");
+			setFailed(true);
+			return this;
+		}
+	}
+}
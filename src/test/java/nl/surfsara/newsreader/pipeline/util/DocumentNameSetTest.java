@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests building, storing and querying the set of processed document names.
+ */
+public class DocumentNameSetTest {
+	private Configuration conf;
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		dir = Files.createTempDirectory("documentnameset").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.deleteQuietly(dir);
+	}
+
+	@Test
+	public void containsTheDocumentsOfAllOutputDirectories() throws IOException {
+		writeDocuments("out/1/part-00000", "a.naf", "b.naf");
+		writeDocuments("out/1/part-00001", "c.naf");
+		writeDocuments("out/2/part-00000", "d.naf");
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("out/1"), path("out/2") });
+		assertEquals(4, set.size());
+		for (String name : new String[] { "a.naf", "b.naf", "c.naf", "d.naf" }) {
+			assertTrue(name, set.contains(name));
+		}
+		assertFalse(set.contains("e.naf"));
+		assertFalse(set.contains(""));
+	}
+
+	@Test
+	public void countsDuplicateNamesOnce() throws IOException {
+		writeDocuments("out/1/part-00000", "a.naf", "b.naf", "a.naf");
+		writeDocuments("out/2/part-00000", "b.naf", "c.naf");
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("out/*") });
+		assertEquals(3, set.size());
+		assertTrue(set.contains("a.naf"));
+		assertTrue(set.contains("c.naf"));
+	}
+
+	@Test
+	public void isEmptyWhenNothingMatches() throws IOException {
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("missing/*") });
+		assertEquals(0, set.size());
+		assertFalse(set.contains("a.naf"));
+	}
+
+	@Test
+	public void skipsTheDirectoriesNextToOutputAndErrorPaths() throws IOException {
+		writeDocuments("out/1/part-00000", "ok.naf");
+		writeDocuments("out/1/_SUCCESS");
+		writeDocuments("out/1_checkpoint/part-00000", "checkpoint.naf");
+		writeDocuments("out/err/part-00000", "failed.naf");
+		writeDocuments("out/err_failures/part-00000", "failed.naf");
+		FileUtils.writeStringToFile(new File(dir, "out/1_trace/part-00000"), "not a sequence file");
+		FileUtils.writeStringToFile(new File(dir, "out/1_report/report.csv"), "not a sequence file");
+		FileUtils.writeStringToFile(new File(dir, "out/1_incremental/names"), "not a sequence file");
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("out/*") });
+		assertEquals(1, set.size());
+		assertTrue(set.contains("ok.naf"));
+		assertFalse(set.contains("checkpoint.naf"));
+		assertFalse(set.contains("failed.naf"));
+	}
+
+	@Test
+	public void skipsFilesWithOtherKeys() throws IOException {
+		writeDocuments("out/1/part-00000", "a.naf");
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(path("out/1/part-00001"))),
+				SequenceFile.Writer.keyClass(LongWritable.class), SequenceFile.Writer.valueClass(Text.class));
+		try {
+			writer.append(new LongWritable(0), new Text("b.naf"));
+		} finally {
+			writer.close();
+		}
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("out/1") });
+		assertEquals(1, set.size());
+		assertTrue(set.contains("a.naf"));
+	}
+
+	@Test
+	public void readsWhatWasWritten() throws IOException {
+		String[] names = new String[1000];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = "doc-" + i + ".naf";
+		}
+		writeDocuments("out/1/part-00000", names);
+		DocumentNameSet set = DocumentNameSet.build(conf, new String[] { path("out/1") });
+		Path file = new Path(path("out/1_incremental/names"));
+		set.write(conf, file);
+		DocumentNameSet read = DocumentNameSet.read(conf, file);
+		assertEquals(names.length, read.size());
+		for (String name : names) {
+			assertTrue(name, read.contains(name));
+		}
+		assertFalse(read.contains("doc-1000.naf"));
+	}
+
+	private String path(String relative) {
+		return new File(dir, relative).getPath();
+	}
+
+	private void writeDocuments(String file, String... names) throws IOException {
+		new File(path(file)).getParentFile().mkdirs();
+		SequenceFile.Writer writer = SequenceFile.createWriter(conf, SequenceFile.Writer.file(new Path(path(file))), SequenceFile.Writer.keyClass(Text.class),
+				SequenceFile.Writer.valueClass(Text.class));
+		try {
+			for (String name : names) {
+				writer.append(new Text(name), new Text("<NAF/>"));
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
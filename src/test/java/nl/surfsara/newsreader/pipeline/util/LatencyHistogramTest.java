@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 SURFsara
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.surfsara.newsreader.pipeline.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the buckets, percentiles, merging and serialization of latency
+ * histograms.
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyHistogramHasNoPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getCount());
+		assertEquals(0, h.getPercentile(50));
+		assertEquals(0, h.getPercentile(100));
+	}
+
+	@Test
+	public void smallValuesAreExact() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < 32; i++) {
+			h.record(i);
+		}
+		assertEquals(32, h.getCount());
+		assertEquals(0, h.getPercentile(0));
+		assertEquals(15, h.getPercentile(50));
+		assertEquals(31, h.getPercentile(100));
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(-5);
+		assertEquals(1, h.getCount());
+		assertEquals(0, h.getMax());
+		assertEquals(0, h.getPercentile(50));
+	}
+
+	@Test
+	public void largeValuesAreWithinTheBucketWidth() {
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			long value = 32 + (long) (Math.exp(random.nextDouble() * 40));
+			LatencyHistogram h = new LatencyHistogram();
+			h.record(value);
+			// Another value keeps the maximum from capping the bucket bound
+			h.record(Long.MAX_VALUE);
+			long bound = h.getPercentile(50);
+			assertTrue(value + " <= " + bound, bound >= value);
+			assertTrue(value + " within 1/16 of " + bound, bound - value <= value / 16);
+		}
+	}
+
+	@Test
+	public void percentilesNeverExceedTheMaximum() {
+		LatencyHistogram h = new LatencyHistogram();
+		h.record(1000);
+		h.record(1001);
+		assertEquals(1001, h.getPercentile(100));
+		assertEquals(1001, h.getPercentile(99));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, h.getPercentile(100));
+	}
+
+	@Test
+	public void percentilesFollowTheRank() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			h.record(10);
+		}
+		h.record(5000);
+		assertEquals(10, h.getPercentile(50));
+		assertEquals(10, h.getPercentile(99));
+		assertEquals(5000, h.getPercentile(99.5));
+		assertEquals(5000, h.getPercentile(150));
+	}
+
+	@Test
+	public void mergeAddsTheValues() {
+		LatencyHistogram a = new LatencyHistogram();
+		LatencyHistogram b = new LatencyHistogram();
+		LatencyHistogram all = new LatencyHistogram();
+		Random random = new Random(7);
+		for (int i = 0; i < 1000; i++) {
+			long value = random.nextInt(100000);
+			(i % 3 == 0 ? a : b).record(value);
+			all.record(value);
+		}
+		a.merge(b);
+		assertEquals(all.getCount(), a.getCount());
+		assertEquals(all.getMax(), a.getMax());
+		assertEquals(all.toString(), a.toString());
+	}
+
+	@Test
+	public void parseReadsWhatToStringWrote() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (long value : new long[] { 0, 3, 31, 32, 33, 1000, 1000, 123456789L }) {
+			h.record(value);
+		}
+		LatencyHistogram parsed = LatencyHistogram.parse(h.toString());
+		assertEquals(h.getCount(), parsed.getCount());
+		assertEquals(h.getMax(), parsed.getMax());
+		assertEquals(h.toString(), parsed.toString());
+		for (double p : new double[] { 1, 50, 95, 99, 100 }) {
+			assertEquals(h.getPercentile(p), parsed.getPercentile(p));
+		}
+		assertEquals(0, LatencyHistogram.parse(new LatencyHistogram().toString()).getCount());
+	}
+}